@@ -0,0 +1,346 @@
+import java.nio.charset.StandardCharsets;
+
+
+// the CREATEROOM / LISTROOMS / JOINROOM / SENDMSG / HISTORY protocol, shared by every engine
+class ChatProtocol{
+
+    // all chat rooms:
+    private static final RoomRegistry rooms = new RoomRegistry();
+
+    // set once by joinCluster() before any client connects, null for a single server
+    private static Cluster cluster;
+
+    // published by publishMetrics() over jmx and SERVER_METRICS_PORT, see common/Metrics.java
+    static final Metrics metrics = new Metrics("tcp");
+    static final Metrics.Counter messagesIn = metrics.counter("chat_messages_in_total", "SENDMSG requests accepted");
+    static final Metrics.Counter messagesOut = metrics.counter("chat_messages_out_total", "lines queued to clients, replies and every broadcast copy");
+    static final Metrics.Counter droppedFrames = metrics.counter("chat_dropped_frames_total", "lines dropped because a client's outbound queue was full");
+    static final Metrics.Counter droppedClients = metrics.counter("chat_dropped_clients_total", "clients disconnected because their outbound queue was full");
+    static final Metrics.Histogram fanout = metrics.histogram("chat_fanout_seconds", "one broadcast, from encoding the line to the last member's queue");
+    static final Metrics.Counter throttled = metrics.counter("chat_throttled_total", "request lines held back until the socket and user had tokens again");
+    static final Metrics.Counter rejectedRate = metrics.counter("chat_rejected_rate_total", "requests refused because a multiplexed user was over its rate");
+    static final Metrics.Counter rejectedSize = metrics.counter("chat_rejected_size_total", "messages refused for being longer than LIMIT_MAX_MESSAGE_CHARS");
+    static final Metrics.Counter rejectedRooms = metrics.counter("chat_rejected_rooms_total", "CREATEROOMs refused because LIMIT_MAX_ROOMS rooms exist");
+
+    // pings quiet sockets and closes dead ones, SERVER_HEARTBEAT_MS, SERVER_IDLE_TIMEOUT_MS, SERVER_WRITE_TIMEOUT_MS
+    static final Reaper reaper = new Reaper("SERVER", metrics);
+    static final Frame PING = Frame.of(Reaper.PING);
+    static final Frame PONG = Frame.of(Reaper.PONG);
+    static final Frame BINARY = Frame.of(ChatWire.ACCEPTED);
+    static final Frame BINARY_PING = Frame.of(ChatWire.PING_FRAME);
+    static final Frame BINARY_PONG = Frame.of(ChatWire.PONG_FRAME);
+
+    // one request line, still utf-8 bytes in the engine's read buffer, or a binary frame's
+    // opcode and body. false when it was held back by the rate limit before doing anything, see Session.received
+    static boolean handle(Session session, byte[] buf, int off, int len){
+        boolean binary = session.binary;
+        if (Log.DEBUG) Log.debug("got", "from", session, "line", binary ? "<binary " + len + " bytes>" : new String(buf, off, len, StandardCharsets.UTF_8));
+
+        ChatJson.Request req = session.request;
+        ChatJson.Writer out = session.json.as(binary);
+        if (!(binary ? ChatWire.parse(req, buf, off, len) : req.parse(buf, off, len))) {
+            return true; // not a json object or a known frame, nothing we can answer
+        }
+        if (heartbeat(session, req)) return true;
+
+        String command = req.arg == null ? "" : req.arg.toUpperCase();
+        double cost = Limits.cost(command);
+        if (cost > 0) {
+            long wait = spend(session, req.username, cost);
+            if (wait > 0) {
+                session.carrier().retryAt = System.nanoTime() + wait;
+                throttled.inc();
+                return false;
+            }
+            if (wait < 0) {
+                rejectedRate.inc();
+                sendToClient(session, out.message("Slow down!"));
+                return true;
+            }
+        }
+
+        session.username = req.username;
+        String roomName = req.room;
+        String msg = req.msg;
+
+        switch(command){
+            case "CREATEROOM":
+                if (roomName == null || roomName.isBlank()) {
+                    sendToClient(session, out.message("Room name required"));
+                    break;
+                }
+                if (rooms.create(roomName, Limits.MAX_ROOMS) == null) {
+                    rejectedRooms.inc();
+                    sendToClient(session, out.message("Room limit reached"));
+                    break;
+                }
+                if (cluster != null) cluster.created(roomName);
+                sendToClient(session, out.beginMessage().text("Room ").text(roomName).text(" created!").endMessage());
+                break;
+
+            case "LISTROOMS":
+                if (rooms.isEmpty()) {
+                    sendToClient(session, out.message("No rooms"));
+                } else {
+                    sendToClient(session, out.rooms(rooms.names()));
+                }
+                break;
+
+
+            case "JOINROOM":
+                Room joined = rooms.get(roomName);
+                if (joined != null){
+                    leave(session); // remove client from curr room if its already in one
+                    session.currRoom = roomName;
+                    sendToClient(session, out.beginMessage().text("You joined ").text(roomName).endMessage());
+
+                    // the latest page of history, or with "since" every message after that seq, and then
+                    // live messages from the next seq on. older pages come from HISTORY
+                    long since = req.since;
+                    int limit = pageSize(req);
+                    if (cluster != null) {
+                        cluster.join(session, joined, since, limit); // the room's owner may be another node
+                        break;
+                    }
+                    joined.sequencer.submit(json -> {
+                        if (!roomName.equals(session.currRoom)) return; // moved on before its turn came
+                        sendPage(session, json, joined, Long.MAX_VALUE, joinLimit(joined, since, limit), true);
+                        admit(session, joined);
+                    });
+
+                }else{
+                    sendToClient(session, out.message("Room does not exist!"));
+                }
+
+                break;
+
+            case "SENDMSG":
+                if (msg != null && msg.length() > Limits.MAX_MESSAGE) {
+                    rejectedSize.inc();
+                    sendToClient(session, out.message("Message too long"));
+                    break;
+                }
+                if (session.currRoom == null){
+                    sendToClient(session, out.message("Join a room first!"));
+
+                    break;
+                }else{
+                    String x = session.username + ": " + msg;
+                    Room room = rooms.get(session.currRoom);
+
+                    if (cluster != null) {
+                        // sequenced by the room's owner node, refused when it cant take it right now
+                        if (cluster.publish(room, x)) {
+                            messagesIn.inc();
+                        } else {
+                            sendToClient(session, out.message("Message not sent, try again"));
+                        }
+                        break;
+                    }
+                    messagesIn.inc();
+
+                    // history order and delivery order are the same because the room's sequencer does both
+                    room.sequencer.submit(json -> {
+                        long seq = room.messages.append(x);
+                        broadcast(room, json, x, seq);
+                    });
+                    break;
+
+                }
+
+            case "HISTORY":
+                // {"arg":"HISTORY","room":"r","before":<first seq of the page you have>,"limit":n}
+                Room paged = rooms.get(roomName != null ? roomName : session.currRoom);
+                if (paged == null) {
+                    sendToClient(session, out.message("Room does not exist!"));
+                    break;
+                }
+                long before = req.before > 0 ? req.before : Long.MAX_VALUE;
+                if (cluster != null) {
+                    cluster.history(session, paged, before, pageSize(req));
+                    break;
+                }
+                sendPage(session, out, paged, before, pageSize(req), false);
+                break;
+
+        }
+        return true;
+    }
+
+    // PING gets PONG, and either one tells the reaper the socket speaks heartbeat. false for any other request
+    static boolean heartbeat(Session session, ChatJson.Request req){
+        if (!session.carrier().peer.heartbeat(req.arg)) return false;
+        if (req.arg.equalsIgnoreCase("PING")) session.send(session.binary ? BINARY_PONG : PONG);
+        return true;
+    }
+
+    // takes cost from the socket's bucket and then the user's. 0 when both had it, otherwise
+    // nothing is spent and its how many nanos to hold the line back, or -1 to refuse it: a
+    // multiplexed session shares its socket with other users, a user running dry must not stall them
+    private static long spend(Session session, String username, double cost){
+        Session socket = session.carrier();
+        long wait = socket.budget().take(cost);
+        if (wait > 0) return wait;
+        wait = session.budget(username).take(cost);
+        if (wait == 0) return 0;
+        socket.budget().refund(cost);
+        return socket == session ? wait : -1;
+    }
+
+    private static int pageSize(ChatJson.Request req){
+        return req.limit > 0 ? (int) Math.min(req.limit, HistoryRing.CAPACITY) : HistoryRing.JOIN_LIMIT;
+    }
+
+    // a join resuming after seq since gets everything after it, up to HISTORY_CAPACITY messages.
+    // only meaningful on the room's sequencer, where nothing is appended in between
+    static int joinLimit(Room room, long since, int limit){
+        if (since < 0) return limit;
+        return (int) Math.max(0, Math.min(HistoryRing.CAPACITY, room.messages.nextSeq() - 1 - since));
+    }
+
+    // the session starts getting the room's broadcasts. a leave from another thread clears
+    // currRoom before it takes the room lock, so either it finds the member id here to take
+    // back or the check below sees it and the session never goes in
+    static void admit(Session session, Room room){
+        synchronized (room) {
+            if (!room.name.equals(session.currRoom) || session.membership != 0) return;
+            int id = Members.add(session);
+            session.membership = Members.key(room, id);
+            room.clients.add(id);
+        }
+    }
+
+    // big pages of a log backed room go out as file ranges with sendfile, everything else is encoded here.
+    // json is a writer the calling thread owns, the session's own or the room sequencer's.
+    // binary sessions always get an encoded page, the log holds json records
+    static void sendPage(Session session, ChatJson.Writer json, Room room, long before, int limit, boolean join){
+        ChatEvents.HistoryReplay event = new ChatEvents.HistoryReplay();
+        event.begin();
+
+        json = json.as(session.binary);
+        Frame frame = null;
+        boolean fromLog = false;
+        if (!session.binary && room.messages instanceof MessageLog.RoomLog log) {
+            MessageLog.Replay page = log.replay(before, limit);
+            if (page.bytes >= MessageLog.SENDFILE_BYTES) {
+                frame = Frame.history(page, json);
+                fromLog = true;
+            }
+        }
+        if (frame == null) {
+            frame = Frame.copyOf(room.messages.writePage(json, before, limit));
+        }
+        session.send(frame);
+        messagesOut.inc();
+
+        if (event.shouldCommit()) {
+            event.room = room.name;
+            event.join = join;
+            event.limit = limit;
+            event.messages = -1; // already encoded, not counted
+            event.bytes = frame.length();
+            event.fromLog = fromLog;
+            event.commit();
+        }
+        if (Log.DEBUG) Log.debug("sent history", "to", session, "room", room.name, "bytes", frame.length(), "fromLog", fromLog);
+    }
+
+    // drop the client from whatever room it is in
+    static void leave(Session session){
+        Room room = rooms.get(session.currRoom);
+        session.currRoom = null;
+        if (room != null) {
+            synchronized (room) {
+                long membership = session.membership;
+                if (membership == 0 || membership >>> 32 != room.id) return;
+                session.membership = 0;
+                room.clients.remove((int) membership);
+                Members.remove((int) membership);
+            }
+        }
+    }
+
+
+    private static void sendToClient(Session session, ChatJson.Writer json) {
+        session.send(Frame.copyOf(json));
+        messagesOut.inc();
+        if (Log.DEBUG) Log.debug("sent", "to", session, "line", json);
+    }
+
+
+    // json is a writer the calling thread owns, the room sequencer's or the cluster reader's
+    static void broadcast(Room room, ChatJson.Writer json, String text, long seq){
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        long start = System.nanoTime();
+
+        // the line is encoded once, every member queues the same bytes. the binary frame is
+        // encoded the first time a binary member comes up, once as well
+        Frame frame = Frame.copyOf(json.message(text, seq));
+        Frame binaryFrame = null;
+
+        // a snapshot of the member ids, members joining or leaving mid broadcast are fine. an id
+        // given back meanwhile may belong to another session by now, that one is skipped
+        int members = 0;
+        for (int[] chunk : room.clients.snapshot()) {
+            for (int id : chunk) {
+                Session member = Members.get(id);
+                if (member == null || member.membership != Members.key(room, id)) continue;
+                if (member.binary) {
+                    if (binaryFrame == null) binaryFrame = Frame.copyOf(json.as(true).message(text, seq));
+                    member.send(binaryFrame);
+                } else {
+                    member.send(frame);
+                }
+                members++;
+            }
+        }
+
+        fanout.record(System.nanoTime() - start);
+        messagesOut.add(members);
+        if (event.shouldCommit()) {
+            event.room = room.name;
+            event.members = members;
+            event.bytes = frame.length();
+            event.commit();
+        }
+        if (Log.DEBUG) Log.debug("broadcast", "room", room.name, "members", members, "line", json);
+    }
+
+    // CLUSTER_NODES turns this server into one node of several, see Cluster.java
+    static void joinCluster(){
+        cluster = Cluster.fromEnv(rooms, metrics);
+    }
+
+    // SNAPSHOT_DIR, see Snapshot. a cluster node hands its rooms to the other nodes when it stops
+    // instead, so there only HISTORY_LOG_DIR keeps history across a restart
+    static void restoreRooms(){
+        Snapshot snapshot = Snapshot.open("tcp");
+        if (snapshot == null) return;
+        if (cluster != null) {
+            Log.warn("SNAPSHOT_DIR ignored in cluster mode", "dir", Snapshot.DIR);
+            return;
+        }
+        rooms.restore(snapshot);
+    }
+
+    // gauges read the live state on every scrape, then jmx and the http endpoint go up
+    static void publishMetrics(){
+        metrics.gauge("chat_connections", "open client sockets", () -> Session.open.size());
+        metrics.gauge("chat_rooms", "rooms", () -> rooms.size());
+        metrics.gauge("chat_room_members", "sessions in each room", "room", rooms::members);
+        metrics.gauge("chat_queue_depth", "lines waiting in all outbound queues", () -> {
+            long total = 0;
+            for (Session s : Session.open) total += s.outbound().depth();
+            return total;
+        });
+        metrics.gauge("chat_queue_depth_max", "lines waiting in the fullest outbound queue", () -> {
+            int max = 0;
+            for (Session s : Session.open) max = Math.max(max, s.outbound().depth());
+            return max;
+        });
+        Coalescing.publish(metrics);
+        TieredHistory.publish(metrics, () -> rooms.histories().values());
+        metrics.serve("SERVER");
+    }
+}
@@ -0,0 +1,666 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// several server processes sharing one set of rooms, turned on by CLUSTER_NODES:
+//   CLUSTER_NODES=a=10.0.0.1:9100,b=10.0.0.2:9100,c=10.0.0.3:9100   every node, this one included
+//   CLUSTER_NODE=a                                                 which entry this process is
+//
+// every node knows every room name, CREATEROOM is told to all of them. each room has one owner,
+// picked by a consistent hash ring over the live nodes. the owner keeps the room's history, gives
+// every message its sequence number and relays it to the nodes with members in the room, so a room
+// has one order whichever node its users are connected to. while the owner cant be reached its
+// messages are refused, no other node sequences them. joins and history pages for a room
+// owned elsewhere are answered by the owner, the page arrives before the first live message.
+//
+// nodes talk over a tcp mesh. each node dials every other one and only writes on the socket it
+// dialed, answers come back on the other node's socket. a node is live while that socket is up and
+// it has been heard from within CLUSTER_TIMEOUT_MS. when the live set changes the ring is rebuilt,
+// rooms that moved are handed to their new owner with their history and members resubscribe.
+// a node that stops cleanly hands its rooms off first, one that crashes loses the history it owned
+final class Cluster{
+    static final long TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("CLUSTER_TIMEOUT_MS", "3000"));
+    static final int VNODES = Integer.parseInt(System.getenv().getOrDefault("CLUSTER_VNODES", "64"));
+    static final int QUEUE = Integer.parseInt(System.getenv().getOrDefault("CLUSTER_QUEUE_CAPACITY", "65536"));
+
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    private static final int MAX_FIELD = 64 << 20;
+
+    // one byte opcode, then the fields in the order the helpers below write them
+    private static final byte HELLO = 1;   // node id, first on every socket
+    private static final byte PING = 2;    // keeps an idle socket live
+    private static final byte ROOM = 3;    // room name, it was created somewhere
+    private static final byte SUB = 4;     // room, the sender has members in it
+    private static final byte PUB = 5;     // room, text, forwarded: a message for the owner
+    private static final byte MSG = 6;     // room, seq, text: the owner relaying a message
+    private static final byte JOIN = 7;    // request id, room, since, limit, binary: SUB plus the first page
+    private static final byte HIST = 8;    // request id, room, before, limit, binary
+    private static final byte PAGE = 9;    // request id, the encoded {"history":..} line, a ChatWire frame when asked for binary
+    private static final byte HANDOFF = 10; // room, first seq, count, texts: the room moved here
+    private static final byte LEAVE = 11;  // the sender is shutting down
+
+    final String self;
+    private final RoomRegistry rooms;
+    private final Map<String, Peer> peers = new LinkedHashMap<>(); // every other node, fixed at startup
+    private final int port;
+
+    private volatile Ring ring;
+    private volatile boolean leaving;
+
+    // owner side, the nodes with members in each room this node owns
+    private final ConcurrentHashMap<String, Set<Peer>> subscribers = new ConcurrentHashMap<>();
+    // joins and history pages waiting for the owner's answer
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+
+    private final Metrics.Counter forwarded;
+    private final Metrics.Counter relayed;
+    private final Metrics.Counter handoffs;
+    private final Metrics.Counter refused;
+
+    private Cluster(String self, Map<String, String> nodes, RoomRegistry rooms, Metrics metrics){
+        this.self = self;
+        this.rooms = rooms;
+        int own = 0;
+        for (Map.Entry<String, String> node : nodes.entrySet()) {
+            String address = node.getValue();
+            int colon = address.lastIndexOf(':');
+            String host = address.substring(0, colon);
+            int nodePort = Integer.parseInt(address.substring(colon + 1));
+            if (node.getKey().equals(self)) own = nodePort;
+            else peers.put(node.getKey(), new Peer(node.getKey(), host, nodePort));
+        }
+        port = own;
+        ring = new Ring(List.of(self));
+
+        forwarded = metrics.counter("chat_cluster_forwarded_total", "messages passed to the node owning their room");
+        relayed = metrics.counter("chat_cluster_relayed_total", "message copies an owner relayed to nodes with members in the room");
+        handoffs = metrics.counter("chat_cluster_handoffs_total", "rooms handed to a new owner after the ring changed");
+        refused = metrics.counter("chat_cluster_refused_total", "messages not sequenced because the room's owner could not be reached");
+        metrics.gauge("chat_cluster_nodes", "live nodes in the ring, this one included", () -> ring.nodes.size());
+    }
+
+    // null unless CLUSTER_NODES is set
+    static Cluster fromEnv(RoomRegistry rooms, Metrics metrics){
+        String list = System.getenv("CLUSTER_NODES");
+        if (list == null || list.isBlank()) return null;
+
+        Map<String, String> nodes = new LinkedHashMap<>();
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int eq = entry.indexOf('=');
+            if (eq <= 0 || entry.lastIndexOf(':') < eq) {
+                throw new IllegalArgumentException("CLUSTER_NODES entries look like id=host:port, got " + entry);
+            }
+            nodes.put(entry.substring(0, eq), entry.substring(eq + 1));
+        }
+        String self = System.getenv().getOrDefault("CLUSTER_NODE", "");
+        if (!nodes.containsKey(self)) {
+            throw new IllegalArgumentException("CLUSTER_NODE must be one of the CLUSTER_NODES ids " + nodes.keySet());
+        }
+
+        Cluster cluster = new Cluster(self, nodes, rooms, metrics);
+        cluster.start();
+        return cluster;
+    }
+
+    private void start(){
+        try {
+            ServerSocket listener = new ServerSocket();
+            listener.bind(new InetSocketAddress("0.0.0.0", port));
+            Thread.ofVirtual().name("cluster-accept").start(() -> {
+                while (true) {
+                    try {
+                        Socket socket = listener.accept();
+                        Thread.ofVirtual().name("cluster-in").start(() -> receive(socket));
+                    } catch (IOException e) {
+                        Log.error("cluster listener failed", "error", e.getMessage());
+                        return;
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("cant listen for cluster nodes on " + port, e);
+        }
+
+        for (Peer peer : peers.values()) {
+            Thread.ofVirtual().name("cluster-" + peer.id).start(peer::run);
+        }
+        Thread.ofVirtual().name("cluster-tick").start(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(100, TIMEOUT_MS / 6));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tick();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(this::leave, "cluster-leave"));
+        Log.info("cluster node started", "node", self, "port", port, "peers", peers.keySet());
+    }
+
+
+    // CREATEROOM on this node, every other node learns the name
+    void created(String name){
+        Out op = room(name);
+        for (Peer peer : peers.values()) peer.send(op);
+    }
+
+    // SENDMSG from a local user. the owner appends and relays it, anyone else passes it on.
+    // false when the owner's socket is down or backed up: only the owner sequences a room, so the
+    // message is refused rather than appended here out of the room's order
+    boolean publish(Room room, String text){
+        Peer owner = ownerOf(room.name);
+        if (owner == null) {
+            appendAndRelay(room, text);
+            return true;
+        }
+        if (owner.send(pub(room.name, text, false))) {
+            forwarded.inc();
+            return true;
+        }
+        refused.inc();
+        return false;
+    }
+
+    // JOINROOM from a local user, after "You joined". the session only becomes a member once its
+    // page went out, so the page always comes before the room's next message
+    void join(Session session, Room room, long since, int limit){
+        route(new Pending(requestIds.incrementAndGet(), session, room.name, Long.MAX_VALUE, since, limit, true));
+    }
+
+    // HISTORY from a local user
+    void history(Session session, Room room, long before, int limit){
+        route(new Pending(requestIds.incrementAndGet(), session, room.name, before, -1, limit, false));
+    }
+
+    // appends, broadcasts and relays on the room's sequencer so every node sees the room's order
+    private void appendAndRelay(Room room, String text){
+        room.sequencer.submit(json -> {
+            long seq = room.messages.append(text);
+            ChatProtocol.broadcast(room, json, text, seq);
+            Set<Peer> subs = subscribers.get(room.name);
+            if (subs != null && !subs.isEmpty()) {
+                Out op = msg(room.name, seq, text);
+                for (Peer peer : subs) {
+                    if (peer.send(op)) relayed.inc();
+                }
+            }
+        });
+    }
+
+    private void route(Pending p){
+        Peer owner = ownerOf(p.room);
+        if (owner != null) {
+            p.peer = owner;
+            pending.put(p.id, p);
+            if (owner.send(p.request())) return;
+            pending.remove(p.id);
+        }
+        Room room = rooms.get(p.room);
+        if (room == null) return;
+        room.sequencer.submit(json -> {
+            if (!p.join) {
+                ChatProtocol.sendPage(p.session, json, room, p.before, p.limit, false);
+                return;
+            }
+            if (!p.room.equals(p.session.currRoom)) return;
+            ChatProtocol.sendPage(p.session, json, room, p.before, ChatProtocol.joinLimit(room, p.since, p.limit), true);
+            ChatProtocol.admit(p.session, room);
+        });
+    }
+
+    // the owner answered, runs on the reader of the owner's socket like the room's relayed messages
+    private void answered(Pending p, byte[] page){
+        if (!p.join) {
+            p.session.send(Frame.of(page));
+            ChatProtocol.messagesOut.inc();
+            return;
+        }
+        Room room = rooms.get(p.room);
+        if (room == null || !p.room.equals(p.session.currRoom)) return; // joined elsewhere or gone meanwhile
+        p.session.send(Frame.of(page));
+        ChatProtocol.messagesOut.inc();
+        ChatProtocol.admit(p.session, room);
+    }
+
+    private Peer ownerOf(String room){
+        String owner = ring.owner(room);
+        return owner == null || owner.equals(self) ? null : peers.get(owner);
+    }
+
+
+    // one socket from another node, everything it sends arrives here in order
+    private void receive(Socket socket){
+        Peer from = null;
+        ChatJson.Writer json = new ChatJson.Writer();
+        try (socket) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 << 10));
+            if (in.readByte() != HELLO) return;
+            from = peers.get(readString(in));
+            if (from == null) return; // not one of CLUSTER_NODES
+
+            while (true) {
+                byte op = in.readByte();
+                from.heard = System.nanoTime();
+                switch (op) {
+                    case PING -> {
+                    }
+                    case ROOM -> rooms.create(readString(in));
+                    case SUB -> subscribers.computeIfAbsent(readString(in), n -> ConcurrentHashMap.newKeySet()).add(from);
+                    case PUB -> {
+                        String name = readString(in);
+                        String text = readString(in);
+                        boolean wasForwarded = in.readBoolean();
+                        Room room = rooms.create(name);
+                        // rings disagree for a moment after a change, pass it on once. a node that
+                        // does not own the room never appends to it, what cant go on is dropped
+                        Peer owner = ownerOf(name);
+                        if (owner == null) {
+                            appendAndRelay(room, text);
+                        } else if (!wasForwarded && owner != from && owner.send(pub(name, text, true))) {
+                            forwarded.inc();
+                        } else {
+                            refused.inc();
+                            Log.warn("dropped a message for a room owned elsewhere", "room", name, "from", from.id, "owner", owner.id);
+                        }
+                    }
+                    case MSG -> {
+                        String name = readString(in);
+                        long seq = in.readLong();
+                        String text = readString(in);
+                        Room room = rooms.get(name);
+                        if (room != null && !room.clients.isEmpty()) ChatProtocol.broadcast(room, json, text, seq);
+                    }
+                    case JOIN -> {
+                        long id = in.readLong();
+                        Room room = rooms.create(readString(in));
+                        long since = in.readLong();
+                        int limit = in.readInt();
+                        boolean binary = in.readBoolean();
+                        Peer asker = from;
+                        room.sequencer.submit(roomJson -> {
+                            subscribers.computeIfAbsent(room.name, n -> ConcurrentHashMap.newKeySet()).add(asker);
+                            int size = ChatProtocol.joinLimit(room, since, limit);
+                            asker.send(page(id, room.messages.writePage(roomJson.as(binary), Long.MAX_VALUE, size).toByteArray()));
+                        });
+                    }
+                    case HIST -> {
+                        long id = in.readLong();
+                        Room room = rooms.create(readString(in));
+                        long before = in.readLong();
+                        int limit = in.readInt();
+                        boolean binary = in.readBoolean();
+                        from.send(page(id, room.messages.writePage(json.as(binary), before, limit).toByteArray()));
+                    }
+                    case PAGE -> {
+                        long id = in.readLong();
+                        byte[] page = readBytes(in);
+                        Pending p = pending.remove(id);
+                        if (p != null) answered(p, page);
+                    }
+                    case HANDOFF -> {
+                        Room room = rooms.create(readString(in));
+                        long first = in.readLong();
+                        int count = in.readInt();
+                        List<String> texts = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) texts.add(readString(in));
+                        adopt(room, first, texts);
+                    }
+                    case LEAVE -> {
+                        from.left = true;
+                        tick();
+                    }
+                    default -> throw new IOException("unknown cluster op " + op);
+                }
+            }
+        } catch (IOException e) {
+            if (from != null && Log.DEBUG) Log.debug("cluster socket closed", "from", from.id, "error", e.getMessage());
+        }
+    }
+
+
+    // rebuilds the ring when a node came or went
+    private synchronized void tick(){
+        long now = System.nanoTime();
+        List<String> live = new ArrayList<>();
+        if (!leaving) live.add(self);
+        for (Peer peer : peers.values()) {
+            if (peer.live(now)) live.add(peer.id);
+        }
+        Collections.sort(live);
+        Ring before = ring;
+        if (live.equals(before.nodes)) return;
+
+        Ring next = new Ring(live);
+        ring = next;
+        Log.info("cluster ring changed", "node", self, "live", live);
+
+        for (String name : rooms.names()) {
+            Room room = rooms.get(name);
+            String was = before.owner(name);
+            String owner = next.owner(name);
+            if (room == null || owner == null || owner.equals(was)) continue;
+            if (self.equals(was)) handOff(room, peers.get(owner));
+            if (!owner.equals(self) && !room.clients.isEmpty()) peers.get(owner).send(sub(name));
+        }
+
+        // requests sent to a node that no longer owns the room go to the new owner
+        for (Pending p : pending.values()) {
+            if (p.peer != ownerOf(p.room) && pending.remove(p.id) != null) route(p);
+        }
+    }
+
+    // the room belongs to another node now, it gets the history and this node starts over empty
+    private void handOff(Room room, Peer to){
+        room.sequencer.submit(json -> {
+            HistoryRing.Page page = room.messages.before(Long.MAX_VALUE, HistoryRing.CAPACITY);
+            subscribers.remove(room.name);
+            room.messages = RoomHistory.inMemory(page.first + page.messages.size());
+            if (to.send(handoff(room.name, page))) handoffs.inc();
+        });
+    }
+
+    // the previous owner's history goes first, then anything appended here since this node took over
+    private void adopt(Room room, long first, List<String> texts){
+        room.sequencer.submit(json -> {
+            RoomHistory merged = RoomHistory.inMemory(first);
+            for (String text : texts) merged.append(text);
+            for (String text : room.messages.before(Long.MAX_VALUE, HistoryRing.CAPACITY).messages) merged.append(text);
+            room.messages = merged;
+        });
+    }
+
+    // stopping cleanly: tell every node, hand each owned room to its next owner, let the sockets drain
+    private void leave(){
+        leaving = true;
+        for (Peer peer : peers.values()) peer.send(out -> out.writeByte(LEAVE));
+        tick();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        for (Peer peer : peers.values()) {
+            while (peer.socket != null && !peer.outbound.isEmpty() && System.nanoTime() < deadline) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+
+    // consistent hashing with VNODES points per node, a room belongs to the first point at or after its hash
+    private static final class Ring{
+        final List<String> nodes;
+        private final TreeMap<Long, String> points = new TreeMap<>();
+
+        Ring(List<String> nodes){
+            this.nodes = List.copyOf(nodes);
+            for (String node : nodes) {
+                for (int i = 0; i < VNODES; i++) points.put(hash(node + "#" + i), node);
+            }
+        }
+
+        // null only when no node is live, this one included
+        String owner(String room){
+            if (points.isEmpty()) return null;
+            Map.Entry<Long, String> point = points.ceilingEntry(hash(room));
+            return point != null ? point.getValue() : points.firstEntry().getValue();
+        }
+
+        // fnv-1a then murmur3's finalizer, so similar names land far apart
+        private static long hash(String s){
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+
+    // another node, and the socket this node dialed to it
+    private final class Peer{
+        final String id;
+        private final String host;
+        private final int port;
+        private final LinkedBlockingQueue<Out> outbound = new LinkedBlockingQueue<>(QUEUE);
+        private volatile Socket socket; // null while down
+        private volatile long heard = System.nanoTime() - TIMEOUT_NANOS; // last op on its socket to us
+        private volatile boolean left;  // said LEAVE, out of the ring until it connects again
+
+        Peer(String id, String host, int port){
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean live(long now){
+            return socket != null && !left && now - heard < TIMEOUT_NANOS;
+        }
+
+        // false when the socket is down or backed up, nothing was queued
+        boolean send(Out op){
+            return socket != null && outbound.offer(op);
+        }
+
+        // dials until it connects, then writes whatever is queued until the socket breaks
+        void run(){
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(host, port), (int) TIMEOUT_MS);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 << 10));
+                    outbound.clear();
+                    greet(this, out);
+                    left = false;
+                    socket = s;
+                    Log.info("cluster node connected", "node", id, "address", host + ":" + port);
+
+                    while (true) {
+                        Out op = outbound.poll(TIMEOUT_MS / 3, TimeUnit.MILLISECONDS);
+                        if (op == null) {
+                            out.writeByte(PING);
+                        } else {
+                            // everything queued behind it goes out in the same flush
+                            do {
+                                op.write(out);
+                            } while ((op = outbound.poll()) != null);
+                        }
+                        out.flush();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (socket != null) Log.info("cluster node disconnected", "node", id, "error", e.getMessage());
+                } finally {
+                    socket = null;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // what a node connecting to this one is owed: every room name, subscriptions to rooms it owns
+    // that have members here, and requests it never answered because the last socket broke
+    private void greet(Peer peer, DataOutputStream out) throws IOException{
+        out.writeByte(HELLO);
+        writeString(out, self);
+        Ring current = ring;
+        for (String name : rooms.names()) {
+            room(name).write(out);
+            Room room = rooms.get(name);
+            if (room != null && !room.clients.isEmpty() && peer.id.equals(current.owner(name))) sub(name).write(out);
+        }
+        for (Pending p : pending.values()) {
+            if (p.peer == peer) p.request().write(out);
+        }
+        out.flush();
+    }
+
+    // a join or history page this node asked another node for
+    private static final class Pending{
+        final long id;
+        final Session session;
+        final String room;
+        final long before;
+        final long since;
+        final int limit;
+        final boolean join;
+        volatile Peer peer;
+
+        Pending(long id, Session session, String room, long before, long since, int limit, boolean join){
+            this.id = id;
+            this.session = session;
+            this.room = room;
+            this.before = before;
+            this.since = since;
+            this.limit = limit;
+            this.join = join;
+        }
+
+        Out request(){
+            byte[] name = utf8(room);
+            boolean binary = session.binary;
+            if (join) {
+                return out -> {
+                    out.writeByte(JOIN);
+                    out.writeLong(id);
+                    writeBytes(out, name);
+                    out.writeLong(since);
+                    out.writeInt(limit);
+                    out.writeBoolean(binary);
+                };
+            }
+            return out -> {
+                out.writeByte(HIST);
+                out.writeLong(id);
+                writeBytes(out, name);
+                out.writeLong(before);
+                out.writeInt(limit);
+                out.writeBoolean(binary);
+            };
+        }
+    }
+
+
+    // one queued op, encoded when the peer's writer gets to it
+    private interface Out{
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static Out room(String name){
+        byte[] n = utf8(name);
+        return out -> {
+            out.writeByte(ROOM);
+            writeBytes(out, n);
+        };
+    }
+
+    private static Out sub(String name){
+        byte[] n = utf8(name);
+        return out -> {
+            out.writeByte(SUB);
+            writeBytes(out, n);
+        };
+    }
+
+    private static Out pub(String name, String text, boolean forwarded){
+        byte[] n = utf8(name);
+        byte[] t = utf8(text);
+        return out -> {
+            out.writeByte(PUB);
+            writeBytes(out, n);
+            writeBytes(out, t);
+            out.writeBoolean(forwarded);
+        };
+    }
+
+    private static Out msg(String name, long seq, String text){
+        byte[] n = utf8(name);
+        byte[] t = utf8(text);
+        return out -> {
+            out.writeByte(MSG);
+            writeBytes(out, n);
+            out.writeLong(seq);
+            writeBytes(out, t);
+        };
+    }
+
+    private static Out page(long id, byte[] page){
+        return out -> {
+            out.writeByte(PAGE);
+            out.writeLong(id);
+            writeBytes(out, page);
+        };
+    }
+
+    private static Out handoff(String name, HistoryRing.Page page){
+        byte[] n = utf8(name);
+        List<String> texts = page.messages;
+        long first = page.first;
+        return out -> {
+            out.writeByte(HANDOFF);
+            writeBytes(out, n);
+            out.writeLong(first);
+            out.writeInt(texts.size());
+            for (String text : texts) writeString(out, text);
+        };
+    }
+
+    private static byte[] utf8(String s){
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException{
+        writeBytes(out, utf8(s));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException{
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException{
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException{
+        int n = in.readInt();
+        if (n < 0 || n > MAX_FIELD) throw new IOException("bad cluster field length " + n);
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return b;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// write coalescing settings for one listener. frames that pile up for a connection go out
+// in one gathering write instead of a syscall (and usually a tcp segment) each:
+//   <PREFIX>_COALESCE_MS     how long a writer holds a batch open for more frames. 0 never waits,
+//                            but whatever is already queued still goes out together
+//   <PREFIX>_COALESCE_BYTES  a batch goes out as soon as it reaches this size, 0 = one write per frame
+final class Coalescing{
+    static final int MAX_BUFFERS = 256; // per gathering write, well under IOV_MAX
+
+    // every listener, for the metrics
+    static final List<Coalescing> listeners = new CopyOnWriteArrayList<>();
+
+    final String name;
+    final long windowNanos;
+    final int maxBytes;
+
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    Coalescing(String name, long windowMillis, int maxBytes){
+        this.name = name;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.maxBytes = Math.max(0, maxBytes);
+        listeners.add(this);
+    }
+
+    static Coalescing fromEnv(String prefix){
+        return new Coalescing(prefix.toLowerCase(),
+                Long.parseLong(System.getenv().getOrDefault(prefix + "_COALESCE_MS", "0")),
+                Integer.parseInt(System.getenv().getOrDefault(prefix + "_COALESCE_BYTES", "65536")));
+    }
+
+    // frames that went out on their own: coalescing off, or a history page streamed from the log
+    void wroteAlone(){
+        frames.increment();
+        writes.increment();
+    }
+
+    // frames per write call, 1.0 means no coalescing happened
+    double ratio(){
+        long w = writes.sum();
+        return w == 0 ? 0 : (double) frames.sum() / w;
+    }
+
+    // the ratio of every listener, labeled with its name
+    static void publish(Metrics metrics){
+        metrics.gauge("chat_write_batching_ratio", "frames per socket write call, 1 means no coalescing happened", "listener", () -> {
+            Map<String, Double> ratios = new TreeMap<>();
+            for (Coalescing listener : listeners) ratios.put(listener.name, listener.ratio());
+            return ratios;
+        });
+    }
+
+
+    // frames collected for one connection, only ever touched by that connection's writer
+    static final class Batch{
+        private final Coalescing owner;
+        private final ByteBuffer[] buffers = new ByteBuffer[MAX_BUFFERS];
+        private int first; // buffers before this one are fully written
+        private int count;
+        private long bytes;
+
+        Batch(Coalescing owner){
+            this.owner = owner;
+        }
+
+        boolean isEmpty(){
+            return count == 0;
+        }
+
+        boolean full(){
+            return count == MAX_BUFFERS || bytes >= owner.maxBytes;
+        }
+
+        // false when the frame has to go out after this batch on its own
+        boolean fits(Frame frame){
+            if (!frame.inMemory() || owner.maxBytes == 0 || count + frame.buffers() > MAX_BUFFERS) return false;
+            return count == 0 || bytes + frame.length() <= owner.maxBytes;
+        }
+
+        void add(Frame frame){
+            count = frame.addBuffers(buffers, count);
+            bytes += frame.length();
+            owner.frames.increment();
+        }
+
+        // one gathering write, true once the whole batch is out.
+        // a non blocking channel can take part of it, call again when it is writable
+        boolean write(GatheringByteChannel ch) throws IOException{
+            ch.write(buffers, first, count - first);
+            owner.writes.increment();
+            while (first < count && !buffers[first].hasRemaining()) first++;
+            if (first < count) return false;
+
+            Arrays.fill(buffers, 0, count, null);
+            first = 0;
+            count = 0;
+            bytes = 0;
+            return true;
+        }
+
+        // blocking channels write everything in one call, the loop is only for safety
+        void writeFully(GatheringByteChannel ch) throws IOException{
+            while (!write(ch)) {}
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+// one outbound line, utf-8 encoded exactly once and then shared by every recipient.
+// a history page from the message log is only head bytes + file ranges + tail bytes,
+// the ranges go from the page cache to the socket with transferTo and never enter the heap.
+// a session on a multiplexed connection sends the same frame behind its own "<sid> " prefix
+final class Frame{
+    private static final byte[] NONE = new byte[0];
+
+    private final byte[] prefix;       // empty unless the frame goes to a multiplexed session
+    private final byte[] bytes;        // the whole line, or everything before the file ranges
+    private final FileChannel[] files; // null for a plain line
+    private final long[] positions;
+    private final long[] counts;
+    private final byte[] tail;
+    private final long length;
+
+    private Frame(byte[] bytes){
+        this(NONE, bytes, null, null, null, NONE);
+    }
+
+    private Frame(byte[] prefix, byte[] bytes, FileChannel[] files, long[] positions, long[] counts, byte[] tail){
+        this.prefix = prefix;
+        this.bytes = bytes;
+        this.files = files;
+        this.positions = positions;
+        this.counts = counts;
+        this.tail = tail;
+        long total = prefix.length + bytes.length + tail.length;
+        if (counts != null) {
+            for (long c : counts) total += c;
+        }
+        length = total;
+    }
+
+    // snapshot of a finished line from a reusable writer
+    static Frame copyOf(ChatJson.Writer json){
+        return new Frame(json.toByteArray());
+    }
+
+    // a line that is not json, like the MUX handshake reply
+    static Frame of(byte[] line){
+        return new Frame(line);
+    }
+
+    // the same frame for one session of a multiplexed connection, nothing but the prefix is new
+    Frame withPrefix(byte[] prefix){
+        return new Frame(prefix, bytes, files, positions, counts, tail);
+    }
+
+    // {"history":[ + the page straight from the log files + ],"first":..,"more":..}
+    static Frame history(MessageLog.Replay page, ChatJson.Writer json){
+        byte[] head = json.beginHistory().toByteArray();
+        byte[] tail = json.reset().endHistory(page.first, page.more).toByteArray();
+
+        int n = page.files.size();
+        long[] positions = new long[n];
+        long[] counts = new long[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = page.ranges.get(i)[0];
+            counts[i] = page.ranges.get(i)[1];
+        }
+        return new Frame(NONE, head, page.files.toArray(new FileChannel[0]), positions, counts, tail);
+    }
+
+    long length(){
+        return length;
+    }
+
+    // plain lines can join a gathering write, log backed pages need transferTo
+    boolean inMemory(){
+        return files == null;
+    }
+
+    // buffers a gathering write needs for this frame, 2 with a session prefix
+    int buffers(){
+        return prefix.length == 0 ? 1 : 2;
+    }
+
+    // fresh read-only views per write, the bytes themselves are never copied
+    int addBuffers(ByteBuffer[] into, int at){
+        if (prefix.length > 0) into[at++] = ByteBuffer.wrap(prefix).asReadOnlyBuffer();
+        into[at++] = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        return at;
+    }
+
+    // writes what the channel takes starting at offset and returns the new offset,
+    // a non blocking channel can stop anywhere and the next call picks up from there
+    long writeTo(WritableByteChannel ch, long offset) throws IOException{
+        long partStart = 0;
+        offset = writeBytes(ch, prefix, partStart, offset);
+        partStart += prefix.length;
+        if (offset < partStart) return offset;
+
+        offset = writeBytes(ch, bytes, partStart, offset);
+        partStart += bytes.length;
+        if (offset < partStart) return offset;
+
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                long partEnd = partStart + counts[i];
+                while (offset < partEnd) {
+                    long n = files[i].transferTo(positions[i] + offset - partStart, partEnd - offset, ch);
+                    if (n <= 0) return offset;
+                    offset += n;
+                }
+                partStart = partEnd;
+            }
+        }
+
+        return writeBytes(ch, tail, partStart, offset);
+    }
+
+    // blocking channels, keeps going until the whole line is out
+    void writeFully(WritableByteChannel ch) throws IOException{
+        long done = 0;
+        while (done < length) {
+            long n = writeTo(ch, done);
+            if (n == done) throw new IOException("history segment is shorter than the page");
+            done = n;
+        }
+    }
+
+    private static long writeBytes(WritableByteChannel ch, byte[] part, long partStart, long offset) throws IOException{
+        long partEnd = partStart + part.length;
+        if (offset >= partEnd) return offset;
+        ByteBuffer view = ByteBuffer.wrap(part, (int) (offset - partStart), (int) (partEnd - offset));
+        ch.write(view);
+        return partEnd - view.remaining();
+    }
+}
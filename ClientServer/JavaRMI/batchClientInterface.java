@@ -0,0 +1,11 @@
+import java.rmi.RemoteException;
+import java.util.List;
+
+
+// optional batched delivery. the server checks each client stub for it, clients that only
+// implement clientInterface keep getting one receiveMsg call per message
+public interface batchClientInterface extends clientInterface {
+    // messages for one room in delivery order. seqs[i] is the history sequence number of
+    // messages.get(i), or 0 for join/leave notices that are not kept in history
+    void receiveBatch(String roomName, List<String> messages, long[] seqs) throws RemoteException;
+}
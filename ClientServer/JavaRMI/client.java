@@ -5,7 +5,7 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.Scanner;
 import java.util.List;
 
-public class client implements clientInterface{
+public class client implements batchClientInterface, heartbeatClientInterface{
     private String username;
     private String currRoom = null;
 
@@ -17,6 +17,14 @@ public class client implements clientInterface{
     public void receiveMsg(String roomName, String msg) throws RemoteException{
         System.out.println("[" + roomName + "] " + msg);
     }
+    // bursts from a busy room arrive in one call
+    public void receiveBatch(String roomName, List<String> messages, long[] seqs) throws RemoteException{
+        for (String msg:messages){
+            System.out.println("[" + roomName + "] " + msg);
+        }
+    }
+    public void ping() throws RemoteException{
+    }
     public void receiveHistory(String roomName, List<String> messages) throws RemoteException{
         //System.out.println("[" + roomName + "] " + messages);
         for (String msg:messages){
@@ -0,0 +1,9 @@
+import java.rmi.RemoteException;
+
+
+// optional heartbeat. the server only pings stubs that implement it, clients built against the
+// plain clientInterface are never pinged and are still evicted when a message callback fails
+public interface heartbeatClientInterface extends clientInterface {
+    // called while nothing else is being sent, answering is enough
+    void ping() throws RemoteException;
+}
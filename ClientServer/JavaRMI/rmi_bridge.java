@@ -1,56 +1,299 @@
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 public class rmi_bridge {
-    private static class BridgeClient implements clientInterface {
-        private final PrintWriter writer;
+    // session (default): a platform thread and an exported callback per gateway socket.
+    // mux: sockets run on virtual threads and every room has one exported callback shared by
+    // all local sockets in it, so the rmi server sends each message once per room, not per socket.
+    // a socket that opens with MUX carries many sessions and is served the mux way in either mode
+    static final String MODE = System.getenv().getOrDefault("BRIDGE_MODE", "session").toLowerCase();
+    static final int QUEUE = Integer.parseInt(System.getenv().getOrDefault("BRIDGE_QUEUE_CAPACITY", "1024"));
+
+    // published over jmx and BRIDGE_METRICS_PORT, see common/Metrics.java
+    static final Metrics metrics = new Metrics("bridge");
+    static final Metrics.Counter throttled = metrics.counter("chat_throttled_total", "requests whose reader waited for the socket and user to have tokens again");
+    static final Metrics.Counter rejectedRate = metrics.counter("chat_rejected_rate_total", "requests refused because a multiplexed user was over its rate");
+    static final Metrics.Counter rejectedSize = metrics.counter("chat_rejected_size_total", "messages refused for being longer than LIMIT_MAX_MESSAGE_CHARS");
+    static final Metrics.Counter rejectedRooms = metrics.counter("chat_rejected_rooms_total", "CREATEROOMs the rmi server refused");
+
+    // closes gateway sockets that went dead, BRIDGE_HEARTBEAT_MS, BRIDGE_IDLE_TIMEOUT_MS, BRIDGE_WRITE_TIMEOUT_MS
+    static final Reaper reaper = new Reaper("BRIDGE", metrics);
+
+    private static class BridgeClient implements batchClientInterface, heartbeatClientInterface {
+        private final Socket socket;
+        private final OutputStream out;
+        private final boolean binary; // the socket said BINARY, see common/ChatWire.java
+        private final ChatJson.Writer json;
+        private final ByteArrayOutputStream burst = new ByteArrayOutputStream();
+
+        // the socket as the reaper sees it
+        final Reaper.Peer peer = new Reaper.Peer() {
+            boolean gone() {
+                return socket.isClosed();
+            }
+
+            void ping() {
+                // writes block and the wheel thread must not
+                Thread.ofVirtual().start(() -> {
+                    try {
+                        write(new ChatJson.Writer().line(binary ? ChatWire.PING_FRAME : Reaper.PING));
+                    } catch (RemoteException ignored) {}
+                });
+            }
+
+            void reap(String why) {
+                Log.info("closing dead gateway socket", "socket", socket.getRemoteSocketAddress(), "reason", why);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        };
 
-        BridgeClient(PrintWriter writer) {
-            this.writer = writer;
+        BridgeClient(Socket socket, boolean binary) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+            this.binary = binary;
+            json = new ChatJson.Writer().as(binary);
         }
 
         @Override
-        public synchronized void receiveMsg(String roomName, String msg) {
-            sendJsonMessage(msg);
+        public synchronized void receiveMsg(String roomName, String msg) throws RemoteException {
+            write(json.message(msg == null ? "" : msg));
         }
 
+        // a whole burst becomes one socket write
         @Override
-        public synchronized void receiveHistory(String roomName, List<String> messages) {
-            sendJsonHistory(messages);
+        public synchronized void receiveBatch(String roomName, List<String> messages, long[] seqs) throws RemoteException {
+            burst.reset();
+            try {
+                for (String msg : messages) {
+                    json.message(msg == null ? "" : msg).writeTo(burst);
+                }
+                peer.stuckSince = System.nanoTime();
+                burst.writeTo(out);
+                peer.stuckSince = 0;
+            } catch (IOException e) {
+                throw new RemoteException("bridge socket closed", e);
+            }
+        }
+
+        @Override
+        public synchronized void receiveHistory(String roomName, List<String> messages) throws RemoteException {
+            write(json.history(messages == null ? List.of() : messages));
+        }
+
+        @Override
+        public void ping() {
+        }
+
+        // callbacks and the handler's replies share the socket, so every line goes out under this lock.
+        // a blocking write counts as stuck until it returns, see common/Reaper.java
+        synchronized void write(ChatJson.Writer line) throws RemoteException {
+            try {
+                peer.stuckSince = System.nanoTime();
+                line.writeTo(out);
+                peer.stuckSince = 0;
+            } catch (IOException e) {
+                throw new RemoteException("bridge socket closed", e);
+            }
         }
+    }
 
-        private void sendJsonMessage(String msg) {
-            String safe = msg == null ? "" : msg.replace("\\", "\\\\").replace("\"", "\\\"");
-            writer.println("{\"message\":\"" + safe + "\"}");
-            writer.flush();
+    // one gateway user: turns its request lines into rmi calls. subclasses decide where replies
+    // go and which callback the user joins rooms with
+    private abstract static class BridgeSession {
+        final serverInterface server;
+        private final ChatJson.Request req = new ChatJson.Request();
+        private final ChatJson.Writer reply;
+        private final Limits.Bucket budget; // the socket's, see common/Limits.java
+        private final boolean shared;       // other users' sessions ride the same socket
+        private final Reaper.Peer peer;     // the socket's
+        final boolean binary;               // requests and replies are ChatWire frames
+        String currentRoom = null;
+        String joinedAs = null; // username the current room was joined with
+
+        BridgeSession(serverInterface server, Limits.Bucket budget, boolean shared, Reaper.Peer peer, boolean binary) {
+            this.server = server;
+            this.budget = budget;
+            this.shared = shared;
+            this.peer = peer;
+            this.binary = binary;
+            reply = new ChatJson.Writer().as(binary);
         }
 
-        private void sendJsonHistory(List<String> messages) {
-            if (messages == null) {
-                writer.println("{\"history\":[]}");
-                writer.flush();
+        abstract void write(ChatJson.Writer line) throws IOException;
+
+        // callback the server should deliver this room's messages to
+        abstract clientInterface callbackFor(String room) throws RemoteException;
+
+        // about to join room, before the server can send it anything
+        void joining(String room, String username) {}
+
+        // no longer in room: moved to another one, a failed join, or gone when the socket closed
+        void left(String room, String username, boolean gone) {}
+
+        void handle(byte[] buf, int off, int len) throws IOException {
+            if (!(binary ? ChatWire.parse(req, buf, off, len) : req.parse(buf, off, len))) {
+                write(reply.message("Unknown command"));
+                return;
+            }
+            if (peer.heartbeat(req.arg)) {
+                if (req.arg.equalsIgnoreCase("PING")) write(reply.line(binary ? ChatWire.PONG_FRAME : Reaper.PONG));
                 return;
             }
 
-            StringBuilder sb = new StringBuilder("{\"history\":[");
-            for (int i = 0; i < messages.size(); i++) {
-                if (i > 0) sb.append(",");
-                String safe = messages.get(i) == null ? "" : messages.get(i).replace("\\", "\\\\").replace("\"", "\\\"");
-                sb.append("\"").append(safe).append("\"");
+            String username = req.username;
+            String command = req.arg == null ? "" : req.arg.toUpperCase();
+            String room = req.room;
+            String msg = req.msg;
+
+            double cost = Limits.cost(command);
+            if (cost > 0 && !spend(username, cost)) {
+                rejectedRate.inc();
+                write(reply.message("Slow down!"));
+                return;
+            }
+
+            switch (command) {
+                case "CREATEROOM":
+                    if (room == null || room.isBlank()) {
+                        write(reply.message("Room name required"));
+                        break;
+                    }
+                    try {
+                        server.createRoom(room);
+                    } catch (ServerException e) {
+                        // the server said no, like at LIMIT_MAX_ROOMS, the connection is fine
+                        rejectedRooms.inc();
+                        write(reply.message(e.detail != null ? e.detail.getMessage() : "Room not created"));
+                        break;
+                    }
+                    write(reply.beginMessage().text("Room ").text(room).text(" created!").endMessage());
+                    break;
+
+                case "LISTROOMS":
+                    List<String> rooms = server.listRooms();
+                    write(reply.rooms(rooms == null ? List.of() : rooms));
+                    break;
+
+                case "JOINROOM":
+                    if (room == null || room.isBlank()) {
+                        write(reply.message("Room name required"));
+                        break;
+                    }
+                    if (username == null || username.isBlank()) {
+                        write(reply.message("Username required"));
+                        break;
+                    }
+                    boolean sameRoom = room.equals(currentRoom);
+                    joining(room, username);
+                    List<String> history;
+                    try {
+                        history = server.joinRoom(room, username, callbackFor(room));
+                    } catch (RemoteException e) {
+                        if (!sameRoom) left(room, username, false);
+                        throw e;
+                    }
+                    if (currentRoom != null && !sameRoom) left(currentRoom, joinedAs, false);
+                    if (history != null && req.limit > 0 && history.size() > req.limit) {
+                        // joinRoom already caps at HISTORY_JOIN_LIMIT, a smaller limit is trimmed here
+                        history = history.subList(history.size() - (int) req.limit, history.size());
+                    }
+                    currentRoom = room;
+                    joinedAs = username;
+                    write(reply.beginMessage().text("You joined ").text(room).endMessage());
+                    write(reply.history(history == null ? List.of() : history));
+                    break;
+
+                case "SENDMSG":
+                    if (currentRoom == null || currentRoom.isBlank()) {
+                        write(reply.message("Join a room first!"));
+                        break;
+                    }
+                    if (username == null || username.isBlank()) {
+                        write(reply.message("Username required"));
+                        break;
+                    }
+                    if (msg == null || msg.isBlank()) {
+                        write(reply.message("Message required"));
+                        break;
+                    }
+                    if (msg.length() > Limits.MAX_MESSAGE) {
+                        rejectedSize.inc();
+                        write(reply.message("Message too long"));
+                        break;
+                    }
+                    server.sendMsg(currentRoom, username, msg);
+                    break;
+
+                case "HISTORY":
+                    String paged = room != null ? room : currentRoom;
+                    if (paged == null || paged.isBlank()) {
+                        write(reply.message("Room name required"));
+                        break;
+                    }
+                    write(reply.history(server.history(paged, req.before, (int) Math.min(req.limit, Integer.MAX_VALUE))));
+                    break;
+
+                default:
+                    write(reply.message("Unknown command"));
+                    break;
+            }
+        }
+
+        // takes cost from the socket's bucket and then the user's. short of either the reading thread
+        // sleeps, so a flood backs up into the sender's own tcp window. false when the user ran dry
+        // on a shared socket, where sleeping would stall every other user on it
+        private boolean spend(String username, double cost) throws IOException {
+            boolean waited = false;
+            while (true) {
+                long wait = budget.take(cost);
+                if (wait == 0) {
+                    wait = Limits.user(username).take(cost);
+                    if (wait == 0) return true;
+                    budget.refund(cost);
+                    if (shared) return false;
+                }
+                if (!waited) throttled.inc();
+                waited = true;
+                try {
+                    Thread.sleep(Duration.ofNanos(wait));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while rate limited");
+                }
             }
-            sb.append("]}");
-            writer.println(sb.toString());
-            writer.flush();
+        }
+
+        // the gateway side went away, leave the room now instead of waiting for callbacks to fail
+        void disconnected() {
+            if (currentRoom == null) return;
+            left(currentRoom, joinedAs, true);
         }
     }
 
@@ -66,76 +309,51 @@ public class rmi_bridge {
         @Override
         public void run() {
             BridgeClient callback = null;
-            clientInterface callbackStub = null;
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
-
-                callback = new BridgeClient(writer);
-                callbackStub = (clientInterface) UnicastRemoteObject.exportObject(callback, 0);
-
-                String currentRoom = null;
-
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    Map<String, String> req = parseJson(line);
-
-                    String username = req.get("username");
-                    String command = req.getOrDefault("arg", "").toUpperCase();
-                    String room = req.get("room");
-                    String msg = req.get("msg");
-
-                    switch (command) {
-                        case "CREATEROOM":
-                            if (room == null || room.isBlank()) {
-                                writer.println("{\"message\":\"Room name required\"}");
-                                break;
-                            }
-                            server.createRoom(room);
-                            writer.println("{\"message\":\"Room " + esc(room) + " created!\"}");
-                            break;
-
-                        case "LISTROOMS":
-                            List<String> rooms = server.listRooms();
-                            writer.println(toRoomsJson(rooms));
-                            break;
-
-                        case "JOINROOM":
-                            if (room == null || room.isBlank()) {
-                                writer.println("{\"message\":\"Room name required\"}");
-                                break;
-                            }
-                            if (username == null || username.isBlank()) {
-                                writer.println("{\"message\":\"Username required\"}");
-                                break;
-                            }
-                            List<String> history = server.joinRoom(room, username, callbackStub);
-                            currentRoom = room;
-                            writer.println("{\"message\":\"You joined " + esc(room) + "\"}");
-                            writer.println(toHistoryJson(history));
-                            break;
-
-                        case "SENDMSG":
-                            if (currentRoom == null || currentRoom.isBlank()) {
-                                writer.println("{\"message\":\"Join a room first!\"}");
-                                break;
-                            }
-                            if (username == null || username.isBlank()) {
-                                writer.println("{\"message\":\"Username required\"}");
-                                break;
-                            }
-                            if (msg == null || msg.isBlank()) {
-                                writer.println("{\"message\":\"Message required\"}");
-                                break;
-                            }
-                            server.sendMsg(currentRoom, username, msg);
-                            break;
-
-                        default:
-                            writer.println("{\"message\":\"Unknown command\"}");
-                            break;
+            BridgeSession session = null;
+
+            try {
+                LineReader reader = new LineReader(socket.getInputStream());
+                if (!reader.next()) return;
+                if (isHandshake(reader)) {
+                    // a gateway multiplexing its users, served like mux mode on this thread
+                    new MuxConnection(socket, server).serve(reader, true);
+                    return;
+                }
+
+                boolean binary = ChatWire.isHandshake(reader.buffer(), reader.start(), reader.length());
+                callback = new BridgeClient(socket, binary);
+                BridgeClient out = callback;
+                Reaper.Peer peer = out.peer;
+                clientInterface callbackStub = (clientInterface) UnicastRemoteObject.exportObject(callback, 0);
+
+                reaper.watch(peer);
+                session = new BridgeSession(server, Limits.connection(), false, peer, binary) {
+                    void write(ChatJson.Writer line) throws IOException {
+                        out.write(line);
+                    }
+
+                    clientInterface callbackFor(String room) {
+                        return callbackStub;
+                    }
+
+                    void left(String room, String username, boolean gone) {
+                        if (!gone) return; // joinRoom already moved the user on the server
+                        try {
+                            server.leaveRoom(room, username, callbackStub);
+                        } catch (RemoteException ignored) {}
                     }
+                };
+
+                if (binary) {
+                    // nothing to answer but the handshake, frames from here on
+                    out.write(new ChatJson.Writer().line(ChatWire.ACCEPTED));
+                    reader.frames();
+                    if (!reader.next()) return;
                 }
+                do {
+                    peer.read();
+                    session.handle(reader.buffer(), reader.start(), reader.length());
+                } while (reader.next());
 
             } catch (Exception e) {
                 //dont kill whole bridge if one client fails
@@ -144,6 +362,7 @@ public class rmi_bridge {
                     socket.close();
                 } catch (Exception ignored) {}
 
+                if (session != null) session.disconnected();
                 if (callback != null) {
                     try {
                         UnicastRemoteObject.unexportObject(callback, true);
@@ -151,59 +370,363 @@ public class rmi_bridge {
                 }
             }
         }
+    }
+
+
+    // the one callback the rmi server has for a room, fans each burst out to the local sessions.
+    // used by every socket in mux mode and by multiplexed sockets in either mode
+    private static class RoomChannel implements batchClientInterface, heartbeatClientInterface {
+        private static final Map<String, RoomChannel> channels = new ConcurrentHashMap<>();
+
+        final String room;
+        final clientInterface stub;
+        private final Map<RoomMember, String> members = new ConcurrentHashMap<>(); // local session -> username
+        private final ChatJson.Writer json = new ChatJson.Writer();
+        private final ChatJson.Writer wire = json.as(true);
+        private final ByteArrayOutputStream burst = new ByteArrayOutputStream();
+        private int[] ends = new int[64]; // where each line of the burst ends
+
+        private RoomChannel(String room) throws RemoteException {
+            this.room = room;
+            stub = (clientInterface) UnicastRemoteObject.exportObject(this, 0);
+        }
+
+        // exported once and kept, there is one per room the bridge has ever seen
+        static synchronized RoomChannel of(String room) throws RemoteException {
+            RoomChannel channel = channels.get(room);
+            if (channel == null) {
+                channel = new RoomChannel(room);
+                channels.put(room, channel);
+            }
+            return channel;
+        }
+
+        void enter(RoomMember member, String username) {
+            members.put(member, username);
+        }
+
+        // true when that was the last local session of this user in the room
+        boolean exit(RoomMember member, String username) {
+            members.remove(member, username);
+            return !members.containsValue(username);
+        }
+
+        @Override
+        public synchronized void receiveMsg(String roomName, String msg) {
+            byte[] line = json.message(msg == null ? "" : msg).toByteArray();
+            ends[0] = line.length;
+            fanOut(line, 1, () -> wire.message(msg == null ? "" : msg).toByteArray());
+        }
+
+        // the burst is encoded once and the same bytes are queued for every local session
+        @Override
+        public synchronized void receiveBatch(String roomName, List<String> messages, long[] seqs) {
+            burst.reset();
+            if (ends.length < messages.size()) ends = new int[messages.size()];
+            int lines = 0;
+            for (String msg : messages) {
+                ChatJson.Writer line = json.message(msg == null ? "" : msg);
+                burst.write(line.array(), 0, line.length());
+                ends[lines++] = burst.size();
+            }
+            fanOut(burst.toByteArray(), lines, () -> {
+                burst.reset();
+                for (String msg : messages) {
+                    ChatJson.Writer frame = wire.message(msg == null ? "" : msg);
+                    burst.write(frame.array(), 0, frame.length());
+                }
+                return burst.toByteArray();
+            });
+        }
+
+        @Override
+        public synchronized void receiveHistory(String roomName, List<String> messages) {
+            byte[] line = json.history(messages == null ? List.of() : messages).toByteArray();
+            ends[0] = line.length;
+            fanOut(line, 1, () -> wire.history(messages == null ? List.of() : messages).toByteArray());
+        }
+
+        @Override
+        public void ping() {
+        }
+
+        // binary sockets get the same burst as frames, encoded once when the first one comes up.
+        // they are never multiplexed, so ends are not needed for them
+        private void fanOut(byte[] bytes, int lines, Supplier<byte[]> binary) {
+            byte[] frames = null;
+            for (RoomMember member : members.keySet()) {
+                if (member.binary) {
+                    if (frames == null) frames = binary.get();
+                    member.deliver(frames, null, 0);
+                } else {
+                    member.deliver(bytes, ends, lines);
+                }
+            }
+        }
+    }
+
+    // one user session on a MuxConnection, it has no thread or socket of its own
+    private static class RoomMember extends BridgeSession {
+        private final MuxConnection connection;
+        private final byte[] prefix; // "<sid> " on a multiplexed socket, null on a plain one
+        private final int[] oneLine = new int[1];
+
+        RoomMember(MuxConnection connection, byte[] prefix, boolean binary) {
+            super(connection.server, connection.budget, prefix != null, connection.peer, binary);
+            this.connection = connection;
+            this.prefix = prefix;
+        }
+
+        // replies, only the reading thread calls this
+        void write(ChatJson.Writer line) {
+            byte[] bytes = line.toByteArray();
+            oneLine[0] = bytes.length;
+            deliver(bytes, oneLine, 1);
+        }
+
+        // bytes holds lines ending at ends[0..lines) and is shared, so it is queued as is
+        // or, for a multiplexed session, copied with the prefix in front of each line
+        void deliver(byte[] bytes, int[] ends, int lines) {
+            if (prefix == null) {
+                connection.send(bytes);
+                return;
+            }
+            byte[] framed = new byte[ends[lines - 1] + lines * prefix.length];
+            int from = 0;
+            int at = 0;
+            for (int i = 0; i < lines; i++) {
+                System.arraycopy(prefix, 0, framed, at, prefix.length);
+                at += prefix.length;
+                System.arraycopy(bytes, from, framed, at, ends[i] - from);
+                at += ends[i] - from;
+                from = ends[i];
+            }
+            connection.send(framed);
+        }
+
+        clientInterface callbackFor(String room) throws RemoteException {
+            return RoomChannel.of(room).stub;
+        }
+
+        // added before joinRoom so nothing sent right after the join is missed
+        void joining(String room, String username) {
+            try {
+                RoomChannel.of(room).enter(this, username);
+            } catch (RemoteException e) {
+                Log.warn("couldnt export room callback", "room", room, "error", e.getMessage());
+            }
+        }
+
+        // the server only hears about it when the last local session of that user in the room is gone,
+        // switching rooms already moved the user over there
+        void left(String room, String username, boolean gone) {
+            RoomChannel channel = RoomChannel.channels.get(room);
+            if (channel == null || !channel.exit(this, username) || !gone) return;
+            try {
+                server.leaveRoom(room, username, channel.stub);
+            } catch (RemoteException ignored) {}
+        }
+    }
 
-        private static String toRoomsJson(List<String> rooms) {
-            if (rooms == null) return "{\"rooms\":[]}";
-            StringBuilder sb = new StringBuilder("{\"rooms\":[");
-            for (int i = 0; i < rooms.size(); i++) {
-                if (i > 0) sb.append(",");
-                sb.append("\"").append(esc(rooms.get(i))).append("\"");
+    // one gateway socket carrying one session, or many when its first line is MUX. after the
+    // handshake every line both ways is "<sid> <json>", a new sid starts a session and
+    // "<sid> CLOSE" ends one (the bridge sends it too when a session's rmi call failed).
+    // a one session socket can say BINARY instead and use ChatWire frames.
+    // replies and room traffic go through a bounded queue drained by a virtual writer,
+    // so a slow socket never holds up a room
+    private static class MuxConnection implements Runnable {
+        private static final byte[] ACCEPTED = "MUX\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final Socket socket;
+        final serverInterface server;
+        private final ArrayBlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(QUEUE);
+        private final Map<Long, RoomMember> sessions = new HashMap<>(); // reader thread only
+        private final ChatJson.Request bare = new ChatJson.Request(); // lines without a session id
+        final Limits.Bucket budget = Limits.connection(); // shared by every session on the socket
+        private volatile boolean binary; // a plain socket that said BINARY
+
+        // the socket as the reaper sees it
+        final Reaper.Peer peer = new Reaper.Peer() {
+            boolean gone() {
+                return socket.isClosed();
             }
-            sb.append("]}");
-            return sb.toString();
+
+            void ping() {
+                send(binary ? ChatWire.PING_FRAME : Reaper.PING);
+            }
+
+            void reap(String why) {
+                Log.info("closing dead gateway socket", "socket", socket.getRemoteSocketAddress(), "reason", why);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        };
+
+        MuxConnection(Socket socket, serverInterface server) {
+            this.socket = socket;
+            this.server = server;
         }
 
-        private static String toHistoryJson(List<String> history) {
-            if (history == null) return "{\"history\":[]}";
-            StringBuilder sb = new StringBuilder("{\"history\":[");
-            for (int i = 0; i < history.size(); i++) {
-                if (i > 0) sb.append(",");
-                sb.append("\"").append(esc(history.get(i))).append("\"");
+        // never blocks, a full queue drops its oldest line
+        void send(byte[] bytes) {
+            while (!outbound.offer(bytes)) {
+                outbound.poll();
             }
-            sb.append("]}");
-            return sb.toString();
         }
 
-        private static String esc(String s) {
-            if (s == null) return "";
-            return s.replace("\\", "\\\\").replace("\"", "\\\"");
+        @Override
+        public void run() {
+            try {
+                LineReader reader = new LineReader(socket.getInputStream());
+                if (reader.next()) {
+                    serve(reader, isHandshake(reader));
+                }
+            } catch (IOException e) {
+            } finally {
+                try {
+                    socket.close();
+                } catch (Exception ignored) {}
+            }
         }
 
-        private static Map<String, String> parseJson(String json) {
-            Map<String, String> map = new HashMap<>();
+        // the reader is on the first line, which was the MUX handshake when framed
+        void serve(LineReader reader, boolean framed) {
+            Thread writer = null;
             try {
-                String body = json.trim();
-                if (body.startsWith("{") && body.endsWith("}")) {
-                    body = body.substring(1, body.length() - 1);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+                writer = Thread.ofVirtual().name("bridge-writer-" + socket.getPort()).start(() -> drain(out));
+                reaper.watch(peer);
+
+                if (framed) {
+                    send(ACCEPTED);
+                    while (reader.next()) {
+                        peer.read();
+                        dispatch(reader.buffer(), reader.start(), reader.length());
+                    }
+                } else {
+                    binary = ChatWire.isHandshake(reader.buffer(), reader.start(), reader.length());
+                    RoomMember only = new RoomMember(this, null, binary);
+                    sessions.put(0L, only);
+                    if (binary) {
+                        send(ChatWire.ACCEPTED);
+                        reader.frames();
+                        if (!reader.next()) return;
+                    }
+                    do {
+                        peer.read();
+                        only.handle(reader.buffer(), reader.start(), reader.length());
+                    } while (reader.next());
                 }
+            } catch (Exception e) {
+                //dont kill whole bridge if one client fails
+            } finally {
+                try {
+                    socket.close();
+                } catch (Exception ignored) {}
+                if (writer != null) writer.interrupt();
+                for (RoomMember session : sessions.values()) {
+                    session.disconnected();
+                }
+            }
+        }
+
+        // "<sid> <json>" or "<sid> CLOSE". a line without a session id is a PING or PONG for
+        // the socket itself, or ignored
+        private void dispatch(byte[] buf, int off, int len) {
+            int end = off + len;
+            int i = off;
+            long sid = 0;
+            while (i < end && buf[i] >= '0' && buf[i] <= '9' && i - off < 18) {
+                sid = sid * 10 + (buf[i++] - '0');
+            }
+            if (i == off || i == end || buf[i] != ' ') {
+                if (bare.parse(buf, off, len) && peer.heartbeat(bare.arg) && bare.arg.equalsIgnoreCase("PING")) send(Reaper.PONG);
+                return;
+            }
+            i++;
+
+            if (end - i == 5 && new String(buf, i, 5, StandardCharsets.US_ASCII).equals("CLOSE")) {
+                RoomMember gone = sessions.remove(sid);
+                if (gone != null) gone.disconnected();
+                return;
+            }
+            RoomMember session = sessions.get(sid);
+            if (session == null) {
+                session = new RoomMember(this, (sid + " ").getBytes(StandardCharsets.US_ASCII), false);
+                sessions.put(sid, session);
+            }
+            try {
+                session.handle(buf, i, end - i);
+            } catch (IOException e) {
+                // a plain socket would be dropped here, only this session is
+                Log.info("closing session", "sid", sid, "error", e.getMessage());
+                sessions.remove(sid);
+                session.disconnected();
+                send((sid + " CLOSE\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
 
-                String[] pairs = body.split(",");
-                for (String pair : pairs) {
-                    String[] kv = pair.split(":", 2);
-                    if (kv.length != 2) continue;
-                    String key = kv[0].trim().replace("\"", "");
-                    String value = kv[1].trim();
-                    if (value.startsWith("\"") && value.endsWith("\"")) {
-                        value = value.substring(1, value.length() - 1);
-                    }
-                    value = value.replace("\\\"", "\"").replace("\\\\", "\\");
-                    map.put(key, value);
+        // everything queued since the last write goes out together
+        private void drain(OutputStream out) {
+            try {
+                while (true) {
+                    byte[] first = outbound.take();
+                    peer.stuckSince = System.nanoTime(); // until the writes return, see common/Reaper.java
+                    out.write(first);
+                    byte[] more;
+                    while ((more = outbound.poll()) != null) {
+                        out.write(more);
+                    }
+                    out.flush();
+                    peer.stuckSince = 0;
                 }
-            } catch (Exception ignored) {}
-            return map;
+            } catch (InterruptedException | IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
         }
     }
 
+    // the rmi server comes back from a restart with a new stub, and with SNAPSHOT_DIR its rooms
+    // and members too, so the bridge's sessions carry on. a call that failed before reaching the
+    // server looks it up again and is retried every 100ms for up to BRIDGE_RECONNECT_MS, any other
+    // failure is the server's answer and goes to the caller as before
+    static final long RECONNECT_MS = Long.parseLong(System.getenv().getOrDefault("BRIDGE_RECONNECT_MS", "5000"));
+
+    static serverInterface reconnecting(Registry registry, serverInterface first) {
+        AtomicReference<serverInterface> current = new AtomicReference<>(first);
+        InvocationHandler handler = (proxy, method, args) -> {
+            long deadline = System.nanoTime() + RECONNECT_MS * 1_000_000;
+            while (true) {
+                serverInterface target = current.get();
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    // nothing ran on the server for these, sending the call again is safe
+                    boolean unreached = cause instanceof ConnectException || cause instanceof ConnectIOException
+                            || cause instanceof NoSuchObjectException;
+                    if (!unreached || System.nanoTime() > deadline) throw cause;
+                }
+                Thread.sleep(100);
+                try {
+                    serverInterface fresh = (serverInterface) registry.lookup("ChatServer");
+                    if (!fresh.equals(target) && current.compareAndSet(target, fresh)) Log.info("rmi server reconnected");
+                } catch (RemoteException | NotBoundException e) {
+                    // still restarting, try again
+                }
+            }
+        };
+        return (serverInterface) Proxy.newProxyInstance(serverInterface.class.getClassLoader(),
+                new Class<?>[]{serverInterface.class}, handler);
+    }
+
+    private static boolean isHandshake(LineReader reader) {
+        return reader.length() == 3 && new String(reader.buffer(), reader.start(), 3, StandardCharsets.US_ASCII).equals("MUX");
+    }
+
     public static void main(String[] args) {
         try {
             String rmiHost = System.getenv("RMI_HOST");
@@ -213,17 +736,26 @@ public class rmi_bridge {
             int bridgePort = Integer.parseInt(System.getenv().getOrDefault("BRIDGE_PORT", "8201"));
 
             Registry registry = LocateRegistry.getRegistry(rmiHost, rmiPort);
-            serverInterface server = (serverInterface) registry.lookup("ChatServer");
+            serverInterface server = reconnecting(registry, (serverInterface) registry.lookup("ChatServer"));
 
             ServerSocket serverSocket = new ServerSocket(bridgePort);
-            System.out.println("RMI bridge listening on " + bridgePort + ", target=" + rmiHost + ":" + rmiPort);
+            Log.info("rmi bridge listening", "port", bridgePort, "target", rmiHost + ":" + rmiPort, "mode", MODE);
+            metrics.serve("BRIDGE");
+
+            if (MODE.equals("mux")) {
+                Thread.Builder threads = Thread.ofVirtual().name("bridge-", 0);
+                while (true) {
+                    Socket client = serverSocket.accept();
+                    threads.start(new MuxConnection(client, server));
+                }
+            }
 
             while (true) {
                 Socket client = serverSocket.accept();
                 new ClientHandler(client, server).start();
             }
         } catch (Exception e) {
-            System.out.println("Bridge failed: " + e.getMessage());
+            Log.error("bridge failed", "error", e.getMessage());
         }
     }
 }
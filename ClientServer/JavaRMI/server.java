@@ -1,25 +1,185 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
-import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class server implements serverInterface{
 
+    // membership changes and appends lock only their own room, callbacks never run under a lock
     private static class Room{
-        List<String> messages = new ArrayList<>();
-        Map<String, clientInterface> clients = new HashMap<>();
+        final String name;
+        final RoomHistory messages;
+        // interned username -> its callback, room lock
+        final IntMap<clientInterface> clients = new IntMap<>();
+        // members whose username got no id once the interner was full, room lock
+        final Map<String, clientInterface> strays = new HashMap<>();
+        // distinct callback stubs and how many members use each. a multiplexed bridge joins all
+        // its users with one stub per room, so it gets every message once. room lock only
+        final Map<clientInterface, Integer> listeners = new HashMap<>();
+
+        Room(String name, RoomHistory messages){
+            this.name = name;
+            this.messages = messages;
+        }
+
+        void add(String username, clientInterface client){
+            int user = Interner.USERS.id(username);
+            clientInterface previous = user < 0 ? strays.put(username, client) : clients.put(user, client);
+            if (previous != null) unlisten(previous);
+            if (listeners.merge(client, 1, Integer::sum) == 1) stubs.merge(client, 1, Integer::sum);
+        }
+
+        clientInterface get(String username){
+            int user = Interner.USERS.id(username);
+            return user < 0 ? strays.get(username) : clients.get(user);
+        }
 
+        boolean remove(String username, clientInterface client){
+            if (!client.equals(get(username))) return false;
+            int user = Interner.USERS.id(username);
+            if (user < 0) strays.remove(username);
+            else clients.remove(user);
+            unlisten(client);
+            return true;
+        }
+
+        // every member by username, room lock
+        void forEach(BiConsumer<String, clientInterface> action){
+            clients.forEach((user, client) -> action.accept(Interner.USERS.name(user), client));
+            strays.forEach(action);
+        }
+
+        int size(){
+            return clients.size() + strays.size();
+        }
+
+        private void unlisten(clientInterface client){
+            if (!listeners.containsKey(client)) return;
+            if (listeners.computeIfPresent(client, (c, n) -> n == 1 ? null : n - 1) == null) {
+                stubs.computeIfPresent(client, (c, n) -> n == 1 ? null : n - 1); // no longer in this room
+            }
+        }
     }
 
+    // distinct stubs and how many rooms each listens in, for the heartbeat
+    private static final Map<clientInterface, Integer> stubs = new ConcurrentHashMap<>();
 
 
 
-    private Map<String, Room> rooms = new HashMap<>();
-    private Map<String, String> userRoom = new HashMap<>(); //maps usernames to their curr room
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Map<String, String> userRoom = new ConcurrentHashMap<>(); //maps usernames to their curr room
+
+    // on disk history when HISTORY_LOG_DIR is set, otherwise null and rooms keep their history in memory
+    private final MessageLog log = MessageLog.open("rmi");
+
+    // published over jmx and RMI_METRICS_PORT, see common/Metrics.java
+    private final Metrics metrics = new Metrics("rmi");
+    private final Metrics.Counter messagesIn = metrics.counter("chat_messages_in_total", "sendMsg calls accepted");
+    private final Metrics.Counter droppedClients = metrics.counter("chat_dropped_clients_total", "clients evicted because their callbacks kept failing");
+    private final Metrics.Histogram fanout = metrics.histogram("chat_fanout_seconds", "one broadcast, queueing the callback for every distinct stub in the room");
+    private final Metrics.Counter rejectedSize = metrics.counter("chat_rejected_size_total", "messages refused for being longer than LIMIT_MAX_MESSAGE_CHARS");
+    private final Metrics.Counter rejectedRooms = metrics.counter("chat_rejected_rooms_total", "createRooms refused because LIMIT_MAX_ROOMS rooms exist");
+
+    private final CallbackDispatcher callbacks = new CallbackDispatcher(this::evict, metrics);
+
+    // every stub in a room that implements heartbeatClientInterface is pinged through its mailbox
+    // every RMI_HEARTBEAT_MS while it has no callbacks going, so a client that vanished from a quiet
+    // room fails and is evicted like any other. older stubs are only tested by their callbacks
+    static final long HEARTBEAT_MS = Long.parseLong(System.getenv().getOrDefault("RMI_HEARTBEAT_MS", "15000"));
+    private final TimingWheel wheel = new TimingWheel("rmi-heartbeat", 100, 512);
+    private final Set<clientInterface> watched = ConcurrentHashMap.newKeySet(); // one timer each
+
+    server(){
+        if (log != null) {
+            log.recovered().forEach((name, history) -> rooms.put(name, new Room(name, history)));
+        }
+        Snapshot snapshot = Snapshot.open("rmi");
+        if (snapshot != null) restore(snapshot);
+    }
+
+    // SNAPSHOT_DIR: rooms, history and members of the last snapshot come back. the members' stubs
+    // still reach the clients that exported them, so a client that kept running through the
+    // restart keeps getting its callbacks, and one that went away meanwhile fails its heartbeat
+    private void restore(Snapshot snapshot){
+        Snapshot.Restored restored = snapshot.load();
+        restored.rooms.forEach((name, history) -> rooms.put(name, new Room(name, history)));
+        if (restored.extra.hasRemaining()) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(restored.extra.array()))) {
+                for (int r = in.readInt(); r > 0; r--) {
+                    Room room = rooms.get(in.readUTF());
+                    for (int m = in.readInt(); m > 0; m--) {
+                        String username = in.readUTF();
+                        clientInterface client = (clientInterface) in.readObject();
+                        if (room == null) continue;
+                        room.add(username, client);
+                        userRoom.put(username, room.name);
+                        watch(client);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                Log.error("snapshot members unreadable, rooms come back empty", "error", e);
+            }
+        }
+        snapshot.start(() -> {
+            Map<String, RoomHistory> histories = new LinkedHashMap<>();
+            rooms.forEach((name, room) -> histories.put(name, room.messages));
+            return histories;
+        }, this::members);
+    }
+
+    // the snapshot's extra bytes: int rooms, each its name, int members and each member's username
+    // and stub, java serialized. a stub shared by many members (a multiplexed bridge) is written once
+    private byte[] members(){
+        Map<String, List<Object>> members = new LinkedHashMap<>();
+        for (Room room : rooms.values()) {
+            List<Object> list = new ArrayList<>();
+            synchronized (room) {
+                room.forEach((username, client) -> {
+                    list.add(username);
+                    list.add(client);
+                });
+            }
+            if (!list.isEmpty()) members.put(room.name, list);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeInt(members.size());
+            for (Map.Entry<String, List<Object>> room : members.entrySet()) {
+                out.writeUTF(room.getKey());
+                out.writeInt(room.getValue().size() / 2);
+                for (int i = 0; i < room.getValue().size(); i += 2) {
+                    out.writeUTF((String) room.getValue().get(i));
+                    out.writeObject(room.getValue().get(i + 1));
+                }
+            }
+        } catch (IOException e) {
+            Log.error("snapshot members not written", "error", e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
 
     // Interface implementation !!!!
 
@@ -27,50 +187,104 @@ public class server implements serverInterface{
 
 
 
-    public synchronized void createRoom(String roomName) throws RemoteException{
-        rooms.putIfAbsent(roomName, new Room());
-        System.out.println("Room created !!");
+    public void createRoom(String roomName) throws RemoteException{
+        // a cap against floods, creates racing past the check can overshoot it by a few
+        if (!rooms.containsKey(roomName) && rooms.size() >= Limits.MAX_ROOMS) {
+            rejectedRooms.inc();
+            throw new RemoteException("Room limit reached");
+        }
+        rooms.computeIfAbsent(roomName, n -> new Room(n, log == null ? RoomHistory.inMemory(1) : log.create(n)));
+        Log.info("room created", "room", roomName);
     }
 
-    public synchronized List<String> joinRoom(String roomName, String username, clientInterface client) throws RemoteException{
-        if(! rooms.containsKey(roomName)){
+    public List<String> joinRoom(String roomName, String username, clientInterface client) throws RemoteException{
+        Room room = rooms.get(roomName);
+        if(room == null){
             throw new RemoteException("room doesnt exist");
         }
 
         //leave old room
-        String oldRoom = userRoom.get(username);
-        if(oldRoom != null && rooms.containsKey(oldRoom)){
-            rooms.get(oldRoom).clients.remove(username);
-            broadcast(oldRoom,username+ "has left");
+        String oldRoom = userRoom.put(username, roomName);
+        Room old = oldRoom == null ? null : rooms.get(oldRoom);
+        if(old != null){
+            synchronized (old) {
+                clientInterface previous = old.get(username);
+                if (previous != null) old.remove(username, previous);
+                broadcast(old, username+ "has left");
+            }
         }
 
-        //join new room
-        Room room = rooms.get(roomName);
-        room.clients.put(username,client);
-        userRoom.put(username, roomName);
-
-        List<String> history = new ArrayList<>(room.messages);
-        broadcast(roomName, username +" has joined");
+        //join new room. the history snapshot and the membership change happen under the room lock,
+        //so the joiner gets every later message exactly once
+        synchronized (room) {
+            room.add(username, client);
+            watch(client);
+            List<String> history = replay(room, Long.MAX_VALUE, HistoryRing.JOIN_LIMIT, true).messages;
+            broadcast(room, username +" has joined");
+            return history;
+        }
+    }
 
-        return history;
+    public void leaveRoom(String roomName, String username, clientInterface client) throws RemoteException{
+        Room room = rooms.get(roomName);
+        if (room == null) return;
+        synchronized (room) {
+            // only if the user is still there with this callback, not rejoined from somewhere else
+            if (room.remove(username, client)) {
+                userRoom.remove(username, roomName);
+                broadcast(room, username + " has left");
+            }
+        }
+    }
 
+    public HistoryRing.Page history(String roomName, long before, int limit) throws RemoteException{
+        Room room = rooms.get(roomName);
+        if (room == null){
+            throw new RemoteException("room doesnt exist");
+        }
+        return replay(room, before > 0 ? before : Long.MAX_VALUE, limit > 0 ? limit : HistoryRing.JOIN_LIMIT, false);
+    }
 
+    private HistoryRing.Page replay(Room room, long before, int limit, boolean join){
+        ChatEvents.HistoryReplay event = new ChatEvents.HistoryReplay();
+        event.begin();
+        HistoryRing.Page page = room.messages.before(before, limit);
+        if (event.shouldCommit()) {
+            long chars = 0;
+            for (String m : page.messages) chars += m.length();
+            event.room = room.name;
+            event.join = join;
+            event.limit = limit;
+            event.messages = page.messages.size();
+            event.bytes = chars;
+            event.commit();
+        }
+        return page;
     }
 
-    public synchronized List<String> listRooms() throws RemoteException{
+    public List<String> listRooms() throws RemoteException{
         return new ArrayList<>(rooms.keySet());
     }
-    public synchronized String sendMsg(String roomName, String username, String msg) throws RemoteException{
+    public String sendMsg(String roomName, String username, String msg) throws RemoteException{
         Room room = rooms.get(roomName);
         if (room == null){
-            System.out.println("room doesnt exist");
+            if (Log.DEBUG) Log.debug("sendMsg to a missing room", "room", roomName, "user", username);
+            throw new RemoteException("room doesnt exist");
+        }
+        if (msg != null && msg.length() > Limits.MAX_MESSAGE) {
+            rejectedSize.inc();
+            throw new RemoteException("message too long");
         }
         String message = username +": "+ msg;
-        room.messages.add(message);
-        broadcast(roomName,message);    //call receive message for eveyr client in the room
+        synchronized (room) {
+            // one lock per room keeps history order and delivery order the same
+            long seq = room.messages.append(message);
+            broadcast(room, message, seq);    //call receive message for eveyr client in the room
+        }
 
-        
-        System.out.println("Received: "+msg);
+
+        messagesIn.inc();
+        if (Log.DEBUG) Log.debug("received", "room", roomName, "user", username, "msg", msg);
         return "a";
     }
 
@@ -78,13 +292,83 @@ public class server implements serverInterface{
 
 
 /////
-    private void broadcast(String roomName, String msg){
-        Room room = rooms.get(roomName);
-        for (clientInterface client: new ArrayList<>(room.clients.values())){
-            try{
-                client.receiveMsg(roomName, msg);
-            }catch(Exception e){
-                System.out.println("COudlnt broadcast msg");
+    // only queues the callbacks, the caller holds the room lock so every member sees the same order
+    private void broadcast(Room room, String msg){
+        broadcast(room, msg, 0); // join/leave notices have no history seq
+    }
+
+    private void broadcast(Room room, String msg, long seq){
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        long start = System.nanoTime();
+        for (clientInterface client: room.listeners.keySet()){
+            callbacks.send(client, room.name, msg, seq);
+        }
+        fanout.record(System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.room = room.name;
+            event.members = room.listeners.size();
+            event.bytes = msg.length();
+            event.commit();
+        }
+    }
+
+    // gauges read the rooms on every scrape, then jmx and the http endpoint go up
+    private void publishMetrics(){
+        metrics.gauge("chat_connections", "distinct callback stubs across rooms", () -> {
+            long stubs = 0;
+            for (Room room : rooms.values()) {
+                synchronized (room) {
+                    stubs += room.listeners.size();
+                }
+            }
+            return stubs;
+        });
+        metrics.gauge("chat_rooms", "rooms", () -> rooms.size());
+        metrics.gauge("chat_room_members", "users in each room", "room", () -> {
+            Map<String, Integer> counts = new TreeMap<>();
+            rooms.forEach((name, room) -> {
+                synchronized (room) {
+                    counts.put(name, room.size());
+                }
+            });
+            return counts;
+        });
+        TieredHistory.publish(metrics, () -> rooms.values().stream().map(room -> room.messages).toList());
+        metrics.serve("RMI");
+    }
+
+    // starts the heartbeat timer of a stub that can answer pings, once per stub
+    private void watch(clientInterface client){
+        if (HEARTBEAT_MS > 0 && client instanceof heartbeatClientInterface && watched.add(client)) {
+            wheel.schedule(() -> heartbeat(client), HEARTBEAT_MS);
+        }
+    }
+
+    // on the wheel thread. a stub that left every room loses its timer, unless it joined again
+    // in between and the join kept it
+    private void heartbeat(clientInterface client){
+        watched.remove(client);
+        if (!stubs.containsKey(client) || !watched.add(client)) return;
+        callbacks.ping(client);
+        wheel.schedule(() -> heartbeat(client), HEARTBEAT_MS);
+    }
+
+    // a client stopped answering callbacks, drop it from whatever room it is in
+    private void evict(clientInterface client){
+        for (Room room : rooms.values()) {
+            synchronized (room) {
+                List<String> gone = new ArrayList<>();
+                room.forEach((username, member) -> {
+                    if (member.equals(client)) gone.add(username);
+                });
+                for (String username : gone) {
+                    room.remove(username, client);
+                    userRoom.remove(username, room.name);
+                    droppedClients.inc();
+                    Log.info("evicted unreachable client", "user", username, "room", room.name);
+                    broadcast(room, username + " has left");
+                }
             }
         }
     }
@@ -94,23 +378,253 @@ public class server implements serverInterface{
     public static void main(String[] args){
 
         try{
+            // a callback to a client that stopped answering gives up after this long instead of the rmi default
+            String timeout = String.valueOf(CallbackDispatcher.TIMEOUT_MS);
+            if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+                System.setProperty("sun.rmi.transport.tcp.responseTimeout", timeout);
+            }
+            if (System.getProperty("sun.rmi.transport.proxy.connectTimeout") == null) {
+                System.setProperty("sun.rmi.transport.proxy.connectTimeout", timeout);
+            }
+
             server obj = new server();
             serverInterface stub = (serverInterface) UnicastRemoteObject.exportObject(obj, 0);
 
             Registry registry = LocateRegistry.createRegistry(8101);
             registry.rebind("ChatServer", stub);
 
-            System.out.println("Server Running !!!");
+            obj.publishMetrics();
+            Log.info("server running", "port", 8101);
+            Training.start("rmi", () -> train(registry));
+
+
+
+
+
+
+
+        }catch(Exception e){
+            Log.error("server failed", "error", e);
+        }
+
+
+    }
+
+    // CDS_TRAINING: a client of its own through the registry, making every call once
+    private static void train(Registry registry) throws Exception{
+        serverInterface server = (serverInterface) registry.lookup("ChatServer");
+        CountDownLatch delivered = new CountDownLatch(21); // the join notice and 20 messages
+        class TrainingClient implements batchClientInterface, heartbeatClientInterface{
+            public void receiveMsg(String roomName, String msg){
+                delivered.countDown();
+            }
+            public void receiveHistory(String roomName, List<String> messages){}
+            public void ping(){}
+            public void receiveBatch(String roomName, List<String> messages, long[] seqs){
+                for (int i = 0; i < messages.size(); i++) delivered.countDown();
+            }
+        }
+        TrainingClient client = new TrainingClient();
+        clientInterface stub = (clientInterface) UnicastRemoteObject.exportObject(client, 0);
+        server.createRoom("training");
+        server.joinRoom("training", "train", stub);
+        for (int i = 0; i < 20; i++) server.sendMsg("training", "train", "m\u00e9ssage " + i);
+        server.history("training", 10, 5);
+        server.listRooms();
+        if (!delivered.await(5, TimeUnit.SECONDS)) throw new IllegalStateException("callbacks never arrived");
+        server.leaveRoom("training", "train", stub);
+        UnicastRemoteObject.unexportObject(client, true);
+    }
+
+}
 
 
+// runs client callbacks off the rmi call threads. every client stub gets a mailbox drained by
+// at most one pool thread at a time, so a client sees its messages in order and a slow one only
+// holds up itself. whatever piles up while a call is in flight goes out as one receiveBatch per
+// room to clients that implement batchClientInterface, older clients get one receiveMsg each.
+// a stub that fails RMI_CALLBACK_FAILURES calls in a row is handed to onDead
+class CallbackDispatcher{
+    static final long TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("RMI_CALLBACK_TIMEOUT_MS", "5000"));
+    static final int MAX_FAILURES = Integer.parseInt(System.getenv().getOrDefault("RMI_CALLBACK_FAILURES", "2"));
+    static final int QUEUE = Integer.parseInt(System.getenv().getOrDefault("RMI_CALLBACK_QUEUE", "1024"));
+    static final int BATCH = Integer.parseInt(System.getenv().getOrDefault("RMI_CALLBACK_BATCH", "256"));
+
+    private static final class Pending{
+        final String room;
+        final String text;
+        final long seq;
+        final long queuedAt = System.nanoTime();
+
+        Pending(String room, String text, long seq){
+            this.room = room;
+            this.text = text;
+            this.seq = seq;
+        }
+    }
 
+    private final Map<clientInterface, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final Consumer<clientInterface> onDead;
+    private final AtomicInteger threadIds = new AtomicInteger();
+    // cached platform threads: an rmi call can block for the whole timeout, only that mailbox waits
+    private final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "rmi-callback-" + threadIds.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Metrics.Counter delivered;
+    private final Metrics.Counter dropped;
+    private final Metrics.Counter pings;
+    private final Metrics.Histogram latency;
+
+    CallbackDispatcher(Consumer<clientInterface> onDead, Metrics metrics){
+        this.onDead = onDead;
+        delivered = metrics.counter("chat_messages_out_total", "messages delivered by callbacks");
+        dropped = metrics.counter("chat_dropped_callbacks_total", "messages dropped because a client's mailbox was full");
+        pings = metrics.counter("chat_heartbeat_pings_total", "ping callbacks to stubs that had nothing else going");
+        latency = metrics.histogram("chat_callback_seconds", "from queueing a message to its callback returning");
+        metrics.gauge("chat_queue_depth", "messages waiting in all callback mailboxes", () -> {
+            long total = 0;
+            for (Mailbox box : mailboxes.values()) total += box.depth();
+            return total;
+        });
+        metrics.gauge("chat_queue_depth_max", "messages waiting in the fullest callback mailbox", () -> {
+            int max = 0;
+            for (Mailbox box : mailboxes.values()) max = Math.max(max, box.depth());
+            return max;
+        });
+    }
 
+    // never blocks, a full mailbox drops its oldest message
+    void send(clientInterface client, String room, String text, long seq){
+        Pending message = new Pending(room, text, seq);
+        Mailbox box;
+        do {
+            box = mailboxes.computeIfAbsent(client, Mailbox::new);
+        } while (!box.offer(message));
+    }
 
+    // a heartbeat, queued like a message so a dead stub fails it and gets evicted the same way.
+    // a stub with callbacks already going out is tested by those, one without ping() is never pinged
+    void ping(clientInterface client){
+        if (!(client instanceof heartbeatClientInterface)) return;
+        Mailbox box = mailboxes.get(client);
+        if (box != null && box.busy()) return;
+        pings.inc();
+        send(client, "", null, 0);
+    }
 
+    private final class Mailbox{
+        private final clientInterface client;
+        private final boolean batches; // the stub implements batchClientInterface
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private boolean draining;
+        private boolean retired; // removed from the map, senders have to make a new one
+        private int failures;    // in a row, only the draining thread writes it
+        private long dropped;
+
+        Mailbox(clientInterface client){
+            this.client = client;
+            batches = client instanceof batchClientInterface;
+        }
 
-        }catch(Exception e){}
+        synchronized boolean offer(Pending message){
+            if (retired) return false;
+            if (pending.size() >= QUEUE) {
+                pending.pollFirst();
+                CallbackDispatcher.this.dropped.inc();
+                if (dropped++ % 1000 == 0) Log.warn("callback queue full, dropping", "client", client);
+            }
+            pending.addLast(message);
+            if (!draining) {
+                draining = true;
+                pool.execute(this::drain);
+            }
+            return true;
+        }
 
-        
+        synchronized int depth(){
+            return pending.size();
+        }
+
+        synchronized boolean busy(){
+            return draining;
+        }
+
+        // moves everything queued (up to BATCH) into burst, false when there was nothing
+        private synchronized boolean next(List<Pending> burst){
+            int n = batches ? BATCH : 1;
+            Pending p;
+            while (burst.size() < n && (p = pending.pollFirst()) != null) {
+                burst.add(p);
+            }
+            if (burst.isEmpty()) {
+                draining = false;
+                // idle clients keep nothing around, unless they are on their way to being evicted
+                if (failures == 0) retire();
+                return false;
+            }
+            return true;
+        }
+
+        private void drain(){
+            List<Pending> burst = new ArrayList<>();
+            while (next(burst)) {
+                // one remote call per run of messages for the same room
+                int from = 0;
+                while (from < burst.size()) {
+                    int to = from + 1;
+                    while (to < burst.size() && burst.get(to).room.equals(burst.get(from).room)
+                            && (burst.get(to).text == null) == (burst.get(from).text == null)) to++;
+                    try {
+                        deliver(burst, from, to);
+                        failures = 0;
+                        if (burst.get(from).text != null) {
+                            long now = System.nanoTime();
+                            for (int i = from; i < to; i++) latency.record(now - burst.get(i).queuedAt);
+                            delivered.add(to - from);
+                        }
+                    } catch (Exception e) {
+                        Log.warn("couldnt deliver callback", "client", client, "error", e);
+                        if (++failures >= MAX_FAILURES) {
+                            synchronized (this) {
+                                pending.clear();
+                                draining = false;
+                                retire();
+                            }
+                            onDead.accept(client);
+                            return;
+                        }
+                    }
+                    from = to;
+                }
+                burst.clear();
+            }
+        }
+
+        private void deliver(List<Pending> burst, int from, int to) throws RemoteException{
+            String room = burst.get(from).room;
+            if (burst.get(from).text == null) {
+                ((heartbeatClientInterface) client).ping(); // a run of heartbeats, nothing else is grouped with them
+                return;
+            }
+            if (!batches) {
+                client.receiveMsg(room, burst.get(from).text);
+                return;
+            }
+            ArrayList<String> messages = new ArrayList<>(to - from);
+            long[] seqs = new long[to - from];
+            for (int i = from; i < to; i++) {
+                messages.add(burst.get(i).text);
+                seqs[i - from] = burst.get(i).seq;
+            }
+            ((batchClientInterface) client).receiveBatch(room, messages, seqs);
+        }
+
+        private void retire(){
+            retired = true;
+            mailboxes.remove(client, this);
+        }
     }
-    
 }
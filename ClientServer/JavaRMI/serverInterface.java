@@ -9,5 +9,7 @@ public interface serverInterface extends Remote {
     void createRoom(String name) throws RemoteException;
     List<String> listRooms() throws RemoteException;
     List<String> joinRoom(String roomName, String username, clientInterface client) throws RemoteException; // passing client interface so the server can make clients receive msgs     
+    void leaveRoom(String roomName, String username, clientInterface client) throws RemoteException; // client went away, no need to wait for its callbacks to fail
+    HistoryRing.Page history(String roomName, long before, int limit) throws RemoteException; // messages older than seq "before" (0 = newest), for paging back
     
 }
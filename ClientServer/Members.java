@@ -0,0 +1,41 @@
+import java.util.Arrays;
+
+
+// sessions by member id. a room holds the small int ids of its members and a broadcast turns
+// each one back into its session here. an id is handed out when a session is admitted to a
+// room and comes back when it leaves, so ids stay dense and the table stays as big as the most
+// sessions that were ever in rooms at once. a broadcast iterating a snapshot from before a leave
+// can meet the id again on another session, so it checks the session's membership first
+final class Members{
+    private static volatile Session[] sessions = new Session[1024];
+    private static int[] free = new int[64]; // ids given back, reused first
+    private static int freeCount;
+    private static int next = 1; // 0 means not in a room
+
+    private Members(){}
+
+    // what Session.membership holds while the session is member id of the room
+    static long key(Room room, int id){
+        return (long) room.id << 32 | id;
+    }
+
+    static synchronized int add(Session session){
+        int id = freeCount > 0 ? free[--freeCount] : next++;
+        Session[] table = sessions;
+        if (id >= table.length) table = Arrays.copyOf(table, table.length * 2);
+        table[id] = session;
+        sessions = table; // published after the slot, a reader that sees the id sees the session
+        return id;
+    }
+
+    static synchronized void remove(int id){
+        sessions[id] = null;
+        if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = id;
+    }
+
+    static Session get(int id){
+        Session[] table = sessions;
+        return id < table.length ? table[id] : null;
+    }
+}
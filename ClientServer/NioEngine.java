@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// selector based engine: a few event loop threads own every socket, no thread per client
+class NioEngine{
+    private final int port;
+    private final EventLoop[] loops;
+    private final Coalescing writes;
+
+    NioEngine(int port, int loopCount, Coalescing writes){
+        this.port = port;
+        this.writes = writes;
+        loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    void serve() throws IOException{
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i, writes);
+            loops[i].start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("0.0.0.0", port));
+        Log.info("server started", "port", port, "engine", "nio", "loops", loops.length);
+
+        // accept stays blocking on this thread, sockets get spread round robin over the loops
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            Log.debug("client connected", "socket", channel);
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+
+    static class EventLoop extends Thread{
+        private final Selector selector;
+        private final Coalescing writes;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> pendingWrites = new ConcurrentLinkedQueue<>();
+        // sessions holding output back for the coalescing window, or reads back for the rate limit
+        private final PriorityQueue<Delayed> delayed = new PriorityQueue<>((a, b) -> Long.signum(a.at - b.at));
+
+        EventLoop(int id, Coalescing writes) throws IOException{
+            super("nio-loop-" + id);
+            selector = Selector.open();
+            this.writes = writes;
+        }
+
+        void register(SocketChannel channel){
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        // called from any thread when a session has new output
+        void scheduleWrite(NioSession session){
+            pendingWrites.add(session);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        public void run(){
+            while (true) {
+                try {
+                    // a resume at the end of the last pass can have queued replies from this
+                    // thread, which never wakes the selector
+                    if (!pendingWrites.isEmpty()) {
+                        selector.selectNow();
+                    } else if (delayed.isEmpty()) {
+                        selector.select();
+                    } else {
+                        long wait = delayed.peek().at - System.nanoTime();
+                        if (wait > 0) selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                        else selector.selectNow();
+                    }
+
+                    SocketChannel channel;
+                    while ((channel = pendingChannels.poll()) != null) {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        NioSession session = new NioSession(this, channel, writes);
+                        session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                session.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                        } catch (IOException e) {
+                            session.close();
+                        }
+                    }
+
+                    // writes queued by handlers on this loop or by broadcasts from other loops.
+                    // with a coalescing window they wait for more frames unless the batch is already big
+                    long now = System.nanoTime();
+                    NioSession session;
+                    while ((session = pendingWrites.poll()) != null) {
+                        if (writes.windowNanos > 0 && !session.expedite.get()) {
+                            if (session.flushAt == 0) {
+                                session.flushAt = now + writes.windowNanos;
+                                delayed.add(new Delayed(session, session.flushAt));
+                            }
+                            continue;
+                        }
+                        flush(session);
+                    }
+                    while (!delayed.isEmpty() && delayed.peek().at - now <= 0) {
+                        Delayed due = delayed.poll();
+                        if (due.resume) {
+                            unpause(due.session);
+                        } else if (due.session.flushAt == due.at) { // stale when the session was flushed early since
+                            flush(due.session);
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.warn("nio loop error", "error", e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    private static void flush(NioSession session){
+        try {
+            session.flush();
+        } catch (IOException e) {
+            session.close();
+        }
+    }
+
+    private static void unpause(NioSession session){
+        try {
+            session.resume();
+        } catch (IOException e) {
+            session.close();
+        }
+    }
+
+    private static final class Delayed{
+        final NioSession session;
+        final long at;
+        final boolean resume; // reading again after the rate limit, otherwise a coalescing flush
+
+        Delayed(NioSession session, long at){
+            this(session, at, false);
+        }
+
+        Delayed(NioSession session, long at, boolean resume){
+            this.session = session;
+            this.at = at;
+            this.resume = resume;
+        }
+    }
+
+
+    static class NioSession extends Session{
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // bytes read but not yet framed, always left in write mode between reads
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final OutboundQueue<Frame> writeQueue = new OutboundQueue<>();
+        private final Coalescing writes;
+        private final Coalescing.Batch batch;  // plain frames going out together
+        private Frame writing;      // a frame going out on its own after the batch
+        private long written;       // how much of it the socket took so far
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicLong pendingBytes = new AtomicLong(); // queued since the last flush
+        private final AtomicBoolean expedite = new AtomicBoolean(); // batch is big enough, skip the window
+        private long flushAt;       // coalescing deadline, 0 when not waiting. loop thread only
+        private boolean paused;     // a line is held back by the rate limit, not reading. loop thread only
+        private final AtomicBoolean closing = new AtomicBoolean();
+        private volatile boolean closed;
+
+        NioSession(EventLoop loop, SocketChannel channel, Coalescing writes){
+            this.loop = loop;
+            this.channel = channel;
+            this.writes = writes;
+            batch = new Coalescing.Batch(writes);
+            open.add(this);
+            ChatProtocol.reaper.watch(peer);
+        }
+
+        void send(Frame frame){
+            if (closed) return;
+            if (!writeQueue.offer(frame)) {
+                // queue full and the policy is to disconnect
+                if (!closing.get()) {
+                    ChatProtocol.droppedClients.inc();
+                    Log.info("dropping slow client", "client", this);
+                }
+                close();
+                return;
+            }
+            long pending = pendingBytes.addAndGet(frame.length());
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            } else if (writes.windowNanos > 0 && pending >= writes.maxBytes && expedite.compareAndSet(false, true)) {
+                loop.scheduleWrite(this); // already waiting out the window, go now
+            }
+        }
+
+        OutboundQueue<Frame> outbound(){
+            return writeQueue;
+        }
+
+        void onReadable() throws IOException{
+            if (!readBuffer.hasRemaining()) {
+                // a binary frame may be MAX_LINE bytes after its length field
+                int max = Limits.MAX_LINE + (binary ? ChatWire.HEADER : 0);
+                if (readBuffer.capacity() >= max) {
+                    throw new IOException("frame too large");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, max));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            frame();
+        }
+
+        // frame newline delimited requests, or length prefixed ones once the socket said BINARY,
+        // straight out of the backing array. a request the rate limit holds back stays at the
+        // front of the buffer and reading stops until its retryAt
+        private void frame() throws IOException{
+            byte[] data = readBuffer.array();
+            int end = readBuffer.position();
+            int start = 0;
+            while (!closed) {
+                int from, len, next;
+                if (binary) {
+                    // the handshake can be followed by frames in the same read
+                    if (end - start < ChatWire.HEADER) break;
+                    len = ChatWire.length(data, start);
+                    if (len < 1 || len > Limits.MAX_LINE) throw new IOException("bad frame length " + len);
+                    from = start + ChatWire.HEADER;
+                    next = from + len;
+                    if (next > end) break;
+                } else {
+                    int i = start;
+                    while (i < end && data[i] != '\n') i++;
+                    if (i == end) break;
+                    from = start;
+                    len = i - start;
+                    if (len > 0 && data[i - 1] == '\r') len--;
+                    next = i + 1;
+                }
+                if (len > 0 && !received(data, from, len)) {
+                    paused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    loop.delayed.add(new Delayed(this, retryAt, true));
+                    break;
+                }
+                start = next;
+            }
+
+            if (closed) return;
+            readBuffer.position(start);
+            readBuffer.limit(end);
+            readBuffer.compact();
+        }
+
+        // the held back line's turn, only ever runs on the owning loop thread
+        void resume() throws IOException{
+            if (closed) return;
+            paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            frame();
+        }
+
+        // only ever runs on the owning loop thread
+        void flush() throws IOException{
+            if (closed) return;
+            writeScheduled.set(false);
+            expedite.set(false);
+            pendingBytes.set(0);
+            flushAt = 0;
+
+            while (true) {
+                // finish what a full socket buffer interrupted, the batch always goes first
+                if (!batch.isEmpty() && !batch.write(channel)) {
+                    waitWritable();
+                    return;
+                }
+                if (writing != null) {
+                    written = writing.writeTo(channel, written);
+                    if (written < writing.length()) {
+                        waitWritable();
+                        return;
+                    }
+                    writing = null;
+                    writes.wroteAlone();
+                }
+
+                // everything queued right now goes into one gathering write
+                Frame next = writeQueue.poll();
+                if (next == null) break;
+                while (next != null && batch.fits(next)) {
+                    batch.add(next);
+                    next = batch.full() ? null : writeQueue.poll();
+                }
+                if (next != null) {
+                    writing = next;
+                    written = 0;
+                }
+            }
+            peer.stuckSince = 0;
+            key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+        }
+
+        // socket buffer is full, wait for OP_WRITE
+        private void waitWritable(){
+            if (peer.stuckSince == 0) peer.stuckSince = System.nanoTime();
+            key.interestOps(SelectionKey.OP_WRITE | (paused ? 0 : SelectionKey.OP_READ));
+        }
+
+        // channel close is thread safe, so a broadcaster on another loop can evict a slow client
+        void close(){
+            if (!closing.compareAndSet(false, true)) return;
+            closed = true;
+            leaveRooms();
+            open.remove(this);
+            writeQueue.clear();
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+
+        public String toString(){
+            return (username == null ? "?" : username) + "@" + channel.socket().getRemoteSocketAddress();
+        }
+    }
+}
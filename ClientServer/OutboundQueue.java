@@ -0,0 +1,195 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+// bounded per-connection outbox, senders only ever enqueue and a writer task drains it
+class OutboundQueue<T>{
+
+    // what to do when a slow client lets its queue fill up
+    enum Policy{
+        DROP_OLDEST, DROP_NEWEST, DISCONNECT;
+
+        static Policy fromEnv(){
+            String value = System.getenv().getOrDefault("SERVER_QUEUE_POLICY", "drop_oldest");
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    static final int CAPACITY = Integer.parseInt(System.getenv().getOrDefault("SERVER_QUEUE_CAPACITY", "1024"));
+    static final Policy POLICY = Policy.fromEnv();
+
+    private final ArrayDeque<T> items = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final Policy policy;
+
+    private volatile int depth;
+    private volatile int highWater;
+    private volatile long enqueued;
+    private volatile long dropped;
+
+    OutboundQueue(){
+        this(CAPACITY, POLICY);
+    }
+
+    OutboundQueue(int capacity, Policy policy){
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    // returns false when the policy says the client should be disconnected
+    boolean offer(T item){
+        lock.lock();
+        try {
+            if (items.size() >= capacity) {
+                dropped++;
+                ChatProtocol.droppedFrames.inc();
+                switch (policy) {
+                    case DROP_NEWEST:
+                        return true;
+                    case DISCONNECT:
+                        return false;
+                    default:
+                        items.pollFirst();
+                }
+            }
+            items.addLast(item);
+            enqueued++;
+            updateDepth();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // blocks the writer until there is something to send
+    T take() throws InterruptedException{
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                notEmpty.await();
+            }
+            T item = items.pollFirst();
+            updateDepth();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // like take but gives up after nanos, null when nothing arrived
+    T poll(long nanos) throws InterruptedException{
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            T item = items.pollFirst();
+            updateDepth();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    T peek(){
+        lock.lock();
+        try {
+            return items.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    T poll(){
+        lock.lock();
+        try {
+            T item = items.pollFirst();
+            updateDepth();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear(){
+        lock.lock();
+        try {
+            items.clear();
+            updateDepth();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateDepth(){
+        depth = items.size();
+        if (depth > highWater) highWater = depth;
+    }
+
+    int depth(){
+        return depth;
+    }
+
+    int highWater(){
+        return highWater;
+    }
+
+    long enqueued(){
+        return enqueued;
+    }
+
+    long dropped(){
+        return dropped;
+    }
+
+
+    // prints queue depths every few seconds when SERVER_STATS_SECONDS is set
+    static void startReporter(int seconds){
+        if (seconds <= 0) return;
+        Thread.ofVirtual().name("queue-stats").start(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(seconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                report();
+            }
+        });
+    }
+
+    static void report(){
+        List<Session> sessions = new ArrayList<>(Session.open);
+        long total = 0, dropped = 0;
+        int max = 0;
+        int[] depths = new int[sessions.size()];
+        for (int i = 0; i < depths.length; i++) {
+            OutboundQueue<?> q = sessions.get(i).outbound();
+            depths[i] = q.depth();
+            total += depths[i];
+            dropped += q.dropped();
+            max = Math.max(max, depths[i]);
+        }
+        Log.info("queues", "connections", sessions.size(), "depth", total, "maxDepth", max, "dropped", dropped, "policy", POLICY);
+
+        // only the worst few, there can be tens of thousands of connections
+        for (int shown = 0; shown < 10; shown++) {
+            int worst = -1;
+            for (int i = 0; i < depths.length; i++) {
+                if (depths[i] > 0 && (worst < 0 || depths[i] > depths[worst])) worst = i;
+            }
+            if (worst < 0) break;
+            OutboundQueue<?> q = sessions.get(worst).outbound();
+            Log.info("queue", "client", sessions.get(worst), "depth", depths[worst], "highWater", q.highWater(),
+                    "enqueued", q.enqueued(), "dropped", q.dropped());
+            depths[worst] = 0;
+        }
+    }
+}
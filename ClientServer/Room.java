@@ -0,0 +1,18 @@
+// members are a chunked copy on write set of member ids so a leave never waits for a broadcast, everything
+// that has to happen in message order goes through the room's own sequencer so different rooms
+// never contend. in cluster mode the history is replaced when the room moves to or from this node
+class Room{
+    final String name;
+    final int id; // Interner.ROOMS
+    // member ids, see Members. joins and leaves change it under the room lock
+    final IntSet clients = new IntSet();
+    // appends, broadcasts and joins of this room run here one at a time
+    final Sequencer sequencer = new Sequencer();
+    volatile RoomHistory messages;
+
+    Room(String name, RoomHistory messages){
+        this.name = name;
+        this.id = Interner.ROOMS.id(name);
+        this.messages = messages;
+    }
+}
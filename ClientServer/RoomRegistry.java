@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// all chat rooms, safe to hit from any number of engine threads
+class RoomRegistry{
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    // on disk history when HISTORY_LOG_DIR is set, otherwise null and rooms keep their history in memory
+    private final MessageLog log = MessageLog.open("tcp");
+
+    RoomRegistry(){
+        if (log != null) {
+            log.recovered().forEach((name, history) -> rooms.put(name, new Room(name, history)));
+        }
+    }
+
+    // SNAPSHOT_DIR without the message log: the rooms of the last snapshot come back and the
+    // registry is written out again from then on, see Snapshot
+    void restore(Snapshot snapshot){
+        snapshot.load().rooms.forEach((name, history) -> rooms.putIfAbsent(name, new Room(name, history)));
+        snapshot.start(this::histories, null);
+    }
+
+    Room create(String name){
+        return rooms.computeIfAbsent(name, n -> new Room(n, log == null ? RoomHistory.inMemory(1) : log.create(n)));
+    }
+
+    // a client's create: null instead of a new room once there are max of them. creates racing
+    // past the check can overshoot it by a few, its a cap against floods not an exact quota
+    Room create(String name, int max){
+        Room room = rooms.get(name);
+        if (room == null && rooms.size() >= max) return null;
+        return room != null ? room : create(name);
+    }
+
+    Room get(String name){
+        return name == null ? null : rooms.get(name);
+    }
+
+    boolean isEmpty(){
+        return rooms.isEmpty();
+    }
+
+    int size(){
+        return rooms.size();
+    }
+
+    // room name -> sessions in it, for the metrics endpoint
+    Map<String, Integer> members(){
+        Map<String, Integer> counts = new TreeMap<>();
+        rooms.forEach((name, room) -> counts.put(name, room.clients.size()));
+        return counts;
+    }
+
+    // room name -> its current history, for a snapshot and the history metrics
+    Map<String, RoomHistory> histories(){
+        Map<String, RoomHistory> out = new LinkedHashMap<>();
+        rooms.forEach((name, room) -> out.put(name, room.messages));
+        return out;
+    }
+
+    List<String> names(){
+        return new ArrayList<>(rooms.keySet());
+    }
+}
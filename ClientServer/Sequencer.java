@@ -0,0 +1,49 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+// the single writer of one room. appends, broadcasts and joins go into a lock free mpsc mailbox
+// and run one at a time in mailbox order, so the sequence number a message gets in history is
+// also the order every member receives it in, and a join's history page ends exactly where its
+// live messages start.
+// there is no thread per room: whoever queues into an idle room runs the mailbox itself, and
+// after SEQUENCER_BATCH tasks hands the rest to a virtual thread so a busy room cant hold an
+// event loop or a reader hostage
+final class Sequencer{
+    static final int BATCH = Integer.parseInt(System.getenv().getOrDefault("SEQUENCER_BATCH", "256"));
+
+    interface Task{
+        // json is the room's writer, free to use until the task returns
+        void run(ChatJson.Writer json);
+    }
+
+    private final ConcurrentLinkedQueue<Task> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ChatJson.Writer json = new ChatJson.Writer(); // only touched by whoever is running
+
+    void submit(Task task){
+        mailbox.offer(task);
+        if (running.compareAndSet(false, true)) drain();
+    }
+
+    private void drain(){
+        int budget = Math.max(1, BATCH);
+        while (true) {
+            Task task;
+            while ((task = mailbox.poll()) != null) {
+                try {
+                    task.run(json);
+                } catch (RuntimeException e) {
+                    Log.error("room task failed", "error", e);
+                }
+                if (--budget == 0) {
+                    Thread.ofVirtual().name("sequencer").start(this::drain); // still running, the new thread carries on
+                    return;
+                }
+            }
+            running.set(false);
+            // a task queued between the last poll and the set above found the room running, pick it up
+            if (mailbox.isEmpty() || !running.compareAndSet(false, true)) return;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// one connected client, whatever engine is serving its socket
+abstract class Session{
+    // every live session, used for queue depth reporting
+    static final Set<Session> open = ConcurrentHashMap.newKeySet();
+
+    // im making the client rememeber what room its in
+    // volatile because a join finishes on the room's sequencer, see ChatProtocol.admit
+    volatile String currRoom = null;
+    String username = null;
+    // Members.key of the room and member id while the session gets the room's broadcasts, 0 when
+    // it is in none. only changed under the room lock
+    volatile long membership;
+
+    // only used by whichever thread is reading this session's requests
+    final ChatJson.Request request = new ChatJson.Request();
+    final ChatJson.Writer json = new ChatJson.Writer();
+
+    // set when the first line was MUX, from then on this socket only carries other sessions
+    private volatile SessionMux mux;
+    // set when the first line was BINARY, from then on both ways are ChatWire frames. read by
+    // whoever encodes for this session, set before anything but the handshake reply is queued
+    volatile boolean binary;
+    private boolean firstLine = true;
+
+    // dead peer detection, see common/Reaper.java. only sockets are watched, a multiplexed
+    // session's PING and PONG count for its carrier
+    final Reaper.Peer peer = new Reaper.Peer(){
+        boolean gone(){
+            return !open.contains(Session.this);
+        }
+
+        void ping(){
+            send(binary ? ChatProtocol.BINARY_PING : ChatProtocol.PING);
+        }
+
+        void reap(String why){
+            Log.info("closing dead connection", "client", Session.this, "reason", why);
+            close();
+        }
+    };
+
+    // what SENDMSG and CREATEROOM spend on this socket, see common/Limits.java. reader only
+    private Limits.Bucket budget;
+    // when a line the rate limit held back can be offered again, System.nanoTime. reader only
+    long retryAt;
+
+    // one request line as the socket delivered it, only called by this session's reader.
+    // false when the rate limit held it back: the reader offers the same line again at retryAt
+    // and reads nothing else until then, so a flood backs up into the sender's own tcp window
+    final boolean received(byte[] buf, int off, int len){
+        peer.read();
+        if (mux != null) {
+            return mux.handle(buf, off, len);
+        }
+        if (firstLine) {
+            firstLine = false;
+            if (SessionMux.isHandshake(buf, off, len)) {
+                Log.info("multiplexed connection", "from", this);
+                mux = new SessionMux(this);
+                send(SessionMux.ACCEPTED);
+                return true;
+            }
+            if (ChatWire.isHandshake(buf, off, len)) {
+                Log.info("binary connection", "from", this);
+                binary = true;
+                send(ChatProtocol.BINARY);
+                return true;
+            }
+        }
+        return ChatProtocol.handle(this, buf, off, len);
+    }
+
+    // the session whose socket this one reads from, itself unless it rides a multiplexed one
+    Session carrier(){
+        return this;
+    }
+
+    Limits.Bucket budget(){
+        if (budget == null) budget = Limits.connection();
+        return budget;
+    }
+
+    Limits.Bucket budget(String username){
+        return Limits.user(username);
+    }
+
+    // the socket is going away, take this session or every session it carries out of their rooms
+    final void leaveRooms(){
+        ChatProtocol.leave(this);
+        SessionMux carried = mux;
+        if (carried != null) carried.closeAll();
+    }
+
+    // queue one encoded frame for this client, never blocks the caller
+    abstract void send(Frame frame);
+
+    // bounded outbox drained by this session's writer
+    abstract OutboundQueue<Frame> outbound();
+
+    // drop the socket and leave the room, safe to call from any thread and more than once
+    abstract void close();
+}
@@ -0,0 +1,102 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// many chat sessions over one socket, for a gateway that would otherwise open a socket per user.
+// the client sends MUX as its first line and gets MUX back, after that every line both ways is
+//   <sid> <json>      sid is a decimal number picked by the client, a new sid starts a session
+//   <sid> CLOSE       the session leaves its room and is forgotten
+// each session has its own username and room, broadcasts reach it as the shared frame behind
+// its own prefix. closing the socket closes every session on it
+final class SessionMux{
+    private static final byte[] HANDSHAKE = "MUX".getBytes(StandardCharsets.US_ASCII);
+    static final Frame ACCEPTED = Frame.of("MUX\n".getBytes(StandardCharsets.US_ASCII));
+    private static final byte[] CLOSE = "CLOSE".getBytes(StandardCharsets.US_ASCII);
+
+    private final Session carrier;
+    // the reader adds and removes, close can come from a broadcaster on another thread
+    private final Map<Long, Stream> streams = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    SessionMux(Session carrier){
+        this.carrier = carrier;
+    }
+
+    static boolean isHandshake(byte[] buf, int off, int len){
+        return matches(HANDSHAKE, buf, off, len);
+    }
+
+    // one "<sid> <payload>" line from the carrier's reader, false when the carrier's rate limit held it back
+    boolean handle(byte[] buf, int off, int len){
+        int end = off + len;
+        int i = off;
+        long sid = 0;
+        while (i < end && buf[i] >= '0' && buf[i] <= '9' && i - off < 18) {
+            sid = sid * 10 + (buf[i++] - '0');
+        }
+        if (i == off || i == end || buf[i] != ' ') {
+            // no session id: a PING or PONG for the socket itself, anything else we cant answer
+            if (carrier.request.parse(buf, off, len)) ChatProtocol.heartbeat(carrier, carrier.request);
+            return true;
+        }
+        i++;
+
+        if (matches(CLOSE, buf, i, end - i)) {
+            Stream gone = streams.remove(sid);
+            if (gone != null) gone.close();
+            return true;
+        }
+        Stream stream = streams.computeIfAbsent(sid, Stream::new);
+        boolean handled = ChatProtocol.handle(stream, buf, i, end - i);
+        if (closed) closeAll(); // the carrier closed while this one was joining
+        return handled;
+    }
+
+    // the carrier is gone, so is every session on it
+    void closeAll(){
+        closed = true;
+        for (Stream stream : streams.values()) {
+            stream.close();
+        }
+        streams.clear();
+    }
+
+    private static boolean matches(byte[] word, byte[] buf, int off, int len){
+        if (len != word.length) return false;
+        for (int i = 0; i < len; i++) {
+            if (buf[off + i] != word[i]) return false;
+        }
+        return true;
+    }
+
+
+    // one user session inside the carrier, it has no socket or thread of its own
+    private final class Stream extends Session{
+        private final byte[] prefix;
+
+        Stream(long sid){
+            prefix = (sid + " ").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        void send(Frame frame){
+            carrier.send(frame.withPrefix(prefix));
+        }
+
+        OutboundQueue<Frame> outbound(){
+            return carrier.outbound();
+        }
+
+        Session carrier(){
+            return carrier;
+        }
+
+        void close(){
+            ChatProtocol.leave(this);
+        }
+
+        public String toString(){
+            return (username == null ? "?" : username) + "#" + new String(prefix, StandardCharsets.US_ASCII).trim() + "@" + carrier;
+        }
+    }
+}
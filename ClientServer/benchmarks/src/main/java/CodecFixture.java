@@ -0,0 +1,39 @@
+import java.util.ArrayList;
+import java.util.List;
+
+
+// chatbench.CodecBench against common/ChatJson and common/ChatWire
+public class CodecFixture implements chatbench.Fixtures.Codec{
+    private final ChatJson.Request request = new ChatJson.Request();
+    private ChatJson.Writer json = new ChatJson.Writer();
+    private boolean binary;
+    private final List<String> names = new ArrayList<>();
+
+    public void binary(){
+        binary = true;
+        json = json.as(true);
+    }
+
+    public byte[] frame(String arg, String room, String username, String msg, long limit){
+        return ChatWire.request(arg, room, username, msg, limit);
+    }
+
+    // a frame is parsed from after its length, like the servers hand it over
+    public boolean parse(byte[] line){
+        if (binary) return ChatWire.parse(request, line, ChatWire.HEADER, line.length - ChatWire.HEADER) && request.arg != null;
+        return request.parse(line, 0, line.length) && request.arg != null;
+    }
+
+    public int message(String text){
+        return json.message(text).length();
+    }
+
+    public byte[] messageFrame(String text){
+        return json.message(text).toByteArray();
+    }
+
+    public int rooms(int count){
+        while (names.size() < count) names.add("room-" + names.size());
+        return json.rooms(names.subList(0, count)).length();
+    }
+}
@@ -0,0 +1,63 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// chatbench.FanOutBench: a room full of sessions that only have an outbound queue, no socket.
+// each member hands a frame straight back out of its queue, like a writer that always keeps up.
+// there is no socket or user to rate limit either, the bench sends as fast as it can
+public class FanOutFixture implements chatbench.Fixtures.FanOut{
+    private final List<Member> members = new ArrayList<>();
+    private byte[] sendMsg;
+    private long delivered;
+
+    private final class Member extends Session{
+        private final OutboundQueue<Frame> outbound = new OutboundQueue<>();
+
+        void send(Frame frame){
+            outbound.offer(frame);
+            if (outbound.poll() != null) delivered++;
+        }
+
+        OutboundQueue<Frame> outbound(){
+            return outbound;
+        }
+
+        void close(){
+            ChatProtocol.leave(this);
+        }
+
+        Limits.Bucket budget(){
+            return Limits.UNLIMITED;
+        }
+
+        Limits.Bucket budget(String username){
+            return Limits.UNLIMITED;
+        }
+    }
+
+    public void join(int count){
+        String room = "bench-" + count;
+        for (int i = 0; i < count; i++) {
+            Member member = new Member();
+            if (i == 0) request(member, "{\"arg\":\"CREATEROOM\",\"room\":\"" + room + "\",\"username\":\"u0\"}");
+            request(member, "{\"arg\":\"JOINROOM\",\"room\":\"" + room + "\",\"username\":\"u" + i + "\",\"limit\":1}");
+            members.add(member);
+        }
+        sendMsg = ("{\"arg\":\"SENDMSG\",\"room\":\"" + room + "\",\"username\":\"u0\",\"msg\":\"hello everyone in here\"}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void sendMsg(){
+        ChatProtocol.handle(members.get(0), sendMsg, 0, sendMsg.length);
+    }
+
+    public long delivered(){
+        return delivered;
+    }
+
+    private static void request(Session session, String line){
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        ChatProtocol.handle(session, bytes, 0, bytes.length);
+    }
+}
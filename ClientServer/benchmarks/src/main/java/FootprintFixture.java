@@ -0,0 +1,40 @@
+import java.util.Random;
+
+
+// chatbench.FootprintBench: one room history holding every message, weighed on the heap. the
+// texts are random words rather than one repeated filler, so tiered compresses about as well
+// as it would on chat
+public class FootprintFixture implements chatbench.Fixtures.Footprint{
+    private static final String[] WORDS = ("the a to and is it you that in of for on have this be are not with was so but "
+            + "what just at can we do if my me your all get about like will up know out now one there how when "
+            + "think good time see no yes ok lol going today tomorrow meeting deploy build test server room chat "
+            + "message fixed broken looks thanks sure maybe later back home work done please check merged review").split(" ");
+
+    private RoomHistory history;
+
+    public long fill(String store, int messages, int textLength, int users){
+        history = null;
+        long before = usedHeap();
+        RoomHistory filled = HistoryFixture.create(store, messages);
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(textLength + 16);
+        for (int i = 0; i < messages; i++) {
+            text.setLength(0);
+            text.append("user").append(i % users).append(": ").append(i);
+            while (text.length() < textLength) text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+            text.setLength(Math.max(textLength, text.indexOf(": ") + 2));
+            filled.append(text.toString());
+        }
+        history = filled;
+        long retained = usedHeap() - before;
+        if (history.nextSeq() != messages + 1) throw new IllegalStateException("lost messages");
+        return retained;
+    }
+
+    // live heap after the garbage from filling is gone
+    private static long usedHeap(){
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
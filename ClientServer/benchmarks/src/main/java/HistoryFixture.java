@@ -0,0 +1,30 @@
+// chatbench.HistoryBench against the in-memory stores, HistoryRing, PackedHistory and TieredHistory
+public class HistoryFixture implements chatbench.Fixtures.History{
+    private final ChatJson.Writer json = new ChatJson.Writer();
+    private RoomHistory history;
+
+    public void fill(String store, int messages, int textLength){
+        history = create(store, messages);
+        String filler = "x".repeat(Math.max(0, textLength - 16));
+        for (int i = 0; i < messages; i++) {
+            history.append("user" + (i % 50) + ": " + i + " " + filler);
+        }
+    }
+
+    public int writePage(int limit){
+        return history.writePage(json, Long.MAX_VALUE, limit).length();
+    }
+
+    public int decodedPage(int limit){
+        HistoryRing.Page page = history.before(Long.MAX_VALUE, limit);
+        return json.history(page).length();
+    }
+
+    static RoomHistory create(String store, int capacity){
+        return switch (store) {
+            case "strings" -> new HistoryRing(capacity, 0);
+            case "tiered" -> new TieredHistory(capacity, 0);
+            default -> new PackedHistory(capacity, 0);
+        };
+    }
+}
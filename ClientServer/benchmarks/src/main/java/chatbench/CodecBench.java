@@ -0,0 +1,83 @@
+package chatbench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+// common/ChatJson: request parsing and reply encoding, shared by the tcp server and the rmi bridge.
+// encoding=binary runs the same requests and replies as common/ChatWire frames
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench{
+    private static final byte[] SENDMSG_JSON = line("{\"arg\":\"SENDMSG\",\"room\":\"general\",\"username\":\"alice\",\"msg\":\"hey, is anyone around tonight?\"}");
+    private static final byte[] ESCAPED_JSON = line("{\"arg\":\"SENDMSG\",\"room\":\"general\",\"username\":\"alice\",\"msg\":\"she said \\\"hi\\\" \\u00e9\\n\\ud83d\\ude00 \\\\ done\"}");
+    private static final byte[] JOIN_JSON = line("{\"username\":\"alice\",\"arg\":\"JOINROOM\",\"room\":\"general\",\"limit\":50}");
+
+    private Fixtures.Codec codec;
+    private byte[] sendmsg;
+    private byte[] escaped;
+    private byte[] join;
+
+    @Param({"32", "512"})
+    int textLength;
+    private String text;
+
+    @Param({"json", "binary"})
+    String encoding;
+
+    @Setup
+    public void setup(){
+        codec = Fixtures.load("CodecFixture", Fixtures.Codec.class);
+        text = "alice: " + "x".repeat(Math.max(0, textLength - 7));
+        if (encoding.equals("binary")) {
+            codec.binary();
+            sendmsg = codec.frame("SENDMSG", "general", "alice", "hey, is anyone around tonight?", -1);
+            escaped = codec.frame("SENDMSG", "general", "alice", "she said \"hi\" \u00e9\n\ud83d\ude00 \\ done", -1);
+            join = codec.frame("JOINROOM", "general", "alice", null, 50);
+        } else {
+            sendmsg = SENDMSG_JSON;
+            escaped = ESCAPED_JSON;
+            join = JOIN_JSON;
+        }
+    }
+
+    @Benchmark
+    public boolean parseSendMsg(){
+        return codec.parse(sendmsg);
+    }
+
+    @Benchmark
+    public boolean parseEscaped(){
+        return codec.parse(escaped);
+    }
+
+    @Benchmark
+    public boolean parseJoin(){
+        return codec.parse(join);
+    }
+
+    @Benchmark
+    public int writeMessage(){
+        return codec.message(text);
+    }
+
+    @Benchmark
+    public byte[] messageFrame(){
+        return codec.messageFrame(text);
+    }
+
+    @Benchmark
+    public int writeRooms(){
+        return codec.rooms(50);
+    }
+
+    private static byte[] line(String json){
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,38 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+// one message through ChatProtocol to every member of a room. members are in-process sessions
+// with a real outbound queue, so this is parse + append + encode once + one enqueue per member
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBench{
+    @Param({"1", "10", "100", "1000", "10000"})
+    int members;
+
+    private Fixtures.FanOut room;
+
+    @Setup
+    public void setup(){
+        Fixtures.quiet();
+        room = Fixtures.load("FanOutFixture", Fixtures.FanOut.class);
+        room.join(members);
+    }
+
+    @TearDown
+    public void check(){
+        if (room.delivered() == 0) throw new IllegalStateException("nothing was delivered");
+    }
+
+    @Benchmark
+    public void sendMsg(){
+        room.sendMsg();
+    }
+}
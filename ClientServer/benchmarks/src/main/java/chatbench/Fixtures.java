@@ -0,0 +1,73 @@
+package chatbench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+
+// the servers live in the default package, which a named package cannot import and jmh will
+// not generate benchmarks for. so each benchmark drives a default package fixture through one
+// of the interfaces here, loaded once per trial. the calls after that are plain interface calls
+public final class Fixtures{
+    private Fixtures(){}
+
+    public static <T> T load(String className, Class<T> type){
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no fixture " + className, e);
+        }
+    }
+
+    // the servers print every request and reply, that would be most of what gets measured
+    public static void quiet(){
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+
+    public interface Codec{
+        // from now on requests and replies are ChatWire frames instead of json lines
+        void binary();
+
+        // a request frame, for parse() after binary()
+        byte[] frame(String arg, String room, String username, String msg, long limit);
+
+        // parses one request line into the reusable request, false if it is not a json object
+        boolean parse(byte[] line);
+
+        // encodes {"message":..} or its frame and returns the length
+        int message(String text);
+
+        // encodes {"message":..} and snapshots it like a broadcast frame
+        byte[] messageFrame(String text);
+
+        int rooms(int count);
+    }
+
+    public interface History{
+        // a room history of the HISTORY_STORE kind ("strings", "packed" or "tiered") holding exactly this
+        // many messages of about textLength chars
+        void fill(String store, int messages, int textLength);
+
+        // tcp server: the page written straight from the history into a line
+        int writePage(int limit);
+
+        // rmi server + bridge: the page decoded to strings, then encoded by the bridge
+        int decodedPage(int limit);
+    }
+
+    public interface Footprint{
+        // a new history of the given store with this many messages from that many distinct
+        // users, returns the heap it keeps alive in bytes
+        long fill(String store, int messages, int textLength, int users);
+    }
+
+    public interface FanOut{
+        // a room with this many in-process sessions
+        void join(int members);
+
+        // one SENDMSG from a member, through the tcp protocol handler to every member's queue
+        void sendMsg();
+
+        long delivered();
+    }
+}
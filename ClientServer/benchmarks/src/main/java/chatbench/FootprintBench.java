@@ -0,0 +1,59 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+// heap kept by one room history holding 1M messages, strings (HistoryRing, a String per message)
+// against packed (PackedHistory, interned usernames and utf-8 in a byte slab) and tiered
+// (TieredHistory, packed for the newest 1000 and deflated blocks behind them). every invocation
+// fills a new history and weighs it after a gc, the bytesPerMessage and retainedMB counters are
+// the result (jmh adds counters up over iterations, so there is one), the time is how long the fill took
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class FootprintBench{
+    @Param({"strings", "packed", "tiered"})
+    String store;
+
+    @Param({"1000000"})
+    int messages;
+
+    @Param({"64"})
+    int textLength;
+
+    @Param({"1000"})
+    int users;
+
+    private Fixtures.Footprint footprint;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Retained{
+        public long bytesPerMessage;
+        public long retainedMB;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            bytesPerMessage = 0;
+            retainedMB = 0;
+        }
+    }
+
+    @Setup
+    public void setup(){
+        footprint = Fixtures.load("FootprintFixture", Fixtures.Footprint.class);
+    }
+
+    @Benchmark
+    public long fill(Retained retained){
+        long bytes = footprint.fill(store, messages, textLength, users);
+        retained.bytesPerMessage = bytes / messages;
+        retained.retainedMB = bytes >> 20;
+        return bytes;
+    }
+}
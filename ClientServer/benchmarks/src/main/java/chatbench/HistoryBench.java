@@ -0,0 +1,42 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+// a full page of room history rendered into one {"history":[..]} line, as JOINROOM and HISTORY do
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBench{
+    @Param({"10", "100", "1000", "10000"})
+    int messages;
+
+    @Param({"64"})
+    int textLength;
+
+    @Param({"strings", "packed", "tiered"})
+    String store;
+
+    private Fixtures.History history;
+
+    @Setup
+    public void setup(){
+        history = Fixtures.load("HistoryFixture", Fixtures.History.class);
+        history.fill(store, messages, textLength);
+    }
+
+    @Benchmark
+    public int writePage(){
+        return history.writePage(messages);
+    }
+
+    @Benchmark
+    public int decodedPage(){
+        return history.decodedPage(messages);
+    }
+}
@@ -0,0 +1,24 @@
+package chatbench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+// the usual jmh command line, with -prof gc always on so every run reports allocation per op
+public final class Main{
+    public static void main(String[] args) throws Exception{
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        Runner runner = new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build());
+        if (cmd.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+}
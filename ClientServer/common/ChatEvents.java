@@ -0,0 +1,58 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+// flight recorder events for the java servers, free unless a recording enables them:
+//   java -XX:StartFlightRecording=filename=chat.jfr,settings=profile server
+// and look for the Chat category in JMC or `jfr print --events chat.Broadcast chat.jfr`
+final class ChatEvents{
+    private ChatEvents(){}
+
+    @Name("chat.Broadcast")
+    @Label("Broadcast")
+    @Category("Chat")
+    @Description("One message handed to every member of a room")
+    static final class Broadcast extends Event{
+        @Label("Room")
+        String room;
+
+        @Label("Members")
+        int members;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("chat.HistoryReplay")
+    @Label("History Replay")
+    @Category("Chat")
+    @Description("A page of room history sent to one client, on join or for HISTORY")
+    static final class HistoryReplay extends Event{
+        @Label("Room")
+        String room;
+
+        @Label("Join")
+        @Description("Sent as part of JOINROOM rather than a HISTORY request")
+        boolean join;
+
+        @Label("Limit")
+        int limit;
+
+        @Label("Messages")
+        @Description("Messages in the page, -1 when the server sent it already encoded without counting")
+        int messages;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("From Log")
+        @Description("Streamed from the message log files with sendfile")
+        boolean fromLog;
+    }
+}
@@ -0,0 +1,564 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+
+// json codec for the chat wire protocol, shared by server.java and rmi_bridge.java.
+// requests are {arg, room, username, msg}, responses are {message}, {rooms} or {history}.
+final class ChatJson{
+
+    private ChatJson(){}
+
+
+    // reusable request holder, parse() fills it in one pass straight over the utf-8 bytes
+    static final class Request{
+        private static final byte[] ARG = ascii("arg");
+        private static final byte[] ROOM = ascii("room");
+        private static final byte[] USERNAME = ascii("username");
+        private static final byte[] MSG = ascii("msg");
+        private static final byte[] BEFORE = ascii("before");
+        private static final byte[] LIMIT = ascii("limit");
+        private static final byte[] SINCE = ascii("since");
+
+        String arg;
+        String room;
+        String username;
+        String msg;
+
+        // history paging, -1 when not sent
+        long before;
+        long limit;
+        // JOINROOM resuming after a reconnect: everything after this seq instead of the latest page
+        long since;
+
+        // only touched when a string actually contains escapes
+        private byte[] scratch = new byte[64];
+
+        // false when the line is not a json object, fields that were present are still set
+        boolean parse(byte[] buf, int off, int len){
+            arg = room = username = msg = null;
+            before = limit = since = -1;
+            int end = off + len;
+            int i = skipWs(buf, off, end);
+            if (i >= end || buf[i] != '{') return false;
+            i = skipWs(buf, i + 1, end);
+            if (i < end && buf[i] == '}') return true;
+
+            while (i < end) {
+                if (buf[i] != '"') return false;
+                int keyStart = i + 1;
+                int keyEnd = skipString(buf, i, end);
+                if (keyEnd < 0) return false;
+                int keyLen = keyEnd - 1 - keyStart;
+
+                i = skipWs(buf, keyEnd, end);
+                if (i >= end || buf[i] != ':') return false;
+                i = skipWs(buf, i + 1, end);
+                if (i >= end) return false;
+
+                int field = field(buf, keyStart, keyLen);
+                int next;
+                if (field >= 0 && field < 4 && buf[i] == '"') {
+                    next = skipString(buf, i, end);
+                    if (next < 0) return false;
+                    set(field, decode(buf, i + 1, next - 1));
+                } else if (field >= 4) {
+                    // numbers, also accepted as numeric strings
+                    next = skipValue(buf, i, end);
+                    if (next < 0) return false;
+                    setNumber(field, number(buf, i, next));
+                } else {
+                    next = skipValue(buf, i, end);
+                    if (next < 0) return false;
+                }
+
+                i = skipWs(buf, next, end);
+                if (i >= end) return false;
+                if (buf[i] == '}') return true;
+                if (buf[i] != ',') return false;
+                i = skipWs(buf, i + 1, end);
+            }
+            return false;
+        }
+
+        boolean parse(byte[] buf){
+            return parse(buf, 0, buf.length);
+        }
+
+        private static int field(byte[] buf, int off, int len){
+            if (same(buf, off, len, ARG)) return 0;
+            if (same(buf, off, len, ROOM)) return 1;
+            if (same(buf, off, len, USERNAME)) return 2;
+            if (same(buf, off, len, MSG)) return 3;
+            if (same(buf, off, len, BEFORE)) return 4;
+            if (same(buf, off, len, LIMIT)) return 5;
+            if (same(buf, off, len, SINCE)) return 6;
+            return -1;
+        }
+
+        private void set(int field, String value){
+            switch (field) {
+                case 0: arg = value; break;
+                case 1: room = value; break;
+                case 2: username = value; break;
+                default: msg = value;
+            }
+        }
+
+        private void setNumber(int field, long value){
+            if (field == 4) before = value;
+            else if (field == 5) limit = value;
+            else since = value;
+        }
+
+        // non negative integer out of a raw value, -1 if it is anything else
+        private static long number(byte[] buf, int start, int end){
+            if (start < end && buf[start] == '"') {
+                start++;
+                end--;
+            }
+            while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == '\t' || buf[end - 1] == '\r' || buf[end - 1] == '\n')) end--;
+            if (start >= end || end - start > 18) return -1;
+            long v = 0;
+            for (int i = start; i < end; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9) return -1;
+                v = v * 10 + d;
+            }
+            return v;
+        }
+
+        // string body between the quotes, escapes resolved back into utf-8
+        private String decode(byte[] buf, int start, int end){
+            int slash = start;
+            while (slash < end && buf[slash] != '\\') slash++;
+            if (slash == end) {
+                return new String(buf, start, end - start, StandardCharsets.UTF_8);
+            }
+
+            if (scratch.length < end - start) scratch = new byte[Math.max(end - start, scratch.length * 2)];
+            int n = slash - start;
+            System.arraycopy(buf, start, scratch, 0, n);
+
+            int i = slash;
+            while (i < end) {
+                byte b = buf[i];
+                if (b != '\\') {
+                    scratch[n++] = b;
+                    i++;
+                    continue;
+                }
+                if (i + 1 >= end) break;
+                byte e = buf[i + 1];
+                i += 2;
+                switch (e) {
+                    case 'n': scratch[n++] = '\n'; break;
+                    case 'r': scratch[n++] = '\r'; break;
+                    case 't': scratch[n++] = '\t'; break;
+                    case 'b': scratch[n++] = '\b'; break;
+                    case 'f': scratch[n++] = '\f'; break;
+                    case 'u': {
+                        int cp = hex4(buf, i, end);
+                        if (cp < 0) return null;
+                        i += 4;
+                        if (Character.isHighSurrogate((char) cp) && i + 5 < end
+                                && buf[i] == '\\' && buf[i + 1] == 'u') {
+                            int low = hex4(buf, i + 2, end);
+                            if (low >= 0 && Character.isLowSurrogate((char) low)) {
+                                cp = Character.toCodePoint((char) cp, (char) low);
+                                i += 6;
+                            }
+                        }
+                        if (Character.isSurrogate((char) cp) && cp <= 0xFFFF) cp = '?';
+                        n = putCodePoint(cp, n);
+                        break;
+                    }
+                    default: scratch[n++] = e; // \" \\ \/
+                }
+            }
+            return new String(scratch, 0, n, StandardCharsets.UTF_8);
+        }
+
+        // a \\uXXXX escape is 6 bytes but never encodes to more than 4
+        private int putCodePoint(int cp, int n){
+            if (cp < 0x80) {
+                scratch[n++] = (byte) cp;
+            } else if (cp < 0x800) {
+                scratch[n++] = (byte) (0xC0 | (cp >> 6));
+                scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (cp < 0x10000) {
+                scratch[n++] = (byte) (0xE0 | (cp >> 12));
+                scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                scratch[n++] = (byte) (0xF0 | (cp >> 18));
+                scratch[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+            }
+            return n;
+        }
+
+        private static int hex4(byte[] buf, int i, int end){
+            if (i + 4 > end) return -1;
+            int v = 0;
+            for (int k = 0; k < 4; k++) {
+                int d = Character.digit(buf[i + k], 16);
+                if (d < 0) return -1;
+                v = (v << 4) | d;
+            }
+            return v;
+        }
+
+        private static boolean same(byte[] buf, int off, int len, byte[] key){
+            if (len != key.length) return false;
+            for (int k = 0; k < len; k++) {
+                if (buf[off + k] != key[k]) return false;
+            }
+            return true;
+        }
+
+        private static int skipWs(byte[] buf, int i, int end){
+            while (i < end && (buf[i] == ' ' || buf[i] == '\t' || buf[i] == '\r' || buf[i] == '\n')) i++;
+            return i;
+        }
+
+        // i is on the opening quote, returns the index just past the closing one
+        private static int skipString(byte[] buf, int i, int end){
+            for (i = i + 1; i < end; i++) {
+                if (buf[i] == '\\') i++;
+                else if (buf[i] == '"') return i + 1;
+            }
+            return -1;
+        }
+
+        // numbers, literals, nested objects and arrays for keys we dont care about
+        private static int skipValue(byte[] buf, int i, int end){
+            if (buf[i] == '"') return skipString(buf, i, end);
+            int depth = 0;
+            while (i < end) {
+                byte b = buf[i];
+                if (b == '"') {
+                    i = skipString(buf, i, end);
+                    if (i < 0) return -1;
+                    continue;
+                }
+                if (b == '{' || b == '[') depth++;
+                else if (b == '}' || b == ']') {
+                    if (depth == 0) return i;
+                    depth--;
+                    if (depth == 0) return i + 1;
+                } else if (b == ',' && depth == 0) return i;
+                i++;
+            }
+            return depth == 0 ? i : -1;
+        }
+    }
+
+
+    // reusable response buffer, one line of json plus the trailing newline. ChatWire.Writer
+    // encodes the same calls as binary frames for sockets that negotiated BINARY
+    static class Writer{
+        private static final byte[] MESSAGE = ascii("{\"message\":\"");
+        private static final byte[] ROOMS = ascii("{\"rooms\":[");
+        private static final byte[] HISTORY = ascii("{\"history\":[");
+        private static final byte[] FIRST = ascii(",\"first\":");
+        private static final byte[] SEQ = ascii("\",\"seq\":");
+        private static final byte[] MORE_TRUE = ascii(",\"more\":true}\n");
+        private static final byte[] MORE_FALSE = ascii(",\"more\":false}\n");
+        private static final byte[] HEX = ascii("0123456789abcdef");
+
+        byte[] buf = new byte[256];
+        int len;
+        private Writer binary; // same owner, same thread, made on first use
+
+        // this writer, or for a binary socket one that turns the same calls into binary frames
+        Writer as(boolean binary){
+            if (!binary) return this;
+            if (this.binary == null) this.binary = new ChatWire.Writer();
+            return this.binary;
+        }
+
+        Writer reset(){
+            len = 0;
+            return this;
+        }
+
+        Writer beginMessage(){
+            len = 0;
+            return raw(MESSAGE);
+        }
+
+        // a whole line that is already encoded, like Reaper.PONG
+        Writer line(byte[] encoded){
+            len = 0;
+            return raw(encoded);
+        }
+
+        // escaped text inside the open message string
+        Writer text(String s){
+            string(s);
+            return this;
+        }
+
+        Writer endMessage(){
+            ensure(3);
+            buf[len++] = '"';
+            buf[len++] = '}';
+            buf[len++] = '\n';
+            return this;
+        }
+
+        Writer message(String text){
+            return beginMessage().text(text).endMessage();
+        }
+
+        // a room message with its history sequence number, {"message":"..","seq":42}
+        Writer message(String text, long seq){
+            beginMessage().text(text);
+            raw(SEQ);
+            number(seq);
+            ensure(2);
+            buf[len++] = '}';
+            buf[len++] = '\n';
+            return this;
+        }
+
+        Writer rooms(Collection<String> names){
+            len = 0;
+            raw(ROOMS);
+            boolean first = true;
+            for (String name : names) {
+                if (!first) put(',');
+                first = false;
+                quoted(name);
+            }
+            return closeArray();
+        }
+
+        Writer history(List<String> messages){
+            len = 0;
+            raw(HISTORY);
+            for (int i = 0; i < messages.size(); i++) {
+                if (i > 0) put(',');
+                quoted(messages.get(i));
+            }
+            return closeArray();
+        }
+
+        // a page of history plus where it starts, so clients can ask for the page before it
+        Writer history(HistoryRing.Page page){
+            beginHistory();
+            for (int i = 0; i < page.messages.size(); i++) {
+                if (i > 0) put(',');
+                quoted(page.messages.get(i));
+            }
+            return endHistory(page.first, page.more);
+        }
+
+        // {"history":[ ... then entries from record() bytes, then endHistory
+        Writer beginHistory(){
+            len = 0;
+            return raw(HISTORY);
+        }
+
+        // already encoded history entries copied in as they are
+        Writer rawBytes(ByteBuffer src, int index, int length){
+            ensure(length);
+            src.get(index, buf, len, length);
+            len += length;
+            return this;
+        }
+
+        // one entry of a history page built in pieces: beginEntry, text and utf8, endEntry
+        Writer beginEntry(boolean first){
+            if (!first) put(',');
+            put('"');
+            return this;
+        }
+
+        // utf-8 that is already valid, escaped into the open string as bytes. it is read from a
+        // ring buffer, wrapping from the end of the array back to 0
+        Writer utf8(byte[] ring, int at, int length){
+            int head = Math.min(length, ring.length - at);
+            escaped(ring, at, head);
+            escaped(ring, 0, length - head);
+            return this;
+        }
+
+        Writer endEntry(){
+            put('"');
+            return this;
+        }
+
+        Writer endHistory(long first, boolean more){
+            ensure(1);
+            buf[len++] = ']';
+            raw(FIRST);
+            number(first);
+            return raw(more ? MORE_TRUE : MORE_FALSE);
+        }
+
+        // one history entry as stored on disk: ,"escaped text"
+        // so any run of records is a valid json array body once the first comma is dropped
+        Writer record(String text){
+            len = 0;
+            put(',');
+            quoted(text);
+            return this;
+        }
+
+        byte[] array(){
+            return buf;
+        }
+
+        int length(){
+            return len;
+        }
+
+        byte[] toByteArray(){
+            byte[] out = new byte[len];
+            System.arraycopy(buf, 0, out, 0, len);
+            return out;
+        }
+
+        void writeTo(OutputStream out) throws IOException{
+            out.write(buf, 0, len);
+        }
+
+        // the line without its newline, for logging
+        public String toString(){
+            int n = len > 0 && buf[len - 1] == '\n' ? len - 1 : len;
+            return new String(buf, 0, n, StandardCharsets.UTF_8);
+        }
+
+        private Writer closeArray(){
+            ensure(3);
+            buf[len++] = ']';
+            buf[len++] = '}';
+            buf[len++] = '\n';
+            return this;
+        }
+
+        private void quoted(String s){
+            put('"');
+            string(s);
+            put('"');
+        }
+
+        // utf-8 encode with json escaping, no intermediate string or byte[]
+        private void string(String s){
+            if (s == null) return;
+            int n = s.length();
+            ensure(n * 3); // worst case outside of control escapes
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (c == '"' || c == '\\') {
+                        buf[len++] = '\\';
+                        buf[len++] = (byte) c;
+                    } else if (c < 0x20) {
+                        // 6 bytes, not the 3 reserved, so top up for it and the rest of the string
+                        ensure(6 + (n - i - 1) * 3);
+                        escapeControl(c);
+                    } else {
+                        buf[len++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    buf[len++] = (byte) (0xC0 | (c >> 6));
+                    buf[len++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[len++] = (byte) (0xF0 | (cp >> 18));
+                    buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[len++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    buf[len++] = '?'; // lone surrogate cant be encoded
+                } else {
+                    buf[len++] = (byte) (0xE0 | (c >> 12));
+                    buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[len++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        // utf-8 bytes with json escaping, runs that need none are copied in one go
+        private void escaped(byte[] src, int off, int n){
+            ensure(n * 6); // worst case, every byte a control escape
+            int run = off;
+            for (int i = off; i < off + n; i++) {
+                byte b = src[i];
+                if (b < 0 || (b >= 0x20 && b != '"' && b != '\\')) continue;
+                System.arraycopy(src, run, buf, len, i - run);
+                len += i - run;
+                run = i + 1;
+                if (b < 0x20) {
+                    escapeControl((char) b);
+                } else {
+                    buf[len++] = '\\';
+                    buf[len++] = b;
+                }
+            }
+            System.arraycopy(src, run, buf, len, off + n - run);
+            len += off + n - run;
+        }
+
+        private void escapeControl(char c){
+            ensure(6);
+            buf[len++] = '\\';
+            switch (c) {
+                case '\n': buf[len++] = 'n'; return;
+                case '\r': buf[len++] = 'r'; return;
+                case '\t': buf[len++] = 't'; return;
+                case '\b': buf[len++] = 'b'; return;
+                case '\f': buf[len++] = 'f'; return;
+                default:
+                    buf[len++] = 'u';
+                    buf[len++] = '0';
+                    buf[len++] = '0';
+                    buf[len++] = HEX[c >> 4];
+                    buf[len++] = HEX[c & 0xF];
+            }
+        }
+
+        private void number(long v){
+            String digits = Long.toString(v);
+            ensure(digits.length());
+            for (int i = 0; i < digits.length(); i++) buf[len++] = (byte) digits.charAt(i);
+        }
+
+        private Writer raw(byte[] bytes){
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+            return this;
+        }
+
+        private void put(char c){
+            ensure(1);
+            buf[len++] = (byte) c;
+        }
+
+        void ensure(int extra){
+            if (len + extra > buf.length) {
+                byte[] bigger = new byte[Math.max(len + extra, buf.length * 2)];
+                System.arraycopy(buf, 0, bigger, 0, len);
+                buf = bigger;
+            }
+        }
+    }
+
+
+    // a quoted json string (quotes included) back to java, for reading stored records
+    static String unquote(byte[] buf, int start, int end){
+        return new Request().decode(buf, start + 1, end - 1);
+    }
+
+    private static byte[] ascii(String s){
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,349 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+
+// binary framing for the chat protocol, shared by server.java and rmi_bridge.java. newline json
+// stays the default, a client that sends BINARY as its first line gets BINARY back and from then
+// on every frame both ways is
+//   u32 length, big endian | u8 opcode | body        length counts the opcode and the body
+// varints are unsigned LEB128, a string is a varint byte count and that much utf-8, nothing is
+// escaped and nothing is scanned for: a reader takes the length and has the whole frame.
+// a request is its opcode and tagged fields in any order, tag = field << 1 | 1 for a string and
+// field << 1 for a varint, so a reader can skip fields it does not know:
+//   1 CREATEROOM  2 LISTROOMS  3 JOINROOM  4 SENDMSG  5 HISTORY  6 PING  7 PONG
+//   fields 1 room, 2 username, 3 msg (strings), 4 before, 5 limit, 6 since (varints)
+// replies have one layout per opcode:
+//   16 MESSAGE  string text, varint seq (0 for notices that are not in history)
+//   17 ROOMS    varint n, n strings
+//   18 HISTORY  varint first, u8 more, varint n, n strings (first is 0 when not numbered)
+//   6 PING, 7 PONG  no body
+// the replies say exactly what the json ones say, {"message":"Room does not exist!"} is a
+// MESSAGE with seq 0. a multiplexed (MUX) socket stays json
+final class ChatWire{
+    static final int HEADER = 4;
+
+    static final byte CREATEROOM = 1;
+    static final byte LISTROOMS = 2;
+    static final byte JOINROOM = 3;
+    static final byte SENDMSG = 4;
+    static final byte HISTORY = 5;
+    static final byte PING = 6;
+    static final byte PONG = 7;
+    static final byte MESSAGE = 16;
+    static final byte ROOMS = 17;
+    static final byte PAGE = 18;
+
+    static final int ROOM = 1;
+    static final int USERNAME = 2;
+    static final int MSG = 3;
+    static final int BEFORE = 4;
+    static final int LIMIT = 5;
+    static final int SINCE = 6;
+
+    private static final byte[] HANDSHAKE = "BINARY".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] ACCEPTED = "BINARY\n".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] PING_FRAME = {0, 0, 0, 1, PING};
+    static final byte[] PONG_FRAME = {0, 0, 0, 1, PONG};
+
+    // request names by opcode, what ChatJson.Request.arg would hold for the same request
+    private static final String[] ARGS = {null, "CREATEROOM", "LISTROOMS", "JOINROOM", "SENDMSG", "HISTORY", "PING", "PONG"};
+
+    private ChatWire(){}
+
+    static boolean isHandshake(byte[] buf, int off, int len){
+        if (len != HANDSHAKE.length) return false;
+        for (int i = 0; i < len; i++) {
+            if (buf[off + i] != HANDSHAKE[i]) return false;
+        }
+        return true;
+    }
+
+    // the length field of a frame starting at off, HEADER bytes must be there
+    static int length(byte[] buf, int off){
+        return (buf[off] & 0xFF) << 24 | (buf[off + 1] & 0xFF) << 16 | (buf[off + 2] & 0xFF) << 8 | buf[off + 3] & 0xFF;
+    }
+
+    // one request frame after its length field, opcode first, into req the way
+    // ChatJson.Request.parse fills it from json. false for an unknown opcode or a cut off field
+    static boolean parse(ChatJson.Request req, byte[] buf, int off, int len){
+        req.arg = req.room = req.username = req.msg = null;
+        req.before = req.limit = req.since = -1;
+        if (len < 1) return false;
+        int op = buf[off];
+        if (op <= 0 || op >= ARGS.length) return false;
+        req.arg = ARGS[op];
+
+        int end = off + len;
+        int[] at = {off + 1};
+        while (at[0] < end) {
+            long tag = varint(buf, at, end);
+            if (tag < 0) return false;
+            if ((tag & 1) == 0) {
+                long value = varint(buf, at, end);
+                if (value < 0) return false;
+                switch ((int) (tag >>> 1)) {
+                    case BEFORE -> req.before = value;
+                    case LIMIT -> req.limit = value;
+                    case SINCE -> req.since = value;
+                    default -> {}
+                }
+                continue;
+            }
+            long n = varint(buf, at, end);
+            if (n < 0 || n > end - at[0]) return false;
+            int field = (int) (tag >>> 1);
+            if (field >= ROOM && field <= MSG) {
+                String value = new String(buf, at[0], (int) n, StandardCharsets.UTF_8);
+                if (field == ROOM) req.room = value;
+                else if (field == USERNAME) req.username = value;
+                else req.msg = value;
+            }
+            at[0] += (int) n;
+        }
+        return true;
+    }
+
+    // a varint at at[0], which moves past it. -1 when it runs past end or over 63 bits
+    private static long varint(byte[] buf, int[] at, int end){
+        long value = 0;
+        for (int shift = 0, i = at[0]; i < end && shift < 63; shift += 7) {
+            byte b = buf[i++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                at[0] = i;
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    // a whole request frame, for java clients and the CDS training run. null fields and
+    // negative numbers are left out
+    static byte[] request(String arg, String room, String username, String msg, long limit){
+        int op = 0;
+        for (int i = 1; i < ARGS.length; i++) {
+            if (ARGS[i].equalsIgnoreCase(arg)) op = i;
+        }
+        if (op == 0) throw new IllegalArgumentException("no opcode for " + arg);
+        Writer out = new Writer();
+        out.begin((byte) op);
+        out.field(ROOM, room);
+        out.field(USERNAME, username);
+        out.field(MSG, msg);
+        if (limit >= 0) {
+            out.varint(LIMIT << 1);
+            out.varint(limit);
+        }
+        return out.finish().toByteArray();
+    }
+
+
+    // the ChatJson.Writer calls, encoded as binary frames. strings are written first and get
+    // their length put in front when they end, a history gets its count put in front of its entries
+    static final class Writer extends ChatJson.Writer{
+        private int string;  // where the open string's length goes
+        private int entries; // history entries so far
+        private int body;    // where the history entries start
+
+        Writer reset(){
+            len = 0;
+            return this;
+        }
+
+        Writer beginMessage(){
+            begin(MESSAGE);
+            openString();
+            return this;
+        }
+
+        Writer text(String s){
+            chars(s);
+            return this;
+        }
+
+        Writer endMessage(){
+            closeString();
+            varint(0);
+            return finish();
+        }
+
+        Writer message(String text){
+            return beginMessage().text(text).endMessage();
+        }
+
+        Writer message(String text, long seq){
+            beginMessage().text(text);
+            closeString();
+            varint(seq);
+            return finish();
+        }
+
+        Writer rooms(Collection<String> names){
+            begin(ROOMS);
+            varint(names.size());
+            for (String name : names) {
+                openString();
+                chars(name);
+                closeString();
+            }
+            return finish();
+        }
+
+        Writer history(List<String> messages){
+            beginHistory();
+            for (String m : messages) beginEntry(false).text(m).endEntry();
+            return endHistory(0, false);
+        }
+
+        Writer history(HistoryRing.Page page){
+            beginHistory();
+            for (String m : page.messages) beginEntry(false).text(m).endEntry();
+            return endHistory(page.first, page.more);
+        }
+
+        Writer beginHistory(){
+            begin(PAGE);
+            entries = 0;
+            body = len;
+            return this;
+        }
+
+        Writer beginEntry(boolean first){
+            entries++;
+            openString();
+            return this;
+        }
+
+        // stored utf-8 goes in as it is
+        Writer utf8(byte[] ring, int at, int length){
+            ensure(length);
+            int head = Math.min(length, ring.length - at);
+            System.arraycopy(ring, at, buf, len, head);
+            System.arraycopy(ring, 0, buf, len + head, length - head);
+            len += length;
+            return this;
+        }
+
+        Writer endEntry(){
+            closeString();
+            return this;
+        }
+
+        Writer endHistory(long first, boolean more){
+            // first, more and the count go in front of the entries, moving them up once
+            int size = varintSize(first) + 1 + varintSize(entries);
+            ensure(size);
+            System.arraycopy(buf, body, buf, body + size, len - body);
+            int end = len + size;
+            len = body;
+            varint(first);
+            buf[len++] = (byte) (more ? 1 : 0);
+            varint(entries);
+            len = end;
+            return finish();
+        }
+
+        // line() takes a whole encoded frame as it is, like PONG_FRAME. log records are always json
+        Writer rawBytes(java.nio.ByteBuffer src, int index, int length){
+            throw new UnsupportedOperationException("log records are json");
+        }
+
+        Writer record(String text){
+            throw new UnsupportedOperationException("log records are json");
+        }
+
+        public String toString(){
+            return len > HEADER ? "<binary op " + buf[HEADER] + ", " + (len - HEADER) + " bytes>" : "<binary>";
+        }
+
+        void begin(byte op){
+            len = 0;
+            ensure(HEADER + 1);
+            len = HEADER;
+            buf[len++] = op;
+        }
+
+        Writer finish(){
+            int n = len - HEADER;
+            buf[0] = (byte) (n >>> 24);
+            buf[1] = (byte) (n >>> 16);
+            buf[2] = (byte) (n >>> 8);
+            buf[3] = (byte) n;
+            return this;
+        }
+
+        void field(int field, String value){
+            if (value == null) return;
+            varint(field << 1 | 1);
+            openString();
+            chars(value);
+            closeString();
+        }
+
+        // one byte for the length, most strings are under 128 bytes. longer ones move up to make room
+        private void openString(){
+            ensure(1);
+            string = len++;
+        }
+
+        private void closeString(){
+            int n = len - string - 1;
+            int size = varintSize(n);
+            if (size > 1) {
+                ensure(size - 1);
+                System.arraycopy(buf, string + 1, buf, string + size, n);
+            }
+            int end = len + size - 1;
+            len = string;
+            varint(n);
+            len = end;
+        }
+
+        void varint(long v){
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) (v & 0x7F | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        private static int varintSize(long v){
+            int n = 1;
+            while ((v & ~0x7FL) != 0) {
+                v >>>= 7;
+                n++;
+            }
+            return n;
+        }
+
+        // utf-8 without escaping, a lone surrogate becomes '?' like String.getBytes would make it
+        private void chars(String s){
+            if (s == null) return;
+            int n = s.length();
+            ensure(n * 3);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[len++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[len++] = (byte) (0xC0 | c >> 6);
+                    buf[len++] = (byte) (0x80 | c & 0x3F);
+                } else if (!Character.isSurrogate(c)) {
+                    buf[len++] = (byte) (0xE0 | c >> 12);
+                    buf[len++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buf[len++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[len++] = (byte) (0xF0 | cp >> 18);
+                    buf[len++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    buf[len++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    buf[len++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    buf[len++] = '?';
+                }
+            }
+        }
+    }
+}
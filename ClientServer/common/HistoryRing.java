@@ -0,0 +1,123 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+// fixed size room history shared by both java servers, one String per message. the
+// HISTORY_STORE=strings store, PackedHistory is the default. keeps the newest HISTORY_CAPACITY
+// messages (and at most HISTORY_BYTES of text when that is set), every message gets a
+// sequence number so clients can page backwards from any point.
+// public because Page is returned over rmi
+public final class HistoryRing implements RoomHistory{
+    static final int CAPACITY = Integer.parseInt(System.getenv().getOrDefault("HISTORY_CAPACITY", "1000"));
+    static final long BYTE_BUDGET = Long.parseLong(System.getenv().getOrDefault("HISTORY_BYTES", "0"));
+    static final int JOIN_LIMIT = Integer.parseInt(System.getenv().getOrDefault("HISTORY_JOIN_LIMIT", "100"));
+
+    // one page of history, oldest first
+    public static final class Page implements Serializable{
+        private static final long serialVersionUID = 1L;
+
+        final ArrayList<String> messages;
+        final long first;   // seq of messages.get(0), pass it as "before" to get the previous page
+        final boolean more; // older messages are still retained
+
+        Page(ArrayList<String> messages, long first, boolean more){
+            this.messages = messages;
+            this.first = first;
+            this.more = more;
+        }
+    }
+
+    private static final class Entry{
+        final long seq;
+        final String text;
+
+        Entry(long seq, String text){
+            this.seq = seq;
+            this.text = text;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int capacity;
+    private final long byteBudget;
+
+    private volatile long first = 1; // oldest retained seq
+    private volatile long next = 1;  // seq the next append gets
+    private long bytes;              // retained text, only touched under the append lock
+
+    HistoryRing(){
+        this(CAPACITY, BYTE_BUDGET);
+    }
+
+    // a room handed over from another cluster node carries on from the sequence numbers it had there
+    HistoryRing(long firstSeq){
+        this(CAPACITY, BYTE_BUDGET);
+        first = next = Math.max(1, firstSeq);
+    }
+
+    HistoryRing(int capacity, long byteBudget){
+        this.capacity = Math.max(1, capacity);
+        this.byteBudget = byteBudget;
+        slots = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    // appends lock only this room, readers never lock
+    public synchronized long append(String text){
+        long seq = next;
+        long oldest = first;
+        if (seq - oldest == capacity) {
+            bytes -= slots.get(index(oldest)).text.length();
+            oldest++;
+        }
+        slots.set(index(seq), new Entry(seq, text));
+        bytes += text.length();
+
+        // byte budget trims from the old end but always keeps the newest message
+        while (byteBudget > 0 && bytes > byteBudget && oldest < seq) {
+            bytes -= slots.get(index(oldest)).text.length();
+            oldest++;
+        }
+        first = oldest;
+        next = seq + 1;
+        return seq;
+    }
+
+    public ChatJson.Writer writePage(ChatJson.Writer out, long before, int limit){
+        return out.history(before(before, limit));
+    }
+
+    // up to limit messages older than the given seq
+    public Page before(long before, int limit){
+        limit = Math.max(0, Math.min(limit, capacity));
+        long hi = Math.min(before, next);
+        long lo = Math.max(first, hi - limit);
+
+        ArrayList<String> out = new ArrayList<>((int) Math.max(0, hi - lo));
+        long start = hi;
+        for (long seq = lo; seq < hi; seq++) {
+            Entry e = slots.get(index(seq));
+            if (e == null || e.seq != seq) {
+                // overwritten by a concurrent append, everything before it is gone too
+                out.clear();
+                start = hi;
+                continue;
+            }
+            if (out.isEmpty()) start = seq;
+            out.add(e.text);
+        }
+        return new Page(out, start, start > first);
+    }
+
+    long firstSeq(){
+        return first;
+    }
+
+    public long nextSeq(){
+        return next;
+    }
+
+    private int index(long seq){
+        return (int) (seq % capacity);
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+
+// int keys to objects in two flat arrays, open addressing with linear probing, so a member is a
+// slot in each array instead of a boxed key, a map node and a String. not thread safe, the rmi
+// server only touches a room's map under the room lock
+final class IntMap<V>{
+    private static final int FREE = -1; // keys are Interner ids, never negative
+
+    private int[] keys = new int[8];
+    private Object[] values = new Object[8];
+    private int size;
+
+    IntMap(){
+        Arrays.fill(keys, FREE);
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key){
+        int i = find(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    // the value that was there before, or null
+    @SuppressWarnings("unchecked")
+    V put(int key, V value){
+        int i = find(key);
+        if (i >= 0) {
+            V previous = (V) values[i];
+            values[i] = value;
+            return previous;
+        }
+        if ((size + 1) * 4 > keys.length * 3) resize(keys.length * 2);
+        i = slot(key, keys.length);
+        while (keys[i] != FREE) i = (i + 1) & (keys.length - 1);
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int key){
+        int i = find(key);
+        if (i < 0) return null;
+        V previous = (V) values[i];
+        // shift the rest of the probe run back so lookups never stop at a hole
+        int mask = keys.length - 1;
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = slot(keys[j], keys.length);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = FREE;
+        values[hole] = null;
+        size--;
+        return previous;
+    }
+
+    int size(){
+        return size;
+    }
+
+    interface Entry<V>{
+        void accept(int key, V value);
+    }
+
+    // every entry, the map must not change meanwhile
+    @SuppressWarnings("unchecked")
+    void forEach(Entry<? super V> action){
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) action.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    private int find(int key){
+        int mask = keys.length - 1;
+        for (int i = slot(key, keys.length); keys[i] != FREE; i = (i + 1) & mask) {
+            if (keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    private void resize(int length){
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[length];
+        values = new Object[length];
+        Arrays.fill(keys, FREE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) continue;
+            int j = slot(oldKeys[i], length);
+            while (keys[j] != FREE) j = (j + 1) & (length - 1);
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    private static int slot(int key, int length){
+        int h = key * 0x9E3779B9; // interner ids are dense, spread them over the table
+        return (h ^ (h >>> 16)) & (length - 1);
+    }
+}
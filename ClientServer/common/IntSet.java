@@ -0,0 +1,138 @@
+import java.util.Arrays;
+
+
+// a set of ints for room membership, 4 bytes a member instead of a map node and a reference.
+// chunked copy on write: the members are CHUNK sized int arrays, add and remove copy only the
+// chunk they touch and the array of chunks, so a join or leave costs CHUNK + size / CHUNK and
+// filling a big room stays linear. readers take snapshot() and iterate it without locking, so a
+// join or leave never waits for a broadcast and the other way round. where each member sits is
+// kept in an open addressing int map next to it, only touched under the lock
+final class IntSet{
+    static final int CHUNK = 256;
+    private static final int[][] EMPTY = new int[0][];
+    private static final int FREE = -1; // members are Members ids, never negative
+
+    // every chunk full but the last one, which is never empty
+    private volatile int[][] chunks = EMPTY;
+    private int size; // under the lock
+
+    // member -> its position in chunks, open addressing with linear probing. under the lock
+    private int[] keys = free(8);
+    private int[] positions = new int[8];
+
+    synchronized boolean add(int value){
+        if (find(value) >= 0) return false;
+        int[][] current = chunks;
+        int[][] next;
+        if (size % CHUNK == 0) {
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = new int[]{value};
+        } else {
+            next = current.clone();
+            int[] last = current[current.length - 1];
+            int[] bigger = Arrays.copyOf(last, last.length + 1);
+            bigger[last.length] = value;
+            next[current.length - 1] = bigger;
+        }
+        put(value, size++);
+        chunks = next;
+        return true;
+    }
+
+    synchronized boolean remove(int value){
+        int i = find(value);
+        if (i < 0) return false;
+        int at = positions[i];
+        delete(i);
+
+        // the last member moves into the hole, order doesnt matter
+        int[][] next = chunks.clone();
+        int lastChunk = next.length - 1;
+        int[] last = next[lastChunk];
+        int moved = last[last.length - 1];
+        if (last.length == 1) {
+            next = Arrays.copyOf(next, lastChunk);
+        } else {
+            next[lastChunk] = Arrays.copyOf(last, last.length - 1);
+        }
+        size--;
+        if (at != size) {
+            int[] chunk = next[at / CHUNK].clone(); // a copy, a reader may still iterate the old one
+            chunk[at % CHUNK] = moved;
+            next[at / CHUNK] = chunk;
+            positions[find(moved)] = at;
+        }
+        chunks = next;
+        return true;
+    }
+
+    // the members right now as chunks, never changed afterwards
+    int[][] snapshot(){
+        return chunks;
+    }
+
+    int size(){
+        int[][] current = chunks;
+        return current.length == 0 ? 0 : (current.length - 1) * CHUNK + current[current.length - 1].length;
+    }
+
+    boolean isEmpty(){
+        return chunks.length == 0;
+    }
+
+    private int find(int key){
+        int mask = keys.length - 1;
+        for (int i = slot(key, keys.length); keys[i] != FREE; i = (i + 1) & mask) {
+            if (keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    private void put(int key, int position){
+        if ((size + 1) * 4 > keys.length * 3) resize(keys.length * 2);
+        int i = slot(key, keys.length);
+        while (keys[i] != FREE) i = (i + 1) & (keys.length - 1);
+        keys[i] = key;
+        positions[i] = position;
+    }
+
+    // shift the rest of the probe run back so lookups never stop at a hole, like IntMap.remove
+    private void delete(int i){
+        int mask = keys.length - 1;
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = slot(keys[j], keys.length);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                positions[hole] = positions[j];
+                hole = j;
+            }
+        }
+        keys[hole] = FREE;
+    }
+
+    private void resize(int length){
+        int[] oldKeys = keys;
+        int[] oldPositions = positions;
+        keys = free(length);
+        positions = new int[length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) continue;
+            int j = slot(oldKeys[i], length);
+            while (keys[j] != FREE) j = (j + 1) & (length - 1);
+            keys[j] = oldKeys[i];
+            positions[j] = oldPositions[i];
+        }
+    }
+
+    private static int[] free(int length){
+        int[] keys = new int[length];
+        Arrays.fill(keys, FREE);
+        return keys;
+    }
+
+    private static int slot(int key, int length){
+        int h = key * 0x9E3779B9; // member ids are dense, spread them over the table
+        return (h ^ (h >>> 16)) & (length - 1);
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// names that repeat in every message (usernames, room names) kept once and handed out as small
+// dense int ids, so history and membership store 4 bytes instead of another copy of the string.
+// ids are never given back: retained history may still point at one. usernames are picked by
+// clients, so their table stops at LIMIT_INTERNED_USERS names and a name past that gets -1, the
+// caller keeps the string itself then. rooms are never removed, their table is as big as the
+// registry anyway
+final class Interner{
+    static final int MAX_USERS = Integer.parseInt(System.getenv().getOrDefault("LIMIT_INTERNED_USERS", "100000"));
+
+    static final Interner USERS = new Interner(MAX_USERS);
+    static final Interner ROOMS = new Interner(Integer.MAX_VALUE);
+
+    private final int max;
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int size; // under the lock
+    private boolean full; // under the lock, warned once
+
+    Interner(int max){
+        this.max = Math.max(0, max);
+    }
+
+    // the name's id, a new one the first time it is seen, -1 once the table is full. lock free once it has one
+    int id(String name){
+        Integer id = ids.get(name);
+        return id != null ? id : add(name);
+    }
+
+    // the name behind an id this interner handed out
+    String name(int id){
+        return names[id];
+    }
+
+    int size(){
+        return ids.size();
+    }
+
+    private synchronized int add(String name){
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        if (size >= max) {
+            if (!full) Log.warn("interner full, new names are stored as strings", "names", size);
+            full = true;
+            return -1;
+        }
+        String[] current = names;
+        if (size == current.length) names = current = Arrays.copyOf(current, size * 2);
+        current[size] = name;
+        // the slot is written before the id is published, whoever gets the id can read the name
+        ids.put(name, size);
+        return size++;
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+
+// abuse limits shared by the tcp server and the rmi bridge.
+// SENDMSG costs one token and CREATEROOM LIMIT_ROOM_COST tokens, taken from two token buckets:
+//   the socket's, LIMIT_CONN_RATE per second with LIMIT_CONN_BURST saved up
+//   the username's, LIMIT_USER_RATE per second with LIMIT_USER_BURST saved up, across every socket
+// a rate of 0 turns that bucket off. the caps are plain sizes: LIMIT_MAX_ROOMS rooms per server,
+// LIMIT_MAX_MESSAGE_CHARS chars per message and LIMIT_MAX_LINE_BYTES per request line
+final class Limits{
+    static final double USER_RATE = Double.parseDouble(System.getenv().getOrDefault("LIMIT_USER_RATE", "100"));
+    static final double USER_BURST = Double.parseDouble(System.getenv().getOrDefault("LIMIT_USER_BURST", "200"));
+    static final double CONN_RATE = Double.parseDouble(System.getenv().getOrDefault("LIMIT_CONN_RATE", "1000"));
+    static final double CONN_BURST = Double.parseDouble(System.getenv().getOrDefault("LIMIT_CONN_BURST", "2000"));
+    static final double ROOM_COST = Double.parseDouble(System.getenv().getOrDefault("LIMIT_ROOM_COST", "10"));
+    static final int MAX_ROOMS = Integer.parseInt(System.getenv().getOrDefault("LIMIT_MAX_ROOMS", "10000"));
+    static final int MAX_MESSAGE = Integer.parseInt(System.getenv().getOrDefault("LIMIT_MAX_MESSAGE_CHARS", "4000"));
+    static final int MAX_LINE = Integer.parseInt(System.getenv().getOrDefault("LIMIT_MAX_LINE_BYTES", "65536"));
+
+    // a bucket that always has tokens, for a limit thats turned off
+    static final Bucket UNLIMITED = new Bucket(0, 0);
+
+    // username -> its bucket, swept of buckets that refilled so quiet users dont pile up
+    private static final ConcurrentHashMap<String, Bucket> users = new ConcurrentHashMap<>();
+
+    static{
+        if (USER_RATE > 0) {
+            Thread.ofVirtual().name("limits-sweep").start(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(60_000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    users.values().removeIf(b -> b.full(now));
+                }
+            });
+        }
+    }
+
+    private Limits(){}
+
+    // tokens a request costs, 0 for the ones that are not limited
+    static double cost(String command){
+        switch(command){
+            case "SENDMSG": return 1;
+            case "CREATEROOM": return ROOM_COST;
+            default: return 0;
+        }
+    }
+
+    // a new socket's own bucket
+    static Bucket connection(){
+        return CONN_RATE > 0 ? new Bucket(CONN_RATE, CONN_BURST) : UNLIMITED;
+    }
+
+    // the bucket every socket of this username spends from
+    static Bucket user(String username){
+        if (USER_RATE <= 0 || username == null) return UNLIMITED;
+        return users.computeIfAbsent(username, u -> new Bucket(USER_RATE, USER_BURST));
+    }
+
+    static final class Bucket{
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        private Bucket(double perSecond, double burst){
+            this.perNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+        }
+
+        // 0 when cost was taken, otherwise nothing is taken and its the nanos until there will be enough
+        synchronized long take(double cost){
+            if (perNano == 0) return 0;
+            long now = System.nanoTime();
+            refill(now);
+            cost = Math.min(cost, burst); // a cost above the burst would never fit
+            if (tokens >= cost) {
+                tokens -= cost;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((cost - tokens) / perNano));
+        }
+
+        // give back what take() got, when a second bucket said no
+        synchronized void refund(double cost){
+            if (perNano == 0) return;
+            tokens = Math.min(burst, tokens + Math.min(cost, burst));
+        }
+
+        private synchronized boolean full(long now){
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now){
+            tokens = Math.min(burst, tokens + (now - refilled) * perNano);
+            refilled = now;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+
+// newline framing for blocking sockets, hands out each line as a slice of one reusable byte buffer.
+// after frames() it hands out ChatWire frames the same way, the slice is the opcode and body
+final class LineReader{
+
+    private final InputStream in;
+    private byte[] buf = new byte[8192];
+    private int filled;    // bytes read into buf
+    private int next;      // where the next line starts
+    private int lineStart;
+    private int lineLength;
+    private boolean frames;
+
+    LineReader(InputStream in){
+        this.in = in;
+    }
+
+    // everything after the current line is length prefixed frames
+    void frames(){
+        frames = true;
+    }
+
+    // false at end of stream, otherwise the line is buffer()[start(), start() + length())
+    boolean next() throws IOException{
+        if (frames) return nextFrame();
+        int scan = next;
+        while (true) {
+            for (int i = scan; i < filled; i++) {
+                if (buf[i] == '\n') {
+                    lineStart = next;
+                    lineLength = i - next;
+                    if (lineLength > 0 && buf[i - 1] == '\r') lineLength--;
+                    next = i + 1;
+                    return true;
+                }
+            }
+            scan = filled;
+
+            // no newline yet, make room and read more
+            if (next > 0) scan -= compact();
+            if (filled == buf.length) {
+                if (buf.length >= Limits.MAX_LINE) throw new IOException("line too long");
+                grow(buf.length * 2);
+            }
+            if (!read()) return false;
+        }
+    }
+
+    // the length says how much to wait for, nothing is scanned
+    private boolean nextFrame() throws IOException{
+        while (true) {
+            if (filled - next >= ChatWire.HEADER) {
+                int length = ChatWire.length(buf, next);
+                if (length < 1 || length > Limits.MAX_LINE) throw new IOException("bad frame length " + length);
+                int end = next + ChatWire.HEADER + length;
+                if (end <= filled) {
+                    lineStart = next + ChatWire.HEADER;
+                    lineLength = length;
+                    next = end;
+                    return true;
+                }
+                if (ChatWire.HEADER + length > buf.length) grow(ChatWire.HEADER + length);
+            }
+            if (next > 0) compact();
+            if (!read()) return false;
+        }
+    }
+
+    // moves the unread bytes to the front, returns how far they moved
+    private int compact(){
+        int moved = next;
+        System.arraycopy(buf, next, buf, 0, filled - next);
+        filled -= next;
+        next = 0;
+        return moved;
+    }
+
+    private void grow(int size){
+        byte[] bigger = new byte[Math.max(size, buf.length)];
+        System.arraycopy(buf, next, bigger, 0, filled - next);
+        filled -= next;
+        next = 0;
+        buf = bigger;
+    }
+
+    private boolean read() throws IOException{
+        int n = in.read(buf, filled, buf.length - filled);
+        if (n < 0) return false;
+        filled += n;
+        return true;
+    }
+
+    byte[] buffer(){
+        return buf;
+    }
+
+    int start(){
+        return lineStart;
+    }
+
+    int length(){
+        return lineLength;
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.PrintStream;
+import java.time.Instant;
+
+
+// level gated logging shared by the java servers, one logfmt line per event:
+//   time=2026-01-01T12:00:00Z level=info thread=main msg="room created" room=general
+// LOG_LEVEL picks error, warn, info (default) or debug. every request, reply and broadcast
+// is debug, call sites check Log.DEBUG first so at info the hot path builds no strings and
+// never touches the System.out lock
+final class Log{
+    enum Level{ERROR, WARN, INFO, DEBUG}
+
+    static final Level LEVEL = Level.valueOf(System.getenv().getOrDefault("LOG_LEVEL", "info").trim().toUpperCase());
+    static final boolean DEBUG = LEVEL == Level.DEBUG;
+    static final boolean INFO = LEVEL.compareTo(Level.INFO) >= 0;
+
+    private static final PrintStream out = System.out;
+
+    private Log(){}
+
+    // fields are key, value pairs after the message
+    static void error(String msg, Object... fields){
+        write(Level.ERROR, msg, fields);
+    }
+
+    static void warn(String msg, Object... fields){
+        if (LEVEL.compareTo(Level.WARN) >= 0) write(Level.WARN, msg, fields);
+    }
+
+    static void info(String msg, Object... fields){
+        if (INFO) write(Level.INFO, msg, fields);
+    }
+
+    static void debug(String msg, Object... fields){
+        if (DEBUG) write(Level.DEBUG, msg, fields);
+    }
+
+    private static void write(Level level, String msg, Object[] fields){
+        StringBuilder line = new StringBuilder(96);
+        line.append("time=").append(Instant.now())
+                .append(" level=").append(level.name().toLowerCase())
+                .append(" thread=");
+        value(line, Thread.currentThread().getName());
+        line.append(" msg=");
+        value(line, msg);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            value(line, String.valueOf(fields[i + 1]));
+        }
+        out.println(line);
+    }
+
+    // bare when it is one word, quoted and escaped otherwise
+    private static void value(StringBuilder line, String v){
+        boolean plain = !v.isEmpty();
+        for (int i = 0; i < v.length() && plain; i++) {
+            char c = v.charAt(i);
+            plain = c > ' ' && c != '"' && c != '=' && c != '\\';
+        }
+        if (plain) {
+            line.append(v);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '"' || c == '\\') line.append('\\').append(c);
+            else if (c == '\n') line.append("\\n");
+            else if (c == '\r') line.append("\\r");
+            else line.append(c);
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,390 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+// durable room history on local disk, turned on by HISTORY_LOG_DIR.
+//
+// every room gets its own directory of append only segments written through mmap:
+//   room-<n>/name            the room name in utf-8
+//   room-<n>/<seq>.log       records, each one ,"json escaped text"
+//   room-<n>/<seq>.idx       int end offset of every record in the .log
+// <seq> is the sequence number of the first record, so the k-th record is seq + k.
+// a group commit thread msyncs dirty segments every HISTORY_LOG_FLUSH_MS, appenders never wait on disk
+final class MessageLog{
+    static final String DIR = System.getenv("HISTORY_LOG_DIR");
+    static final int SEGMENT_BYTES = Integer.parseInt(System.getenv().getOrDefault("HISTORY_LOG_SEGMENT_BYTES", String.valueOf(4 << 20)));
+    static final int SEGMENT_RECORDS = Integer.parseInt(System.getenv().getOrDefault("HISTORY_LOG_SEGMENT_RECORDS", "16384"));
+    static final int RETAIN_SEGMENTS = Integer.parseInt(System.getenv().getOrDefault("HISTORY_LOG_RETAIN_SEGMENTS", "0"));
+    static final long FLUSH_MS = Long.parseLong(System.getenv().getOrDefault("HISTORY_LOG_FLUSH_MS", "10"));
+    // pages at least this big are streamed from the files with sendfile, smaller ones are copied into one write
+    static final long SENDFILE_BYTES = Long.parseLong(System.getenv().getOrDefault("HISTORY_SENDFILE_BYTES", "16384"));
+
+    private final Path root;
+    private final Map<String, RoomLog> recovered = new LinkedHashMap<>();
+    private final Queue<RoomLog> dirty = new ConcurrentLinkedQueue<>();
+    private int nextRoomDir;
+
+    // null when HISTORY_LOG_DIR is not set, name keeps the two servers apart in one directory
+    static MessageLog open(String name){
+        if (DIR == null || DIR.isBlank()) return null;
+        try {
+            MessageLog log = new MessageLog(Paths.get(DIR, name));
+            log.startCommitter();
+            return log;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cant open message log in " + DIR, e);
+        }
+    }
+
+    private MessageLog(Path root) throws IOException{
+        this.root = root;
+        Files.createDirectories(root);
+
+        // startup recovery: every room directory becomes a room again with its sequence numbers
+        List<Path> dirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "room-*")) {
+            for (Path dir : stream) dirs.add(dir);
+        }
+        dirs.sort((a, b) -> Integer.compare(dirNumber(a), dirNumber(b)));
+        for (Path dir : dirs) {
+            nextRoomDir = Math.max(nextRoomDir, dirNumber(dir) + 1);
+            Path nameFile = dir.resolve("name");
+            if (!Files.exists(nameFile)) continue;
+            String name = new String(Files.readAllBytes(nameFile), StandardCharsets.UTF_8);
+            recovered.put(name, new RoomLog(this, dir));
+        }
+        if (!recovered.isEmpty()) {
+            Log.info("message log recovered", "rooms", recovered.size(), "dir", root);
+        }
+    }
+
+    // rooms found on disk at startup, in creation order
+    Map<String, RoomLog> recovered(){
+        return recovered;
+    }
+
+    // new room, its directory is created right away so even an empty room survives a restart
+    synchronized RoomLog create(String name){
+        try {
+            Path dir = root.resolve("room-" + nextRoomDir++);
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("name"), name.getBytes(StandardCharsets.UTF_8));
+            return new RoomLog(this, dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cant create log for room " + name, e);
+        }
+    }
+
+    private void startCommitter(){
+        Thread committer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(FLUSH_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // one msync per dirty room covers every append since the last round
+                RoomLog log;
+                while ((log = dirty.poll()) != null) {
+                    log.sync();
+                }
+            }
+        }, "message-log-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    private static int dirNumber(Path dir){
+        try {
+            return Integer.parseInt(dir.getFileName().toString().substring("room-".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    private static final class Segment{
+        final long base;
+        final Path dataPath;
+        final Path indexPath;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+        final FileChannel file; // read only, for transferTo. never closed by us: a replay may still be
+                                // using it after retention deletes the file, the channel's cleaner closes it
+        final int maxRecords;
+        volatile int count;
+        int position; // end of the last record, only the appender touches it
+
+        Segment(Path dir, long base, int dataBytes) throws IOException{
+            this.base = base;
+            dataPath = dir.resolve(String.format("%020d.log", base));
+            indexPath = dir.resolve(String.format("%020d.idx", base));
+            data = map(dataPath, dataBytes);
+            index = map(indexPath, SEGMENT_RECORDS * 4);
+            file = FileChannel.open(dataPath, StandardOpenOption.READ);
+            maxRecords = index.capacity() / 4; // an old segment keeps the size it was made with
+        }
+
+        private static MappedByteBuffer map(Path path, int size) throws IOException{
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long existing = ch.size();
+                // an existing file keeps its size, the mapping stays valid after the channel closes
+                return ch.map(FileChannel.MapMode.READ_WRITE, 0, existing > 0 ? existing : size);
+            }
+        }
+
+        // byte offset where record k starts
+        int start(int k){
+            return k == 0 ? 0 : index.getInt((k - 1) * 4);
+        }
+
+        int end(int k){
+            return index.getInt(k * 4);
+        }
+
+        // sealed segments trust their index, the last one is rebuilt by scanning the records
+        void recover(boolean sealed){
+            int k = 0;
+            if (sealed) {
+                int prev = 0;
+                while (k < maxRecords) {
+                    int end = index.getInt(k * 4);
+                    if (end <= prev || end > data.capacity()) break;
+                    prev = end;
+                    k++;
+                }
+                if (k > 0 || data.capacity() == 0 || data.get(0) != ',') {
+                    count = k;
+                    position = prev;
+                    return;
+                }
+            }
+
+            int pos = 0;
+            k = 0;
+            while (k < maxRecords && pos < data.capacity() && data.get(pos) == ',') {
+                int end = scanRecord(pos);
+                if (end < 0) break; // torn write at the tail
+                index.putInt(k * 4, end);
+                pos = end;
+                k++;
+            }
+            // wipe anything half written so the next recovery stops at the same place
+            for (int i = pos; i < data.capacity() && data.get(i) != 0; i++) {
+                data.put(i, (byte) 0);
+            }
+            for (int i = k; i < maxRecords && index.getInt(i * 4) != 0; i++) {
+                index.putInt(i * 4, 0);
+            }
+            count = k;
+            position = pos;
+        }
+
+        // pos is on the leading comma, returns the offset just past the closing quote
+        private int scanRecord(int pos){
+            if (pos + 1 >= data.capacity() || data.get(pos + 1) != '"') return -1;
+            for (int i = pos + 2; i < data.capacity(); i++) {
+                byte b = data.get(i);
+                if (b == '\\') i++;
+                else if (b == '"') return i + 1;
+                else if (b == 0) return -1;
+            }
+            return -1;
+        }
+    }
+
+
+    // a history page as byte ranges of the segment files. the ranges concatenated are the
+    // body of the "history" array, the first record's leading comma is already left out
+    static final class Replay{
+        final ArrayList<FileChannel> files = new ArrayList<>();
+        final ArrayList<long[]> ranges = new ArrayList<>(); // {position, count} per file
+        long bytes;
+        long first;
+        boolean more;
+    }
+
+
+    // one room's log, appends lock the room and readers never lock
+    static final class RoomLog implements RoomHistory{
+        private final MessageLog owner;
+        private final Path dir;
+        private final ChatJson.Writer encoder = new ChatJson.Writer();
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        private volatile Segment[] segments;
+        private volatile long next;
+
+        private RoomLog(MessageLog owner, Path dir) throws IOException{
+            this.owner = owner;
+            this.dir = dir;
+
+            List<Long> bases = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+                for (Path p : stream) {
+                    String file = p.getFileName().toString();
+                    bases.add(Long.parseLong(file.substring(0, file.length() - ".log".length())));
+                }
+            }
+            bases.sort(null);
+
+            Segment[] segs = new Segment[bases.size()];
+            for (int i = 0; i < segs.length; i++) {
+                segs[i] = new Segment(dir, bases.get(i), SEGMENT_BYTES);
+                segs[i].recover(i < segs.length - 1);
+            }
+            segments = segs;
+            next = segs.length == 0 ? 1 : segs[segs.length - 1].base + segs[segs.length - 1].count;
+        }
+
+        public synchronized long append(String text){
+            ChatJson.Writer record = encoder.record(text);
+            int len = record.length();
+            try {
+                Segment seg = segments.length == 0 ? null : segments[segments.length - 1];
+                if (seg == null || seg.count == seg.maxRecords || seg.position + len > seg.data.capacity()) {
+                    seg = roll(seg, len);
+                }
+                seg.data.put(seg.position, record.array(), 0, len);
+                seg.position += len;
+                seg.index.putInt(seg.count * 4, seg.position);
+                seg.count++;
+            } catch (IOException e) {
+                throw new UncheckedIOException("cant append to " + dir, e);
+            }
+            long seq = next;
+            next = seq + 1; // volatile write publishes the record to readers
+
+            if (queued.compareAndSet(false, true)) {
+                owner.dirty.add(this);
+            }
+            return seq;
+        }
+
+        private Segment roll(Segment full, int recordBytes) throws IOException{
+            if (full != null) {
+                // sealed segments are synced once, recovery trusts their index from now on
+                full.data.force();
+                full.index.force();
+            }
+            Segment seg = new Segment(dir, next, Math.max(SEGMENT_BYTES, recordBytes));
+            Segment[] segs = Arrays.copyOf(segments, segments.length + 1);
+            segs[segs.length - 1] = seg;
+
+            if (RETAIN_SEGMENTS > 0 && segs.length > RETAIN_SEGMENTS) {
+                int drop = segs.length - RETAIN_SEGMENTS;
+                for (int i = 0; i < drop; i++) {
+                    // readers holding the old mapping keep working, the pages go away with it
+                    Files.deleteIfExists(segs[i].dataPath);
+                    Files.deleteIfExists(segs[i].indexPath);
+                }
+                segs = Arrays.copyOfRange(segs, drop, segs.length);
+            }
+            segments = segs;
+            return seg;
+        }
+
+        void sync(){
+            queued.set(false);
+            Segment[] segs = segments;
+            if (segs.length == 0) return;
+            Segment last = segs[segs.length - 1];
+            last.data.force();
+            last.index.force();
+        }
+
+        public long nextSeq(){
+            return next;
+        }
+
+        public HistoryRing.Page before(long before, int limit){
+            ArrayList<String> out = new ArrayList<>();
+            long[] first = new long[1];
+            boolean more = walk(before, limit, first, (seg, k) -> {
+                int start = seg.start(k);
+                int end = seg.end(k);
+                byte[] bytes = new byte[end - start];
+                seg.data.get(start, bytes, 0, bytes.length);
+                out.add(ChatJson.unquote(bytes, 1, bytes.length)); // skip the leading comma
+            }, null);
+            return new HistoryRing.Page(out, first[0], more);
+        }
+
+        // copies whole runs of records out of the mapping, no strings are built
+        public ChatJson.Writer writePage(ChatJson.Writer out, long before, int limit){
+            if (out instanceof ChatWire.Writer) return out.history(before(before, limit)); // records are json
+            out.beginHistory();
+            long[] first = new long[1];
+            boolean more = walk(before, limit, first, null, (seg, from, to, leading) -> {
+                int start = seg.start(from) + (leading ? 1 : 0);
+                out.rawBytes(seg.data, start, seg.end(to - 1) - start);
+            });
+            return out.endHistory(first[0], more);
+        }
+
+        // same page as writePage, but only says where it is on disk so it can go out with sendfile.
+        // records below next are never rewritten, so the ranges stay valid while the page is sent
+        Replay replay(long before, int limit){
+            Replay page = new Replay();
+            long[] first = new long[1];
+            page.more = walk(before, limit, first, null, (seg, from, to, leading) -> {
+                int start = seg.start(from) + (leading ? 1 : 0);
+                int count = seg.end(to - 1) - start;
+                page.files.add(seg.file);
+                page.ranges.add(new long[]{start, count});
+                page.bytes += count;
+            });
+            page.first = first[0];
+            return page;
+        }
+
+        interface RecordVisitor{
+            void visit(Segment seg, int k);
+        }
+
+        interface RunVisitor{
+            void visit(Segment seg, int from, int to, boolean leading);
+        }
+
+        // finds the records in [max(first, hi - limit), hi) with hi = min(before, next)
+        // and hands them out per record or per contiguous run within a segment
+        private boolean walk(long before, int limit, long[] firstOut, RecordVisitor records, RunVisitor runs){
+            long hi = Math.min(before, next); // read next before segments, see append
+            Segment[] segs = segments;
+            long oldest = segs.length == 0 ? hi : segs[0].base;
+            long lo = Math.max(oldest, hi - Math.max(0, limit));
+            firstOut[0] = lo;
+
+            boolean leading = true;
+            for (Segment seg : segs) {
+                long segEnd = seg.base + seg.count;
+                if (segEnd <= lo || seg.base >= hi) continue;
+                int from = (int) (Math.max(lo, seg.base) - seg.base);
+                int to = (int) (Math.min(hi, segEnd) - seg.base);
+                if (runs != null) {
+                    runs.visit(seg, from, to, leading);
+                } else {
+                    for (int k = from; k < to; k++) records.visit(seg, k);
+                }
+                leading = false;
+            }
+            return lo > oldest;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+
+// metrics of one java server process. recording is a LongAdder increment, everything else
+// (rates, gauges, rendering) happens when someone reads them. serve() publishes the registry
+//   over jmx as interlink.crosschat:type=Metrics,name=<name>
+//   as prometheus text on http://<PREFIX>_METRICS_HOST:<PREFIX>_METRICS_PORT/metrics, when the port is set
+final class Metrics implements DynamicMBean{
+    final String name;
+
+    // registered at startup, read by every scrape
+    private final List<Counter> counters = new CopyOnWriteArrayList<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+    private final List<Labeled> labeled = new CopyOnWriteArrayList<>();
+    private final List<Histogram> histograms = new CopyOnWriteArrayList<>();
+
+    Metrics(String name){
+        this.name = name;
+    }
+
+    static final class Counter{
+        final String name;
+        final String help;
+        private final LongAdder total = new LongAdder();
+        private long last;
+        private volatile long perSecond; // over the last full second, kept by the ticker
+
+        Counter(String name, String help){
+            this.name = name;
+            this.help = help;
+        }
+
+        void inc(){
+            total.increment();
+        }
+
+        void add(long n){
+            total.add(n);
+        }
+
+        long total(){
+            return total.sum();
+        }
+
+        long perSecond(){
+            return perSecond;
+        }
+
+        private void tick(){
+            long now = total.sum();
+            perSecond = now - last;
+            last = now;
+        }
+    }
+
+    private record Gauge(String name, String help, LongSupplier value){}
+
+    // one gauge per label value, like members per room
+    private record Labeled(String name, String help, String label, Supplier<Map<String, ? extends Number>> values){}
+
+    // latencies in nanoseconds, exported in seconds. buckets double from 1us to about 17s
+    static final class Histogram{
+        private static final int BUCKETS = 25;
+
+        final String name;
+        final String help;
+        private final LongAdder[] counts = new LongAdder[BUCKETS + 1]; // the last one is +Inf
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String help){
+            this.name = name;
+            this.help = help;
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        void record(long nanos){
+            long micros = (Math.max(0, nanos) + 999) / 1000;
+            int bucket = micros <= 1 ? 0 : Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(micros - 1));
+            counts[bucket].increment();
+            sum.add(nanos);
+        }
+
+        private static double bound(int bucket){
+            return (1L << bucket) / 1e6;
+        }
+
+        long count(){
+            long n = 0;
+            for (LongAdder c : counts) n += c.sum();
+            return n;
+        }
+
+        // upper bound of the bucket the quantile falls in, in seconds
+        double quantile(double q){
+            long[] snapshot = new long[counts.length];
+            long n = 0;
+            for (int i = 0; i < counts.length; i++) n += snapshot[i] = counts[i].sum();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return bound(i);
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    Counter counter(String name, String help){
+        Counter c = new Counter(name, help);
+        counters.add(c);
+        return c;
+    }
+
+    void gauge(String name, String help, LongSupplier value){
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    void gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values){
+        labeled.add(new Labeled(name, help, label, values));
+    }
+
+    Histogram histogram(String name, String help){
+        Histogram h = new Histogram(name, help);
+        histograms.add(h);
+        return h;
+    }
+
+
+    // jmx always, http only when <prefix>_METRICS_PORT is set
+    void serve(String prefix){
+        Thread.ofVirtual().name("metrics-" + name).start(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Counter c : counters) c.tick();
+            }
+        });
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("interlink.crosschat:type=Metrics,name=" + name));
+        } catch (Exception e) {
+            Log.warn("metrics not registered with jmx", "error", e);
+        }
+
+        int port = Integer.parseInt(System.getenv().getOrDefault(prefix + "_METRICS_PORT", "0"));
+        if (port <= 0) return;
+        String host = System.getenv().getOrDefault(prefix + "_METRICS_HOST", "127.0.0.1");
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(null); // scrapes are rare, the server's own thread is enough
+            http.start();
+            Log.info("metrics listening", "url", "http://" + host + ":" + port + "/metrics");
+        } catch (IOException e) {
+            Log.warn("metrics endpoint not started", "port", port, "error", e.getMessage());
+        }
+    }
+
+    // prometheus text exposition format 0.0.4
+    String prometheus(){
+        StringBuilder out = new StringBuilder(4096);
+        for (Counter c : counters) {
+            header(out, c.name, c.help, "counter");
+            out.append(c.name).append(' ').append(c.total()).append('\n');
+        }
+        for (Gauge g : gauges) {
+            header(out, g.name, g.help, "gauge");
+            out.append(g.name).append(' ').append(g.value.getAsLong()).append('\n');
+        }
+        for (Labeled g : labeled) {
+            header(out, g.name, g.help, "gauge");
+            for (Map.Entry<String, ? extends Number> e : g.values.get().entrySet()) {
+                out.append(g.name).append('{').append(g.label).append("=\"");
+                escape(out, e.getKey());
+                out.append("\"} ").append(e.getValue()).append('\n');
+            }
+        }
+        for (Histogram h : histograms) {
+            header(out, h.name, h.help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i <= Histogram.BUCKETS; i++) {
+                cumulative += h.counts[i].sum();
+                out.append(h.name).append("_bucket{le=\"")
+                        .append(i == Histogram.BUCKETS ? "+Inf" : String.valueOf(Histogram.bound(i)))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(h.name).append("_sum ").append(h.sum.sum() / 1e9).append('\n');
+            out.append(h.name).append("_count ").append(cumulative).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void escape(StringBuilder out, String v){
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '\\' || c == '"') out.append('\\').append(c);
+            else if (c == '\n') out.append("\\n");
+            else out.append(c);
+        }
+    }
+
+
+    // jmx view: counters as <name> and <name>_per_second, gauges as numbers, labeled gauges as
+    // one "label=value, .." string, histograms as <name>_count, _p50, _p99 and _p999 in seconds
+    public Object getAttribute(String attribute){
+        for (Counter c : counters) {
+            if (attribute.equals(c.name)) return c.total();
+            if (attribute.equals(c.name + "_per_second")) return c.perSecond();
+        }
+        for (Gauge g : gauges) {
+            if (attribute.equals(g.name)) return g.value.getAsLong();
+        }
+        for (Labeled g : labeled) {
+            if (attribute.equals(g.name)) return g.values.get().toString();
+        }
+        for (Histogram h : histograms) {
+            if (attribute.equals(h.name + "_count")) return h.count();
+            if (attribute.equals(h.name + "_p50")) return h.quantile(0.5);
+            if (attribute.equals(h.name + "_p99")) return h.quantile(0.99);
+            if (attribute.equals(h.name + "_p999")) return h.quantile(0.999);
+        }
+        return null;
+    }
+
+    public AttributeList getAttributes(String[] attributes){
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            Object value = getAttribute(a);
+            if (value != null) list.add(new Attribute(a, value));
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute){
+        throw new UnsupportedOperationException("metrics are read only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes){
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature){
+        throw new UnsupportedOperationException("no operations");
+    }
+
+    public MBeanInfo getMBeanInfo(){
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Counter c : counters) {
+            attributes.add(attribute(c.name, "long", c.help));
+            attributes.add(attribute(c.name + "_per_second", "long", c.help + ", last second"));
+        }
+        for (Gauge g : gauges) {
+            attributes.add(attribute(g.name, "long", g.help));
+        }
+        for (Labeled g : labeled) {
+            attributes.add(attribute(g.name, String.class.getName(), g.help));
+        }
+        for (Histogram h : histograms) {
+            attributes.add(attribute(h.name + "_count", "long", h.help));
+            attributes.add(attribute(h.name + "_p50", "double", h.help + ", median bucket bound in seconds"));
+            attributes.add(attribute(h.name + "_p99", "double", h.help + ", p99 bucket bound in seconds"));
+            attributes.add(attribute(h.name + "_p999", "double", h.help + ", p99.9 bucket bound in seconds"));
+        }
+        return new MBeanInfo(Metrics.class.getName(), "chat server metrics (" + name + ")",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, String type, String help){
+        return new MBeanAttributeInfo(name, type, help, true, false, false);
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+
+// room history without an object per message. a message "username: text" is kept as the
+// username's Interner id, when it was appended, and the text in utf-8, packed into parallel
+// primitive arrays indexed by seq % length plus one circular byte slab for the texts:
+//   users[i]   interned username, -1 for a line without "name: " in front, or for a name the
+//              interner had no room for, which then stays in the text
+//   stamps[i]  epoch millis of the append
+//   starts[i]  where the text starts in the slab, counted over every byte ever appended
+// the seq is the slot's position, a text ends where the next one starts. the arrays and the slab
+// start small and double as the room fills, so an idle room costs a few hundred bytes.
+// same retention as HistoryRing: HISTORY_CAPACITY messages and, when HISTORY_BYTES is set, that
+// many bytes of utf-8 text (usernames are not counted, they are not stored per message)
+final class PackedHistory implements RoomHistory{
+    private final int capacity;
+    private final long byteBudget;
+
+    // everything below is guarded by this. appends lock only this room, and readers take the
+    // same lock just long enough to decode their page
+    private int[] users = new int[16];
+    private long[] stamps = new long[16];
+    private long[] starts = new long[16];
+    private byte[] slab = new byte[256];
+    private long written; // slab bytes ever appended, the next text starts here
+
+    private volatile long first = 1; // oldest retained seq
+    private volatile long next = 1;  // seq the next append gets
+
+    PackedHistory(){
+        this(HistoryRing.CAPACITY, HistoryRing.BYTE_BUDGET);
+    }
+
+    // carries on from the sequence numbers a room had on another cluster node
+    PackedHistory(long firstSeq){
+        this(HistoryRing.CAPACITY, HistoryRing.BYTE_BUDGET, firstSeq);
+    }
+
+    PackedHistory(int capacity, long byteBudget){
+        this(capacity, byteBudget, 1);
+    }
+
+    PackedHistory(int capacity, long byteBudget, long firstSeq){
+        this.capacity = Math.max(1, capacity);
+        this.byteBudget = byteBudget;
+        first = next = Math.max(1, firstSeq);
+    }
+
+    public synchronized long append(String text){
+        int colon = text.indexOf(": ");
+        int user = colon < 0 ? -1 : Interner.USERS.id(text.substring(0, colon));
+        int from = user < 0 ? 0 : colon + 2; // a name the interner had no room for stays in the text
+        int length = utf8Length(text, from);
+        long seq = slot(user, System.currentTimeMillis(), length);
+        encode(text, from, written);
+        written += length;
+        return seq;
+    }
+
+    // one message from a snapshot, with the time it was first appended
+    synchronized void restore(int user, long stamp, ByteBuffer utf8, int at, int length){
+        slot(user, stamp, length);
+        int to = (int) (written % slab.length);
+        int head = Math.min(length, slab.length - to);
+        utf8.get(at, slab, to, head);
+        utf8.get(at + head, slab, 0, length - head);
+        written += length;
+    }
+
+    public synchronized void dump(DataOutputStream out) throws IOException{
+        out.writeLong(first);
+        out.writeInt((int) (next - first));
+        records(out, first, next);
+    }
+
+    // messages from to to in the snapshot record layout, without the header
+    synchronized void records(DataOutputStream out, long from, long to) throws IOException{
+        for (long seq = Math.max(from, first); seq < Math.min(to, next); seq++) {
+            int i = index(seq);
+            int length = length(seq);
+            int at = (int) (starts[i] % slab.length);
+            int head = Math.min(length, slab.length - at);
+            out.writeInt(users[i]);
+            out.writeLong(stamps[i]);
+            out.writeInt(length);
+            out.write(slab, at, head);
+            out.write(slab, 0, length - head);
+        }
+    }
+
+    // the oldest count messages as records, then they are gone. TieredHistory seals them into a
+    // block. returns their utf-8 text bytes
+    synchronized long drain(int count, DataOutputStream out) throws IOException{
+        long to = Math.min(next, first + count);
+        records(out, first, to);
+        long bytes = (to < next ? starts[index(to)] : written) - starts[index(first)];
+        first = to;
+        return bytes;
+    }
+
+    // makes room for the next message and fills in its slot, the caller writes its text at
+    // written and moves written past it
+    private long slot(int user, long stamp, int length){
+        long seq = next;
+        long oldest = first;
+        if (seq - oldest == users.length && users.length < capacity) growSlots(seq - oldest + 1);
+        if (seq - oldest == capacity) oldest++;
+
+        // byte budget trims from the old end but always keeps the newest message
+        while (byteBudget > 0 && oldest < seq && written - starts[index(oldest)] + length > byteBudget) {
+            oldest++;
+        }
+        long kept = oldest < seq ? written - starts[index(oldest)] : 0;
+        if (kept + length > slab.length) growSlab(oldest < seq ? starts[index(oldest)] : written, kept + length);
+
+        int i = index(seq);
+        users[i] = user;
+        stamps[i] = stamp;
+        starts[i] = written;
+        first = oldest;
+        next = seq + 1;
+        return seq;
+    }
+
+    // the stored utf-8 goes into the line as it is, only the usernames are encoded
+    public synchronized ChatJson.Writer writePage(ChatJson.Writer out, long before, int limit){
+        long hi = Math.min(before, next);
+        long lo = Math.max(first, hi - Math.max(0, Math.min(limit, capacity)));
+
+        out.beginHistory();
+        entries(out, lo, hi, lo);
+        long start = lo < hi ? lo : hi;
+        return out.endHistory(start, start > first);
+    }
+
+    // messages lo to hi as entries of a history that is already open, the page starts at pageFirst
+    synchronized void entries(ChatJson.Writer out, long lo, long hi, long pageFirst){
+        for (long seq = Math.max(lo, first); seq < Math.min(hi, next); seq++) {
+            int i = index(seq);
+            out.beginEntry(seq == pageFirst);
+            if (users[i] >= 0) out.text(Interner.USERS.name(users[i])).text(": ");
+            out.utf8(slab, (int) (starts[i] % slab.length), length(seq)).endEntry();
+        }
+    }
+
+    public synchronized HistoryRing.Page before(long before, int limit){
+        limit = Math.max(0, Math.min(limit, capacity));
+        long hi = Math.min(before, next);
+        long lo = Math.max(first, hi - limit);
+
+        ArrayList<String> out = new ArrayList<>((int) Math.max(0, hi - lo));
+        decode(out, lo, hi);
+        long start = out.isEmpty() ? hi : lo;
+        return new HistoryRing.Page(out, start, start > first);
+    }
+
+    // messages lo to hi decoded to strings onto the end of out
+    synchronized void decode(ArrayList<String> out, long lo, long hi){
+        byte[] scratch = null;
+        for (long seq = Math.max(lo, first); seq < Math.min(hi, next); seq++) {
+            int i = index(seq);
+            int length = length(seq);
+            int at = (int) (starts[i] % slab.length);
+            String text;
+            if (at + length <= slab.length) {
+                text = new String(slab, at, length, StandardCharsets.UTF_8);
+            } else {
+                // wraps around the end of the slab
+                if (scratch == null || scratch.length < length) scratch = new byte[length];
+                copyOut(starts[i], scratch, length);
+                text = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+            out.add(users[i] < 0 ? text : Interner.USERS.name(users[i]) + ": " + text);
+        }
+    }
+
+    public long nextSeq(){
+        return next;
+    }
+
+    long firstSeq(){
+        return first;
+    }
+
+    // utf-8 text bytes retained, what HISTORY_BYTES is held against
+    synchronized long bytes(){
+        return first < next ? written - starts[index(first)] : 0;
+    }
+
+    private int index(long seq){
+        return (int) (seq % users.length);
+    }
+
+    // utf-8 bytes of a retained message's text, it ends where the next one starts
+    private int length(long seq){
+        long end = seq + 1 < next ? starts[index(seq + 1)] : written;
+        return (int) (end - starts[index(seq)]);
+    }
+
+    // more slots, every retained message moves to its slot in the bigger arrays
+    private void growSlots(long needed){
+        int size = (int) Math.min(capacity, Math.max(needed, (long) users.length * 2));
+        int[] u = new int[size];
+        long[] st = new long[size];
+        long[] sa = new long[size];
+        for (long seq = first; seq < next; seq++) {
+            int from = index(seq);
+            int to = (int) (seq % size);
+            u[to] = users[from];
+            st[to] = stamps[from];
+            sa[to] = starts[from];
+        }
+        users = u;
+        stamps = st;
+        starts = sa;
+    }
+
+    // a bigger slab holding the kept bytes from "from" on at the same logical offsets
+    private void growSlab(long from, long needed){
+        long size = slab.length;
+        while (size < needed) size *= 2;
+        if (size > Integer.MAX_VALUE - 8) throw new IllegalStateException("room history over 2GB");
+        byte[] bigger = new byte[(int) size];
+        for (long pos = from; pos < written; ) {
+            int at = (int) (pos % slab.length);
+            int to = (int) (pos % size);
+            int n = (int) Math.min(written - pos, Math.min(slab.length - at, size - to));
+            System.arraycopy(slab, at, bigger, to, n);
+            pos += n;
+        }
+        slab = bigger;
+    }
+
+    // text from index from on as utf-8 straight into the slab, wrapping at its end. a lone
+    // surrogate becomes '?' like String.getBytes would make it
+    private void encode(String text, int from, long pos){
+        byte[] b = slab;
+        int at = (int) (pos % b.length);
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                at = put(b, at, c);
+            } else if (c < 0x800) {
+                at = put(b, at, 0xC0 | c >> 6);
+                at = put(b, at, 0x80 | c & 0x3F);
+            } else if (!Character.isSurrogate(c)) {
+                at = put(b, at, 0xE0 | c >> 12);
+                at = put(b, at, 0x80 | c >> 6 & 0x3F);
+                at = put(b, at, 0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                at = put(b, at, 0xF0 | cp >> 18);
+                at = put(b, at, 0x80 | cp >> 12 & 0x3F);
+                at = put(b, at, 0x80 | cp >> 6 & 0x3F);
+                at = put(b, at, 0x80 | cp & 0x3F);
+            } else {
+                at = put(b, at, '?');
+            }
+        }
+    }
+
+    private static int put(byte[] b, int at, int value){
+        b[at] = (byte) value;
+        return at + 1 == b.length ? 0 : at + 1;
+    }
+
+    private static int utf8Length(String text, int from){
+        int length = 0;
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) length++;
+            else if (c < 0x800) length += 2;
+            else if (!Character.isSurrogate(c)) length += 3;
+            else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else length++;
+        }
+        return length;
+    }
+
+    private void copyOut(long pos, byte[] dst, int length){
+        int at = (int) (pos % slab.length);
+        int n = Math.min(length, slab.length - at);
+        System.arraycopy(slab, at, dst, 0, n);
+        System.arraycopy(slab, 0, dst, n, length - n);
+    }
+}
@@ -0,0 +1,107 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+// closes connections whose peer went away without closing the socket, so they stop taking
+// broadcasts and give back their descriptor. every watched connection has one timer on a shared
+// TimingWheel that fires at its next deadline and checks it:
+//   a peer that speaks heartbeat (it sent PING or PONG) gets a PING after <PREFIX>_HEARTBEAT_MS
+//   of silence and is closed after <PREFIX>_IDLE_TIMEOUT_MS. clients that never sent one never
+//   see a PING and are not closed for being quiet
+//   output stuck on a full socket for <PREFIX>_WRITE_TIMEOUT_MS closes any connection
+// a timeout of 0 turns that check off
+final class Reaper{
+    static final byte[] PING = "{\"arg\":\"PING\"}\n".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] PONG = "{\"arg\":\"PONG\"}\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final long heartbeat;
+    private final long idle;
+    private final long write;
+    private final TimingWheel wheel;
+    private final Metrics.Counter pings;
+    private final Metrics.Counter reapedIdle;
+    private final Metrics.Counter reapedWrite;
+
+    // one connection as the reaper sees it. the reader and writer keep the fields up to date,
+    // a PING or PONG from the peer sets heartbeats and a PING gets PONG back
+    abstract static class Peer{
+        volatile long lastRead = System.nanoTime();
+        volatile long stuckSince;     // when output started waiting on a full socket, 0 when it isnt
+        volatile boolean heartbeats;  // sent PING or PONG, so it answers ours
+
+        // the reader got a line
+        void read(){
+            lastRead = System.nanoTime();
+        }
+
+        // true when the request was PING or PONG, which marks the peer as speaking heartbeat.
+        // answering a PING is up to the caller
+        boolean heartbeat(String arg){
+            if (arg == null || arg.length() != 4) return false;
+            if (!arg.equalsIgnoreCase("PING") && !arg.equalsIgnoreCase("PONG")) return false;
+            heartbeats = true;
+            return true;
+        }
+
+        abstract boolean gone();
+
+        // queue a PING, never blocks
+        abstract void ping();
+
+        // close the connection, from the wheel thread
+        abstract void reap(String why);
+    }
+
+    Reaper(String prefix, Metrics metrics){
+        heartbeat = Long.parseLong(System.getenv().getOrDefault(prefix + "_HEARTBEAT_MS", "15000"));
+        idle = Long.parseLong(System.getenv().getOrDefault(prefix + "_IDLE_TIMEOUT_MS", "45000"));
+        write = Long.parseLong(System.getenv().getOrDefault(prefix + "_WRITE_TIMEOUT_MS", "30000"));
+        // 100ms ticks, a turn of the wheel covers the default timeouts
+        wheel = new TimingWheel("reaper", 100, 512);
+        pings = metrics.counter("chat_heartbeat_pings_total", "PINGs sent to quiet connections");
+        reapedIdle = metrics.counter("chat_reaped_idle_total", "connections closed for not answering heartbeats");
+        reapedWrite = metrics.counter("chat_reaped_write_total", "connections closed because output was stuck on a full socket");
+    }
+
+    void watch(Peer peer){
+        if (heartbeat > 0 || idle > 0 || write > 0) check(peer);
+    }
+
+    private void check(Peer peer){
+        if (peer.gone()) return; // closed some other way, its timer just stops here
+        long now = System.nanoTime();
+        long stuck = peer.stuckSince;
+        if (write > 0 && stuck != 0 && now - stuck >= nanos(write)) {
+            reapedWrite.inc();
+            peer.reap("write timeout");
+            return;
+        }
+        long quiet = now - peer.lastRead;
+        if (peer.heartbeats && idle > 0 && quiet >= nanos(idle)) {
+            reapedIdle.inc();
+            peer.reap("idle timeout");
+            return;
+        }
+        if (peer.heartbeats && heartbeat > 0 && quiet >= nanos(heartbeat)) {
+            pings.inc();
+            peer.ping();
+        }
+
+        // the nearest deadline that could still pass. quiet peers are pinged once per heartbeat,
+        // and a write that gets stuck right after this check is seen within twice the timeout
+        long next = Long.MAX_VALUE;
+        if (write > 0) next = stuck != 0 ? nanos(write) - (now - stuck) : nanos(write);
+        if (peer.heartbeats) {
+            if (heartbeat > 0) next = Math.min(next, quiet >= nanos(heartbeat) ? nanos(heartbeat) : nanos(heartbeat) - quiet);
+            if (idle > 0) next = Math.min(next, nanos(idle) - quiet);
+        } else {
+            // look again later in case it starts speaking heartbeat
+            next = Math.min(next, nanos(heartbeat > 0 ? heartbeat : idle > 0 ? idle : write));
+        }
+        wheel.schedule(() -> check(peer), TimeUnit.NANOSECONDS.toMillis(next) + 1);
+    }
+
+    private static long nanos(long ms){
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+// where a room keeps its messages: in memory, or a MessageLog.RoomLog on disk when HISTORY_LOG_DIR
+// is set. sequence numbers start at 1 and never repeat
+interface RoomHistory{
+    // the in memory store, HISTORY_STORE=packed (PackedHistory, the default), strings (HistoryRing)
+    // or tiered (TieredHistory, packed with older messages compressed)
+    String STORE = System.getenv().getOrDefault("HISTORY_STORE", "packed");
+
+    // an empty in memory history whose first message gets seq firstSeq
+    static RoomHistory inMemory(long firstSeq){
+        if (STORE.equalsIgnoreCase("strings")) return new HistoryRing(firstSeq);
+        if (STORE.equalsIgnoreCase("tiered")) return new TieredHistory(firstSeq);
+        return new PackedHistory(firstSeq);
+    }
+
+    // returns the sequence number the message got
+    long append(String text);
+
+    // up to limit messages older than seq "before", decoded to strings (rmi hands these out)
+    HistoryRing.Page before(long before, int limit);
+
+    // the same page written straight into a {"history":[...],"first":..,"more":..} line
+    ChatJson.Writer writePage(ChatJson.Writer out, long before, int limit);
+
+    // seq the next append gets
+    long nextSeq();
+
+    // the retained messages for a snapshot: long first seq, int count, then per message int user
+    // (Interner id or -1), long stamp, int n and n utf-8 bytes, see Snapshot. stores that dont
+    // keep the time write 0
+    default void dump(DataOutputStream out) throws IOException{
+        HistoryRing.Page page = before(Long.MAX_VALUE, Integer.MAX_VALUE);
+        out.writeLong(page.first);
+        out.writeInt(page.messages.size());
+        for (String text : page.messages) {
+            int colon = text.indexOf(": ");
+            int user = colon < 0 ? -1 : Interner.USERS.id(text.substring(0, colon));
+            out.writeInt(user);
+            out.writeLong(0);
+            Snapshot.string(out, user < 0 ? text : text.substring(colon + 2));
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+
+// in-memory rooms and their history across a restart, turned on by SNAPSHOT_DIR. the whole
+// registry is written to SNAPSHOT_DIR/<name>.snap every SNAPSHOT_INTERVAL_MS and once more on
+// shutdown, into a temp file that replaces the old one in one rename, and read back at startup
+// through one read only mapping. the file:
+//   "CHATSNAP" int version
+//   int rooms, each: name, long first seq, int messages, each: int user, long stamp, int n, n utf-8 bytes
+//   int users, each a name: the Interner ids the messages above use, in id order
+//   int n, n bytes the server adds, the rmi server keeps its members there
+//   long offset of the users, long offset of the extra bytes
+// names are an int length and utf-8. a user of -1 is a line without "name: " in front.
+// rooms whose history is a MessageLog are durable already, with HISTORY_LOG_DIR set there is no snapshot
+final class Snapshot{
+    static final String DIR = System.getenv("SNAPSHOT_DIR");
+    static final long INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("SNAPSHOT_INTERVAL_MS", "60000"));
+
+    private static final byte[] MAGIC = "CHATSNAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private final Path file;
+
+    // what the last snapshot held, empty when there was none
+    static final class Restored{
+        final Map<String, RoomHistory> rooms = new LinkedHashMap<>();
+        ByteBuffer extra = ByteBuffer.allocate(0);
+    }
+
+    // null when SNAPSHOT_DIR is not set, name keeps the two servers apart in one directory
+    static Snapshot open(String name){
+        if (DIR == null || DIR.isBlank()) return null;
+        if (MessageLog.DIR != null && !MessageLog.DIR.isBlank()) {
+            Log.warn("SNAPSHOT_DIR ignored, the message log already keeps rooms", "dir", MessageLog.DIR);
+            return null;
+        }
+        return new Snapshot(Paths.get(DIR, name + ".snap"));
+    }
+
+    private Snapshot(Path file){
+        this.file = file;
+    }
+
+    Restored load(){
+        Restored restored = new Restored();
+        if (!Files.exists(file)) return restored;
+        long start = System.nanoTime();
+        int messages = 0;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.getInt() != VERSION) {
+                throw new IOException("not a snapshot of this version");
+            }
+            int users = (int) in.getLong(in.limit() - 16);
+            int extra = (int) in.getLong(in.limit() - 8);
+
+            // the names first, so every message gets this process's id for its user
+            ByteBuffer names = in.duplicate().position(users);
+            String[] saved = new String[names.getInt()];
+            int[] ids = new int[saved.length];
+            for (int i = 0; i < ids.length; i++) ids[i] = Interner.USERS.id(saved[i] = string(names));
+
+            int rooms = in.getInt();
+            for (int r = 0; r < rooms; r++) {
+                String name = string(in);
+                long first = in.getLong();
+                int count = in.getInt();
+                RoomHistory history = RoomHistory.inMemory(first);
+                for (int m = 0; m < count; m++) {
+                    int user = in.getInt();
+                    long stamp = in.getLong();
+                    int n = in.getInt();
+                    String username = user < 0 ? null : saved[user];
+                    user = user < 0 ? -1 : ids[user];
+                    boolean lost = username != null && user < 0; // no id left for the name in this process
+                    if (!lost && history instanceof PackedHistory packed) {
+                        packed.restore(user, stamp, in, in.position(), n);
+                    } else if (!lost && history instanceof TieredHistory tiered) {
+                        tiered.restore(user, stamp, in, in.position(), n);
+                    } else {
+                        // a lost name goes back into the text
+                        String text = new String(bytes(in, in.position(), n), StandardCharsets.UTF_8);
+                        history.append(username == null ? text : username + ": " + text);
+                    }
+                    in.position(in.position() + n);
+                }
+                messages += count;
+                restored.rooms.put(name, history);
+            }
+
+            ByteBuffer tail = in.duplicate().position(extra);
+            int n = tail.getInt();
+            restored.extra = ByteBuffer.wrap(bytes(tail, tail.position(), n));
+        } catch (IOException | RuntimeException e) {
+            // a broken snapshot is not worth refusing to start over
+            Log.error("snapshot unreadable, starting empty", "file", file, "error", e);
+            return new Restored();
+        }
+        Log.info("snapshot restored", "file", file, "rooms", restored.rooms.size(), "messages", messages,
+                "ms", (System.nanoTime() - start) / 1_000_000);
+        return restored;
+    }
+
+    // a snapshot every SNAPSHOT_INTERVAL_MS (0 only on shutdown) and one on shutdown.
+    // rooms and extra are asked for each time, extra may be null
+    void start(Supplier<Map<String, RoomHistory>> rooms, Supplier<byte[]> extra){
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> save(rooms.get(), extra == null ? null : extra.get()), "snapshot-shutdown"));
+        if (INTERVAL_MS <= 0) return;
+        Thread timer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                save(rooms.get(), extra == null ? null : extra.get());
+            }
+        }, "snapshot");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    // each room is copied under its own lock, so a room is consistent but two rooms may be
+    // a few messages apart. the timer and the shutdown hook never write at the same time
+    synchronized void save(Map<String, RoomHistory> rooms, byte[] extra){
+        long start = System.nanoTime();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+
+                ArrayList<Map.Entry<String, RoomHistory>> list = new ArrayList<>(rooms.entrySet());
+                out.writeInt(list.size());
+                for (Map.Entry<String, RoomHistory> room : list) {
+                    string(out, room.getKey());
+                    room.getValue().dump(out);
+                }
+
+                // after the rooms, every id they used is below the size now
+                long users = out.size();
+                int count = Interner.USERS.size();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) string(out, Interner.USERS.name(i));
+
+                long tail = out.size();
+                byte[] bytes = extra == null ? new byte[0] : extra;
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeLong(users);
+                out.writeLong(tail);
+                if (out.size() == Integer.MAX_VALUE) throw new IOException("snapshot over 2GB");
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (Log.DEBUG) Log.debug("snapshot written", "file", file, "rooms", rooms.size(), "ms", (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            Log.error("snapshot failed", "file", file, "error", e);
+        }
+    }
+
+    static void string(DataOutputStream out, String s) throws IOException{
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String string(ByteBuffer in){
+        int n = in.getInt();
+        String s = new String(bytes(in, in.position(), n), StandardCharsets.UTF_8);
+        in.position(in.position() + n);
+        return s;
+    }
+
+    private static byte[] bytes(ByteBuffer in, int at, int n){
+        byte[] out = new byte[n];
+        in.get(at, out);
+        return out;
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+// HISTORY_STORE=tiered: the newest HISTORY_HOT_MESSAGES of a room stay in a PackedHistory, older
+// ones are sealed HISTORY_BLOCK_MESSAGES at a time into blocks compressed with HISTORY_COLD_CODEC.
+// a block holds its messages in the snapshot record layout (int user, long stamp, int n and n
+// utf-8 bytes, see Snapshot) and is only inflated when a page, a handoff or a snapshot reaches
+// back that far, a join with the default HISTORY_JOIN_LIMIT never does.
+// same retention as the other stores: HISTORY_CAPACITY messages, and HISTORY_BYTES held against
+// the hot texts plus the uncompressed texts of the blocks, which go a whole block at a time.
+// the hot tier is held to HISTORY_CAPACITY - HISTORY_BLOCK_MESSAGES, so a block can be sealed
+// before retention drops its messages (with the defaults, 744 hot and 256 per block)
+final class TieredHistory implements RoomHistory{
+    static final int HOT = Math.max(1, Integer.parseInt(System.getenv().getOrDefault("HISTORY_HOT_MESSAGES", "1000"))); // the newest message always stays hot
+    static final int BLOCK = Math.max(1, Integer.parseInt(System.getenv().getOrDefault("HISTORY_BLOCK_MESSAGES", "256")));
+    static final Codec CODEC = Codec.named(System.getenv().getOrDefault("HISTORY_COLD_CODEC", "deflate"),
+            Integer.parseInt(System.getenv().getOrDefault("HISTORY_COLD_LEVEL", String.valueOf(Deflater.BEST_SPEED))));
+
+    // set by publish(), null when nobody reads the metrics
+    private static volatile Metrics.Histogram inflateLatency;
+
+    // what a sealed block is stored as
+    interface Codec{
+        byte[] compress(byte[] raw);
+
+        byte[] decompress(byte[] packed, int rawLength);
+
+        // deflate at HISTORY_COLD_LEVEL, 1 (fastest) by default: a block seals on the room's
+        // sequencer and level 6 takes three times as long for about a tenth fewer bytes.
+        // none keeps the records as they are, to compare against
+        static Codec named(String name, int level){
+            return switch (name.toLowerCase()) {
+                case "deflate" -> new DeflateCodec(level);
+                case "none" -> new Codec(){
+                    public byte[] compress(byte[] raw){
+                        return raw;
+                    }
+
+                    public byte[] decompress(byte[] packed, int rawLength){
+                        return packed;
+                    }
+                };
+                default -> throw new IllegalArgumentException("HISTORY_COLD_CODEC must be deflate or none, not " + name);
+            };
+        }
+    }
+
+    // a Deflater and an Inflater per call, they hold native memory and a room seals a block
+    // only every BLOCK appends
+    record DeflateCodec(int level) implements Codec{
+        public byte[] compress(byte[] raw){
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                byte[] out = new byte[raw.length / 2 + 64];
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+                    n += deflater.deflate(out, n, out.length - n);
+                }
+                return Arrays.copyOf(out, n);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        public byte[] decompress(byte[] packed, int rawLength){
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(packed);
+                byte[] raw = new byte[rawLength];
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int got = inflater.inflate(raw, n, rawLength - n);
+                    if (got == 0 && inflater.needsInput()) break;
+                    n += got;
+                }
+                if (n != rawLength) throw new IllegalStateException("history block inflated to " + n + " of " + rawLength + " bytes");
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("history block corrupt", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    // BLOCK messages from seq first on, never changed once sealed
+    private record Block(long first, int count, long bytes, int raw, byte[] packed){
+        long end(){
+            return first + count;
+        }
+    }
+
+    // one message of an inflated block
+    private interface Entry{
+        void accept(long seq, int user, byte[] utf8, int at, int length);
+    }
+
+    private final int capacity;
+    private final long byteBudget;
+    private final int hotLimit; // HOT, or less so HOT + BLOCK fits in capacity
+
+    // everything below is guarded by this, and hot is only used under it too. blocks never
+    // change once sealed, so reads inflate them without holding it
+    private final PackedHistory hot;
+    private final ArrayDeque<Block> cold = new ArrayDeque<>(); // oldest first, the last one ends where hot starts
+    private long coldBytes; // utf-8 text in the blocks, for HISTORY_BYTES
+
+    private volatile long first;       // oldest retained seq, can be inside the oldest block
+    private volatile long rawBytes;    // blocks before compression, for the metrics
+    private volatile long packedBytes; // and after
+
+    TieredHistory(){
+        this(HistoryRing.CAPACITY, HistoryRing.BYTE_BUDGET, 1);
+    }
+
+    // carries on from the sequence numbers a room had on another cluster node
+    TieredHistory(long firstSeq){
+        this(HistoryRing.CAPACITY, HistoryRing.BYTE_BUDGET, firstSeq);
+    }
+
+    TieredHistory(int capacity, long byteBudget){
+        this(capacity, byteBudget, 1);
+    }
+
+    private TieredHistory(int capacity, long byteBudget, long firstSeq){
+        this.capacity = Math.max(1, capacity);
+        this.byteBudget = byteBudget;
+        hotLimit = hotLimit(this.capacity);
+        hot = new PackedHistory(this.capacity, byteBudget, firstSeq);
+        first = hot.firstSeq();
+    }
+
+    public synchronized long append(String text){
+        long seq = hot.append(text);
+        settle();
+        return seq;
+    }
+
+    // one message from a snapshot, with the time it was first appended
+    synchronized void restore(int user, long stamp, ByteBuffer utf8, int at, int length){
+        hot.restore(user, stamp, utf8, at, length);
+        settle();
+    }
+
+    // seals what the hot tier holds over HOT, then drops blocks the retention no longer covers
+    private void settle(){
+        // the hot tier trimmed messages that were never sealed, the blocks are over the budget too
+        if (!cold.isEmpty() && hot.firstSeq() != cold.peekLast().end()) {
+            while (!cold.isEmpty()) drop();
+        }
+        if (hot.nextSeq() - hot.firstSeq() >= (long) hotLimit + BLOCK) seal();
+
+        long next = hot.nextSeq();
+        while (!cold.isEmpty()) {
+            boolean expired = cold.peekFirst().end() <= next - capacity;
+            boolean over = byteBudget > 0 && coldBytes + hot.bytes() > byteBudget;
+            if (!expired && !over) break;
+            drop();
+        }
+        first = Math.max(next - capacity, cold.isEmpty() ? hot.firstSeq() : cold.peekFirst().first());
+    }
+
+    // the hot tier trims at capacity, so anything over capacity - BLOCK would never be sealed.
+    // with capacity <= BLOCK nothing is, the store then works like packed
+    static int hotLimit(int capacity){
+        return Math.max(1, Math.min(HOT, capacity - BLOCK));
+    }
+
+    private void seal(){
+        ByteArrayOutputStream records = new ByteArrayOutputStream(BLOCK * 96);
+        long from = hot.firstSeq();
+        long bytes;
+        try {
+            bytes = hot.drain(BLOCK, new DataOutputStream(records));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a byte array, cant happen
+        }
+        byte[] raw = records.toByteArray();
+        byte[] packed = CODEC.compress(raw);
+        cold.addLast(new Block(from, (int) (hot.firstSeq() - from), bytes, raw.length, packed));
+        coldBytes += bytes;
+        rawBytes += raw.length;
+        packedBytes += packed.length;
+    }
+
+    private void drop(){
+        Block b = cold.pollFirst();
+        coldBytes -= b.bytes();
+        rawBytes -= b.raw();
+        packedBytes -= b.packed().length;
+    }
+
+    public ChatJson.Writer writePage(ChatJson.Writer out, long before, int limit){
+        while (true) {
+            Range range = range(before, limit);
+            long lo = range.lo();
+            out.beginHistory();
+            cold(range, (seq, user, utf8, at, length) -> {
+                out.beginEntry(seq == lo);
+                if (user >= 0) out.text(Interner.USERS.name(user)).text(": ");
+                out.utf8(utf8, at, length).endEntry();
+            });
+            synchronized (this) {
+                if (!range.hotStillThere()) continue;
+                hot.entries(out, range.from(), range.hi(), lo);
+                long start = lo < range.hi() ? lo : range.hi();
+                return out.endHistory(start, start > first);
+            }
+        }
+    }
+
+    public HistoryRing.Page before(long before, int limit){
+        while (true) {
+            Range range = range(before, limit);
+            ArrayList<String> out = new ArrayList<>((int) Math.max(0, range.hi() - range.lo()));
+            cold(range, (seq, user, utf8, at, length) -> {
+                String text = new String(utf8, at, length, StandardCharsets.UTF_8);
+                out.add(user < 0 ? text : Interner.USERS.name(user) + ": " + text);
+            });
+            synchronized (this) {
+                if (!range.hotStillThere()) continue;
+                hot.decode(out, range.from(), range.hi());
+                long start = out.isEmpty() ? range.hi() : range.lo();
+                return new HistoryRing.Page(out, start, start > first);
+            }
+        }
+    }
+
+    // the hot records are copied under the lock, the blocks are inflated and written after it
+    public void dump(DataOutputStream out) throws IOException{
+        long oldest;
+        long next;
+        ArrayList<Block> blocks;
+        ByteArrayOutputStream hotRecords = new ByteArrayOutputStream();
+        synchronized (this) {
+            oldest = first;
+            next = hot.nextSeq();
+            blocks = new ArrayList<>(cold);
+            hot.records(new DataOutputStream(hotRecords), Math.max(oldest, hot.firstSeq()), next);
+        }
+        out.writeLong(oldest);
+        out.writeInt((int) (next - oldest));
+        for (Block b : blocks) {
+            if (b.end() <= oldest) continue;
+            ByteBuffer records = ByteBuffer.wrap(inflate(b));
+            for (long seq = b.first(); seq < b.end(); seq++) {
+                int at = records.position();
+                int record = 16 + records.getInt(at + 12);
+                if (seq >= oldest) out.write(records.array(), at, record);
+                records.position(at + record);
+            }
+        }
+        hotRecords.writeTo(out);
+    }
+
+    public long nextSeq(){
+        return hot.nextSeq();
+    }
+
+    // sealed blocks still retained
+    synchronized int blocks(){
+        return cold.size();
+    }
+
+    // a page from lo to hi: the blocks it reaches into and the seq the hot tier takes over at.
+    // taken under the lock, the blocks are inflated after it is let go so appends to the room
+    // never wait for an inflate
+    private record Range(TieredHistory history, long lo, long hi, long from, ArrayList<Block> blocks){
+        // false when a seal or the byte budget took hot messages of the page away meanwhile,
+        // the page is taken again then. caller holds the lock
+        boolean hotStillThere(){
+            return from >= hi || history.hot.firstSeq() <= from;
+        }
+    }
+
+    private synchronized Range range(long before, int limit){
+        long hi = Math.min(before, hot.nextSeq());
+        long lo = Math.max(first, hi - Math.max(0, Math.min(limit, capacity)));
+        ArrayList<Block> blocks = new ArrayList<>();
+        long from = lo;
+        for (Block b : cold) {
+            if (b.first() >= hi) break;
+            if (b.end() <= lo) continue;
+            blocks.add(b);
+            from = Math.min(hi, b.end());
+        }
+        return new Range(this, lo, hi, from, blocks);
+    }
+
+    // the cold messages of the page, oldest first
+    private static void cold(Range range, Entry entry){
+        for (Block b : range.blocks()) {
+            ByteBuffer records = ByteBuffer.wrap(inflate(b));
+            for (long seq = b.first(); seq < Math.min(range.hi(), b.end()); seq++) {
+                int user = records.getInt();
+                records.getLong();
+                int length = records.getInt();
+                if (seq >= range.lo()) entry.accept(seq, user, records.array(), records.position(), length);
+                records.position(records.position() + length);
+            }
+        }
+    }
+
+    private static byte[] inflate(Block b){
+        long start = System.nanoTime();
+        byte[] raw = CODEC.decompress(b.packed(), b.raw());
+        Metrics.Histogram latency = inflateLatency;
+        if (latency != null) latency.record(System.nanoTime() - start);
+        return raw;
+    }
+
+    // compression ratio and inflate latency of the tiered rooms. the gauges go over whatever
+    // histories the server has at scrape time, rooms that moved to another node drop out
+    static void publish(Metrics metrics, Supplier<? extends Collection<RoomHistory>> histories){
+        if (!RoomHistory.STORE.equalsIgnoreCase("tiered")) return;
+        int hotLimit = hotLimit(Math.max(1, HistoryRing.CAPACITY));
+        if (hotLimit + BLOCK > HistoryRing.CAPACITY) {
+            Log.warn("HISTORY_CAPACITY leaves no room for a sealed block, tiered history keeps everything hot",
+                    "HISTORY_CAPACITY", HistoryRing.CAPACITY, "HISTORY_BLOCK_MESSAGES", BLOCK);
+        } else if (hotLimit < HOT) {
+            Log.warn("HISTORY_HOT_MESSAGES clamped so blocks can be sealed within HISTORY_CAPACITY",
+                    "HISTORY_HOT_MESSAGES", HOT, "hot", hotLimit, "HISTORY_CAPACITY", HistoryRing.CAPACITY, "HISTORY_BLOCK_MESSAGES", BLOCK);
+        }
+        inflateLatency = metrics.histogram("chat_history_inflate_seconds", "inflating one sealed history block for a page, handoff or snapshot");
+        metrics.gauge("chat_history_cold_bytes", "sealed history blocks before compression", () -> sum(histories.get(), false));
+        metrics.gauge("chat_history_cold_compressed_bytes", "sealed history blocks as kept on the heap", () -> sum(histories.get(), true));
+        metrics.gauge("chat_history_cold_ratio_percent", "compression ratio of the sealed history blocks, compressed size in percent of the raw size", () -> {
+            Collection<RoomHistory> now = histories.get();
+            long raw = sum(now, false);
+            return raw == 0 ? 0 : sum(now, true) * 100 / raw;
+        });
+    }
+
+    private static long sum(Collection<? extends RoomHistory> histories, boolean packed){
+        long total = 0;
+        for (RoomHistory h : histories) {
+            if (h instanceof TieredHistory t) total += packed ? t.packedBytes : t.rawBytes;
+        }
+        return total;
+    }
+}
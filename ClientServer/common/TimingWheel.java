@@ -0,0 +1,99 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+// hashed timing wheel: one thread, a ring of slots each covering one tick, and timers hashed
+// into the slot of their deadline with a count of full turns still to wait. scheduling is a
+// queue offer, a tick only walks its own slot, so a timer costs O(1) however many are pending.
+// a timer fires up to one tick late, tasks run on the wheel thread and have to be quick
+final class TimingWheel{
+    private final long tickNanos;
+    private final Timer[] slots; // heads of singly linked lists, wheel thread only
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timer> added = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private long tick; // ticks done, wheel thread only
+
+    final class Timer{
+        private final long deadline; // nanos after start
+        private volatile Runnable task; // null once cancelled, so whatever it holds can go
+        private long rounds;
+        private Timer next;
+
+        private Timer(Runnable task, long deadline){
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // the task wont run. the timer itself leaves the wheel when its slot comes around
+        void cancel(){
+            task = null;
+        }
+    }
+
+    // slots is rounded up to a power of two, a turn of the wheel is tickMillis * slots
+    TimingWheel(String name, long tickMillis, int slots){
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int n = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.slots = new Timer[n];
+        mask = n - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Timer schedule(Runnable task, long delayMillis){
+        Timer timer = new Timer(task, System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        added.offer(timer);
+        return timer;
+    }
+
+    private void run(){
+        while (true) {
+            long wait;
+            while ((wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            place();
+            expire(slots[(int) (tick & mask)], (int) (tick & mask));
+            tick++;
+        }
+    }
+
+    // timers scheduled since the last tick go into their slot. a deadline already past lands in
+    // the current slot and fires now
+    private void place(){
+        Timer timer;
+        while ((timer = added.poll()) != null) {
+            if (timer.task == null) continue;
+            long due = timer.deadline / tickNanos;
+            timer.rounds = Math.max(0, (due - tick) / slots.length);
+            int slot = (int) (Math.max(due, tick) & mask);
+            timer.next = slots[slot];
+            slots[slot] = timer;
+        }
+    }
+
+    private void expire(Timer head, int slot){
+        Timer kept = null;
+        while (head != null) {
+            Timer timer = head;
+            head = head.next;
+            Runnable task = timer.task;
+            if (task != null && timer.rounds > 0) {
+                timer.rounds--;
+                timer.next = kept;
+                kept = timer;
+                continue;
+            }
+            if (task == null) continue;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("timer task failed", "error", e);
+            }
+        }
+        slots[slot] = kept;
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+
+// CDS_TRAINING=1: the server runs a short scripted session against itself and exits, so a
+// java -XX:ArchiveClassesAtExit=<file> run leaves a class data archive of everything real traffic
+// loads. the docker images do it once at build time and start with -XX:SharedArchiveFile=<file>,
+// which maps those classes in already parsed and verified instead of loading them one by one
+final class Training{
+    static final boolean ON = "1".equals(System.getenv("CDS_TRAINING"));
+
+    private Training(){}
+
+    interface Script{
+        void run() throws Exception;
+    }
+
+    // runs script beside the starting server, then ends the process. a failed script exits 1 so
+    // the image build that trains stops there
+    static void start(String server, Script script){
+        if (!ON) return;
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            int status = 0;
+            try {
+                script.run();
+                Log.info("training done", "server", server, "ms", (System.nanoTime() - start) / 1_000_000);
+            } catch (Exception e) {
+                Log.error("training failed", "server", server, "error", e);
+                status = 1;
+            }
+            System.exit(status);
+        }, "training");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // a socket to the local listener, waiting up to 5s for it to come up
+    static Socket connect(int port) throws IOException, InterruptedException{
+        for (int tries = 0; ; tries++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (ConnectException e) {
+                if (tries == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // sends lines and reads replies until one contains until
+    static void converse(Socket socket, String[] lines, String until) throws IOException{
+        OutputStream out = socket.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        StringBuilder request = new StringBuilder();
+        for (String line : lines) request.append(line).append('\n');
+        out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        socket.setSoTimeout(5000);
+        for (String reply = in.readLine(); ; reply = in.readLine()) {
+            if (reply == null) throw new IOException("server closed the training socket");
+            if (reply.contains(until)) return;
+        }
+    }
+
+    // the same over a BINARY socket: frames are ChatWire.request()s, replies are read until a
+    // frame with the until opcode
+    static void converse(Socket socket, byte[][] frames, byte until) throws IOException{
+        OutputStream out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        out.write(ChatWire.ACCEPTED); // the handshake line is the same both ways
+        for (byte[] frame : frames) out.write(frame);
+        out.flush();
+        socket.setSoTimeout(5000);
+        byte[] accepted = new byte[ChatWire.ACCEPTED.length];
+        in.readFully(accepted);
+        while (true) {
+            byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            if (frame[0] == until) return;
+        }
+    }
+}
@@ -0,0 +1,733 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+// protocol conformance for the java tcp server (8000) and the rmi bridge (8201): every scenario
+// runs once over newline json and once over the negotiated binary framing (common/ChatWire.java),
+// checks what the server answers and then checks both runs got the same answers, reply for reply.
+// one last scenario puts a json and a binary client in the same room. exits 1 if anything failed.
+//   java -jar conformance.jar port=8201
+// options (key=value):
+//   host, port     server to check (127.0.0.1, 8000)
+//   maxchars       the server's LIMIT_MAX_MESSAGE_CHARS (4000)
+//   timeout        ms to wait for any one reply (5000)
+// the encoder and decoder here are written from the format, they share no code with the servers
+public class conformance{
+    private static final byte[] HANDSHAKE = "BINARY\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] OPS = {null, "CREATEROOM", "LISTROOMS", "JOINROOM", "SENDMSG", "HISTORY", "PING", "PONG"};
+
+    private final String host;
+    private final int port;
+    private final int maxChars;
+    private final int timeout;
+    private final String run = Long.toString(System.currentTimeMillis() % 100_000_000L, 36);
+    private int failures;
+
+    conformance(Map<String, String> opts){
+        host = opts.getOrDefault("host", "127.0.0.1");
+        port = Integer.parseInt(opts.getOrDefault("port", "8000"));
+        maxChars = Integer.parseInt(opts.getOrDefault("maxchars", "4000"));
+        timeout = Integer.parseInt(opts.getOrDefault("timeout", "5000"));
+    }
+
+    private static final class Failed extends Exception{
+        Failed(String message){
+            super(message);
+        }
+    }
+
+    // one reply either way it was encoded, PING and PONG are kind "ping" and "pong"
+    private static final class Reply{
+        static final Reply CLOSED = new Reply("closed", null, 0, null, 0, false);
+
+        final String kind;
+        final String text;
+        final long seq;
+        final List<String> list;
+        final long first;
+        final boolean more;
+
+        Reply(String kind, String text, long seq, List<String> list, long first, boolean more){
+            this.kind = kind;
+            this.text = text;
+            this.seq = seq;
+            this.list = list;
+            this.first = first;
+            this.more = more;
+        }
+
+        boolean is(String kind, String text){
+            return this.kind.equals(kind) && (text == null || text.equals(this.text));
+        }
+
+        // join and leave notices from the rmi server, they come whenever the callback does
+        boolean notice(){
+            return kind.equals("message") && seq == 0 && (text.endsWith("has joined") || text.endsWith("has left"));
+        }
+
+        public String toString(){
+            return switch (kind) {
+                case "message" -> "message " + quote(text) + (seq > 0 ? " seq " + seq : "");
+                case "rooms" -> "rooms"; // other runs add rooms, the scenario checks for its own
+                case "history" -> "history " + list.size() + " first " + first + " more " + more;
+                default -> kind;
+            };
+        }
+    }
+
+
+    // one chat user on its own socket
+    private abstract class Client implements Closeable{
+        final String username;
+        final Socket socket = new Socket();
+
+        Client(String username) throws IOException{
+            this.username = username;
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+        }
+
+        abstract String encoding();
+
+        // null fields and negative numbers are left out
+        abstract void send(String arg, String room, String msg, long before, long limit) throws IOException;
+
+        // the next reply as it came, CLOSED at end of stream
+        abstract Reply read() throws IOException;
+
+        void send(String arg, String room, String msg) throws IOException{
+            send(arg, room, msg, -1, -1);
+        }
+
+        // the next reply that says something, heartbeats are answered and notices skipped
+        Reply next() throws IOException, Failed{
+            while (true) {
+                Reply reply;
+                try {
+                    reply = read();
+                } catch (SocketTimeoutException e) {
+                    throw new Failed(encoding() + " " + username + ": no reply within " + timeout + "ms");
+                }
+                if (reply.kind.equals("ping")) {
+                    send("PONG", null, null);
+                } else if (!reply.notice()) {
+                    return reply;
+                }
+            }
+        }
+
+        public void close(){
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private final class JsonClient extends Client{
+        private final OutputStream out;
+        private final BufferedReader in;
+
+        JsonClient(String username) throws IOException{
+            super(username);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        String encoding(){
+            return "json";
+        }
+
+        void send(String arg, String room, String msg, long before, long limit) throws IOException{
+            StringBuilder line = new StringBuilder("{\"arg\":").append(quote(arg)).append(",\"username\":").append(quote(username));
+            if (room != null) line.append(",\"room\":").append(quote(room));
+            if (msg != null) line.append(",\"msg\":").append(quote(msg));
+            if (before >= 0) line.append(",\"before\":").append(before);
+            if (limit >= 0) line.append(",\"limit\":").append(limit);
+            out.write(line.append("}\n").toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        Reply read() throws IOException{
+            String line = in.readLine();
+            if (line == null) return Reply.CLOSED;
+            Object parsed = new Json(line).value();
+            if (!(parsed instanceof Map<?, ?> obj)) throw new IOException("not a json object: " + line);
+            if (obj.containsKey("message")) {
+                return new Reply("message", (String) obj.get("message"), number(obj.get("seq")), null, 0, false);
+            }
+            if (obj.containsKey("rooms")) return new Reply("rooms", null, 0, strings(obj.get("rooms")), 0, false);
+            if (obj.containsKey("history")) {
+                return new Reply("history", null, 0, strings(obj.get("history")), number(obj.get("first")), Boolean.TRUE.equals(obj.get("more")));
+            }
+            if ("PING".equals(obj.get("arg"))) return new Reply("ping", null, 0, null, 0, false);
+            if ("PONG".equals(obj.get("arg"))) return new Reply("pong", null, 0, null, 0, false);
+            throw new IOException("unexpected reply: " + line);
+        }
+
+        private long number(Object value){
+            return value instanceof Long n ? n : 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<String> strings(Object value){
+            return (List<String>) value;
+        }
+    }
+
+    private final class BinaryClient extends Client{
+        private final OutputStream out;
+        private final DataInputStream in;
+        private byte[] frame = new byte[256];
+        private int at;
+        private int end;
+
+        BinaryClient(String username) throws IOException{
+            super(username);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(socket.getInputStream());
+            out.write(HANDSHAKE);
+            out.flush();
+            byte[] accepted = new byte[HANDSHAKE.length];
+            in.readFully(accepted);
+            if (!new String(accepted, StandardCharsets.US_ASCII).equals("BINARY\n")) {
+                throw new IOException("server did not accept BINARY");
+            }
+        }
+
+        String encoding(){
+            return "binary";
+        }
+
+        void send(String arg, String room, String msg, long before, long limit) throws IOException{
+            int op = 0;
+            while (op < OPS.length && !arg.equals(OPS[op])) op++;
+            Bytes body = new Bytes();
+            body.put(op);
+            body.string(1, room);
+            body.string(2, username);
+            body.string(3, msg);
+            body.number(4, before);
+            body.number(5, limit);
+            int n = body.length();
+            out.write(new byte[]{(byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n});
+            out.write(body.array(), 0, n);
+            out.flush();
+        }
+
+        Reply read() throws IOException{
+            int n;
+            try {
+                n = in.readInt();
+            } catch (EOFException e) {
+                return Reply.CLOSED;
+            }
+            if (n < 1 || n > 1 << 24) throw new IOException("bad frame length " + n);
+            if (frame.length < n) frame = new byte[n];
+            in.readFully(frame, 0, n);
+            at = 1;
+            end = n;
+            Reply reply = switch (frame[0]) {
+                case 16 -> new Reply("message", string(), varint(), null, 0, false);
+                case 17 -> new Reply("rooms", null, 0, strings(), 0, false);
+                case 18 -> {
+                    long first = varint();
+                    boolean more = frame[at++] == 1;
+                    yield new Reply("history", null, 0, strings(), first, more);
+                }
+                case 6 -> new Reply("ping", null, 0, null, 0, false);
+                case 7 -> new Reply("pong", null, 0, null, 0, false);
+                default -> throw new IOException("unknown reply opcode " + frame[0]);
+            };
+            if (at != end) throw new IOException("frame has " + (end - at) + " bytes left over");
+            return reply;
+        }
+
+        private long varint() throws IOException{
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (at >= end) throw new IOException("varint runs past the frame");
+                byte b = frame[at++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IOException("varint too long");
+        }
+
+        private String string() throws IOException{
+            int n = (int) varint();
+            if (n > end - at) throw new IOException("string runs past the frame");
+            String s = new String(frame, at, n, StandardCharsets.UTF_8);
+            at += n;
+            return s;
+        }
+
+        private List<String> strings() throws IOException{
+            int n = (int) varint();
+            List<String> out = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) out.add(string());
+            return out;
+        }
+    }
+
+    // a request body being built
+    private static final class Bytes{
+        private byte[] buf = new byte[64];
+        private int len;
+
+        void put(int b){
+            if (len == buf.length) buf = java.util.Arrays.copyOf(buf, len * 2);
+            buf[len++] = (byte) b;
+        }
+
+        void varint(long v){
+            while ((v & ~0x7FL) != 0) {
+                put((int) (v & 0x7F | 0x80));
+                v >>>= 7;
+            }
+            put((int) v);
+        }
+
+        void string(int field, String s){
+            if (s == null) return;
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            varint(field << 1 | 1);
+            varint(utf8.length);
+            for (byte b : utf8) put(b);
+        }
+
+        void number(int field, long v){
+            if (v < 0) return;
+            varint(field << 1);
+            varint(v);
+        }
+
+        byte[] array(){
+            return buf;
+        }
+
+        int length(){
+            return len;
+        }
+    }
+
+
+    // one run of a scenario: its clients, its own rooms and the replies it checked, in order
+    private final class Run implements Closeable{
+        final boolean binary;
+        final String tag;
+        final List<String> transcript = new ArrayList<>();
+        private final List<Client> clients = new ArrayList<>();
+
+        Run(boolean binary, String tag){
+            this.binary = binary;
+            this.tag = tag;
+        }
+
+        Client client(String name) throws IOException{
+            return client(name, binary);
+        }
+
+        Client client(String name, boolean binary) throws IOException{
+            Client c = binary ? new BinaryClient(name + tag) : new JsonClient(name + tag);
+            clients.add(c);
+            return c;
+        }
+
+        String room(String name){
+            return name + "-" + tag;
+        }
+
+        // the next reply must be kind, and say text when that is not null
+        Reply expect(Client c, String kind, String text) throws IOException, Failed{
+            Reply reply = c.next();
+            if (!reply.is(kind, text)) {
+                throw new Failed(c.encoding() + " " + c.username + ": expected " + kind + (text == null ? "" : " " + quote(text)) + ", got " + reply);
+            }
+            return note(reply);
+        }
+
+        Reply note(Reply reply){
+            transcript.add(reply.toString().replace(tag, "<tag>"));
+            return reply;
+        }
+
+        void check(boolean ok, String what) throws Failed{
+            transcript.add(what.replace(tag, "<tag>") + ": " + ok);
+            if (!ok) throw new Failed(what);
+        }
+
+        public void close(){
+            clients.forEach(Client::close);
+        }
+    }
+
+    private interface Scenario{
+        void run(Run r) throws IOException, Failed;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void scenario(String name, Scenario scenario){
+        List<String>[] transcripts = new List[2];
+        String[] errors = new String[2];
+        for (int i = 0; i < 2; i++) {
+            try (Run r = new Run(i == 1, run + (i == 1 ? "b" : "j"))) {
+                try {
+                    scenario.run(r);
+                } catch (Failed | IOException e) {
+                    errors[i] = e.getMessage();
+                }
+                transcripts[i] = r.transcript;
+            }
+        }
+        if (errors[0] == null && errors[1] == null && !transcripts[0].equals(transcripts[1])) {
+            errors[1] = "binary replies differ from json\n    json:   " + transcripts[0] + "\n    binary: " + transcripts[1];
+        }
+        report(name, errors[0] == null ? errors[1] : errors[1] == null ? "json: " + errors[0] : "json: " + errors[0] + "; binary: " + errors[1]);
+    }
+
+    private void mixed(String name, Scenario scenario){
+        String error = null;
+        try (Run r = new Run(false, run + "m")) {
+            scenario.run(r);
+        } catch (Failed | IOException e) {
+            error = e.getMessage();
+        }
+        report(name, error);
+    }
+
+    private void report(String name, String error){
+        if (error == null) {
+            System.out.println("ok    " + name);
+            return;
+        }
+        failures++;
+        System.out.println("FAIL  " + name + ": " + error);
+    }
+
+    int check(){
+        System.out.println("conformance: " + host + ":" + port + " maxchars=" + maxChars);
+
+        scenario("create and list rooms", r -> {
+            Client a = r.client("a");
+            a.send("CREATEROOM", r.room("lobby"), null);
+            r.expect(a, "message", "Room " + r.room("lobby") + " created!");
+            a.send("LISTROOMS", null, null);
+            Reply rooms = r.expect(a, "rooms", null);
+            r.check(rooms.list.contains(r.room("lobby")), "rooms lists " + r.room("lobby"));
+        });
+
+        scenario("create without a name", r -> {
+            Client a = r.client("a");
+            a.send("CREATEROOM", null, null);
+            r.expect(a, "message", "Room name required");
+        });
+
+        scenario("join a room that does not exist", r -> {
+            Client a = r.client("a");
+            a.send("JOINROOM", r.room("nowhere"), null);
+            // the tcp server answers, the rmi server fails the call and the bridge drops the socket
+            Reply reply = a.next();
+            r.check(reply.is("message", "Room does not exist!") || reply == Reply.CLOSED, "refused, got " + reply);
+        });
+
+        scenario("send before joining", r -> {
+            Client a = r.client("a");
+            a.send("SENDMSG", null, "anyone?");
+            r.expect(a, "message", "Join a room first!");
+        });
+
+        scenario("join gets the latest history", r -> {
+            Client a = r.client("a");
+            String room = r.room("hist");
+            a.send("CREATEROOM", room, null);
+            r.expect(a, "message", null);
+            a.send("JOINROOM", room, null);
+            r.expect(a, "message", "You joined " + room);
+            r.check(r.expect(a, "history", null).list.isEmpty(), "new room has no history");
+            for (int i = 1; i <= 3; i++) {
+                a.send("SENDMSG", null, "m" + i);
+                r.expect(a, "message", a.username + ": m" + i);
+            }
+            Client b = r.client("b");
+            b.send("JOINROOM", room, null, -1, 2);
+            r.expect(b, "message", "You joined " + room);
+            Reply page = r.expect(b, "history", null);
+            r.check(page.list.equals(List.of(a.username + ": m2", a.username + ": m3")), "limit 2 page is the last two, got " + page.list);
+        });
+
+        scenario("broadcast reaches every member", r -> {
+            String room = r.room("bcast");
+            Client a = r.client("a");
+            Client b = r.client("b");
+            a.send("CREATEROOM", room, null);
+            r.expect(a, "message", null);
+            for (Client c : List.of(a, b)) {
+                c.send("JOINROOM", room, null);
+                r.expect(c, "message", "You joined " + room);
+                r.expect(c, "history", null);
+            }
+            String[] texts = {
+                "plain ascii",
+                "quotes \" and \\ backslash / slash",
+                "new\nline, tab\t, return\r, bell\u0007",
+                "café über 中文 नमस्ते",
+                "emoji 😀👍🏽 and a flag 🇳🇱",
+                "{\"arg\":\"CREATEROOM\",\"room\":\"inject\"}",
+            };
+            for (int i = 0; i < texts.length; i++) {
+                Client from = i % 2 == 0 ? a : b;
+                from.send("SENDMSG", null, texts[i]);
+                Reply first = r.expect(a, "message", from.username + ": " + texts[i]);
+                Reply second = r.expect(b, "message", from.username + ": " + texts[i]);
+                r.check(first.seq == second.seq, "both members see seq " + first.seq);
+            }
+        });
+
+        scenario("long messages", r -> {
+            String room = r.room("long");
+            Client a = r.client("a");
+            a.send("CREATEROOM", room, null);
+            r.expect(a, "message", null);
+            a.send("JOINROOM", room, null);
+            r.expect(a, "message", null);
+            r.expect(a, "history", null);
+            // one byte past a one byte varint, two byte characters, three and four byte ones
+            String[] texts = {"x".repeat(300), "é".repeat(maxChars / 2), "€".repeat(maxChars), "😀".repeat(maxChars / 2)};
+            for (String text : texts) {
+                a.send("SENDMSG", null, text);
+                r.expect(a, "message", a.username + ": " + text);
+            }
+            a.send("HISTORY", room, null, -1, texts.length);
+            Reply page = r.expect(a, "history", null);
+            r.check(page.list.size() == texts.length && page.list.get(2).equals(a.username + ": " + texts[2]), "a page of long messages comes back whole");
+        });
+
+        scenario("message over the limit", r -> {
+            String room = r.room("limit");
+            Client a = r.client("a");
+            a.send("CREATEROOM", room, null);
+            r.expect(a, "message", null);
+            a.send("JOINROOM", room, null);
+            r.expect(a, "message", null);
+            r.expect(a, "history", null);
+            a.send("SENDMSG", null, "y".repeat(maxChars + 1));
+            r.expect(a, "message", "Message too long");
+            a.send("SENDMSG", null, "still here");
+            r.expect(a, "message", a.username + ": still here");
+        });
+
+        scenario("history pages back", r -> {
+            String room = r.room("pages");
+            Client a = r.client("a");
+            a.send("CREATEROOM", room, null);
+            r.expect(a, "message", null);
+            a.send("JOINROOM", room, null);
+            r.expect(a, "message", null);
+            r.expect(a, "history", null);
+            List<String> sent = new ArrayList<>();
+            for (int i = 1; i <= 12; i++) {
+                a.send("SENDMSG", null, "page " + i);
+                r.expect(a, "message", null);
+                sent.add(a.username + ": page " + i);
+            }
+            a.send("HISTORY", room, null, -1, 5);
+            Reply latest = r.expect(a, "history", null);
+            r.check(latest.list.equals(sent.subList(7, 12)), "newest page is messages 8 to 12, got " + latest.list);
+            r.check(latest.first == 0 || latest.more, "more before a numbered page");
+            if (latest.first > 0) {
+                a.send("HISTORY", room, null, latest.first, 5);
+                Reply older = r.expect(a, "history", null);
+                r.check(older.list.equals(sent.subList(2, 7)), "the page before is messages 3 to 7, got " + older.list);
+            }
+        });
+
+        scenario("ping gets pong", r -> {
+            Client a = r.client("a");
+            a.send("PING", null, null);
+            r.expect(a, "pong", null);
+        });
+
+        mixed("json and binary clients share a room", r -> {
+            String room = r.room("mixed");
+            Client json = r.client("j", false);
+            Client binary = r.client("b", true);
+            json.send("CREATEROOM", room, null);
+            r.expect(json, "message", null);
+            for (Client c : List.of(json, binary)) {
+                c.send("JOINROOM", room, null);
+                r.expect(c, "message", "You joined " + room);
+                r.expect(c, "history", null);
+            }
+            for (Client from : List.of(json, binary, json)) {
+                String text = from.encoding() + " says héllo \"😀\"\n";
+                from.send("SENDMSG", null, text);
+                Reply j = r.expect(json, "message", from.username + ": " + text);
+                Reply b = r.expect(binary, "message", from.username + ": " + text);
+                r.check(j.seq == b.seq, "same seq on both encodings");
+            }
+            binary.send("HISTORY", room, null, -1, 3);
+            json.send("HISTORY", room, null, -1, 3);
+            Reply b = r.expect(binary, "history", null);
+            Reply j = r.expect(json, "history", null);
+            r.check(j.list.equals(b.list) && j.first == b.first && j.more == b.more, "same page on both encodings");
+        });
+
+        System.out.println(failures == 0 ? "all scenarios passed" : failures + " scenario(s) failed");
+        return failures;
+    }
+
+    static String quote(String s){
+        StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+                }
+            }
+        }
+        return out.append('"').toString();
+    }
+
+
+    // just enough json for the replies: objects, arrays, strings, integers, booleans and null
+    private static final class Json{
+        private final String s;
+        private int i;
+
+        Json(String s){
+            this.s = s;
+        }
+
+        Object value() throws IOException{
+            ws();
+            if (i >= s.length()) throw error();
+            char c = s.charAt(i);
+            if (c == '{') {
+                Map<String, Object> obj = new LinkedHashMap<>();
+                i++;
+                ws();
+                if (peek('}')) return obj;
+                do {
+                    ws();
+                    if (!(value() instanceof String key)) throw error();
+                    ws();
+                    if (!peek(':')) throw error();
+                    obj.put(key, value());
+                    ws();
+                } while (peek(','));
+                if (!peek('}')) throw error();
+                return obj;
+            }
+            if (c == '[') {
+                List<Object> list = new ArrayList<>();
+                i++;
+                ws();
+                if (peek(']')) return list;
+                do {
+                    list.add(value());
+                    ws();
+                } while (peek(','));
+                if (!peek(']')) throw error();
+                return list;
+            }
+            if (c == '"') return string();
+            if (s.startsWith("true", i)) {
+                i += 4;
+                return Boolean.TRUE;
+            }
+            if (s.startsWith("false", i)) {
+                i += 5;
+                return Boolean.FALSE;
+            }
+            if (s.startsWith("null", i)) {
+                i += 4;
+                return null;
+            }
+            int start = i;
+            while (i < s.length() && (s.charAt(i) == '-' || Character.isDigit(s.charAt(i)))) i++;
+            if (start == i) throw error();
+            return Long.parseLong(s, start, i, 10);
+        }
+
+        private String string() throws IOException{
+            StringBuilder out = new StringBuilder();
+            i++;
+            while (i < s.length()) {
+                char c = s.charAt(i++);
+                if (c == '"') return out.toString();
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                if (i >= s.length()) break;
+                char e = s.charAt(i++);
+                switch (e) {
+                    case 'n' -> out.append('\n');
+                    case 'r' -> out.append('\r');
+                    case 't' -> out.append('\t');
+                    case 'b' -> out.append('\b');
+                    case 'f' -> out.append('\f');
+                    case 'u' -> {
+                        if (i + 4 > s.length()) throw error();
+                        out.append((char) Integer.parseInt(s, i, i + 4, 16));
+                        i += 4;
+                    }
+                    default -> out.append(e);
+                }
+            }
+            throw error();
+        }
+
+        private boolean peek(char c){
+            if (i < s.length() && s.charAt(i) == c) {
+                i++;
+                return true;
+            }
+            return false;
+        }
+
+        private void ws(){
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        }
+
+        private IOException error(){
+            return new IOException("bad json at " + i + ": " + s);
+        }
+    }
+
+    public static void main(String[] args){
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("usage: java -jar conformance.jar [host=..] [port=..] [maxchars=..] [timeout=..]");
+                return;
+            }
+            opts.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+        }
+        System.exit(new conformance(opts).check() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+
+// headless load generator for the newline json protocol: the java tcp server (8000) or the
+// rmi bridge (8201) in front of the rmi server. every connection is a chat user on its own
+// virtual threads, users are spread over rooms and send SENDMSG at a target total rate.
+// each message carries its send time, so every broadcast copy a member receives is one
+// fan-out latency sample.
+//   java -jar loadgen.jar port=8201 connections=2000 rooms=20 rate=5000 seconds=60
+// options (key=value):
+//   host, port             server to hit (127.0.0.1, 8000), port=8000,8001,8002 spreads the users
+//                          round robin over several cluster nodes
+//   connections, rooms     users and how many rooms they are spread over (100, 10)
+//   rate                   messages per second over all users, 0 = closed loop: every user waits
+//                          for its own message to come back before sending the next one (1000)
+//   seconds, warmup        measured run and the unmeasured warmup before it (30, 5)
+//   size                   message text length in bytes (64)
+//   room                   room name prefix, rooms are created if missing (lg)
+public class loadgen{
+    private static final String MARK = "lg|";
+
+    private final String host;
+    private final int[] ports;
+    private final int connections;
+    private final int rooms;
+    private final double rate;
+    private final long seconds;
+    private final long warmup;
+    private final int size;
+    private final String roomPrefix;
+
+    private final Recorder latency = new Recorder(3);
+    private final LongAdder sent = new LongAdder();      // measured messages
+    private final LongAdder expected = new LongAdder();  // copies the servers should deliver for them
+    private final LongAdder delivered = new LongAdder(); // copies that arrived
+    private final LongAdder lost = new LongAdder();      // closed loop sends whose echo never came
+
+    private final AtomicIntegerArray roomSize; // users that joined each room
+    private volatile long measureFrom = Long.MAX_VALUE; // messages stamped before this are warmup
+    private volatile long stopAt = Long.MAX_VALUE;
+
+    loadgen(Map<String, String> opts){
+        host = opts.getOrDefault("host", "127.0.0.1");
+        String[] portList = opts.getOrDefault("port", "8000").split(",");
+        ports = new int[portList.length];
+        for (int i = 0; i < ports.length; i++) ports[i] = Integer.parseInt(portList[i].trim());
+        connections = Integer.parseInt(opts.getOrDefault("connections", "100"));
+        rooms = Math.max(1, Math.min(connections, Integer.parseInt(opts.getOrDefault("rooms", "10"))));
+        rate = Double.parseDouble(opts.getOrDefault("rate", "1000"));
+        seconds = Long.parseLong(opts.getOrDefault("seconds", "30"));
+        warmup = Long.parseLong(opts.getOrDefault("warmup", "5"));
+        size = Integer.parseInt(opts.getOrDefault("size", "64"));
+        roomPrefix = opts.getOrDefault("room", "lg");
+
+        roomSize = new AtomicIntegerArray(rooms);
+    }
+
+    // one chat user: a reader that timestamps every broadcast and a sender that paces itself
+    private final class User{
+        final int id;
+        final int room;
+        final int port;
+        final Semaphore echoed = new Semaphore(0); // closed loop: our own message came back
+        Socket socket;
+        OutputStream out;
+        BufferedReader in;
+
+        User(int id){
+            this.id = id;
+            this.room = id % rooms;
+            this.port = ports[id % ports.length];
+        }
+
+        void connect() throws IOException{
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), 10_000);
+            socket.setSoTimeout(30_000); // only while joining
+            out = new BufferedOutputStream(socket.getOutputStream(), 4096);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            request("{\"arg\":\"JOINROOM\",\"room\":\"" + roomName(room) + "\",\"username\":\"lg" + id + "\",\"limit\":1}");
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.contains("You joined")) break;
+                if (line.contains("does not exist")) throw new IOException("room " + roomName(room) + " does not exist");
+            }
+            if (line == null) throw new IOException("closed while joining");
+            socket.setSoTimeout(0);
+            roomSize.incrementAndGet(room);
+        }
+
+        void read(){
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith("{\"message\"")) continue; // history pages repeat old messages
+                    int at = line.indexOf(MARK);
+                    if (at < 0) continue;
+                    received(line, at + MARK.length());
+                }
+            } catch (Exception e) {
+                // closed at the end of the run, or by the server
+            }
+        }
+
+        // lg|<sender>|<seq>|<stamp>|xxx
+        private void received(String line, int at){
+            long now = System.nanoTime();
+            int a = line.indexOf('|', at);
+            int b = line.indexOf('|', a + 1);
+            int c = line.indexOf('|', b + 1);
+            if (a < 0 || b < 0 || c < 0) return;
+            int sender = Integer.parseInt(line, at, a, 10);
+            long stamp = Long.parseLong(line, b + 1, c, 10);
+
+            if (stamp >= measureFrom) {
+                latency.recordValue(Math.max(0, now - stamp));
+                delivered.increment();
+            }
+            if (sender == id && rate <= 0) echoed.release();
+        }
+
+        void send(){
+            StringBuilder text = new StringBuilder(size + 64);
+            long seq = 0;
+            try {
+                if (rate > 0) {
+                    // open loop on a fixed schedule. a message is stamped with when it should have
+                    // gone out, so a stalled server shows up as latency, not as a slower send rate
+                    long interval = (long) (connections * 1e9 / rate);
+                    long next = System.nanoTime() + interval * id / connections;
+                    while (next < stopAt) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) LockSupport.parkNanos(wait);
+                        sendOne(text, seq++, next);
+                        next += interval;
+                    }
+                } else {
+                    while (true) {
+                        long now = System.nanoTime();
+                        if (now >= stopAt) break;
+                        sendOne(text, seq++, now);
+                        if (!echoed.tryAcquire(5, TimeUnit.SECONDS) && now >= measureFrom) lost.increment();
+                        echoed.drainPermits();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println("user " + id + " stopped sending: " + e);
+            }
+        }
+
+        private void sendOne(StringBuilder text, long seq, long stamp) throws IOException{
+            text.setLength(0);
+            text.append(MARK).append(id).append('|').append(seq).append('|').append(stamp).append('|');
+            while (text.length() < size) text.append('x');
+            if (stamp >= measureFrom) {
+                sent.increment();
+                expected.add(roomSize.get(room));
+            }
+            request("{\"arg\":\"SENDMSG\",\"room\":\"" + roomName(room) + "\",\"username\":\"lg" + id + "\",\"msg\":\"" + text + "\"}");
+        }
+
+        void request(String json) throws IOException{
+            out.write((json + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        void close(){
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private String roomName(int room){
+        return roomPrefix + "-" + room;
+    }
+
+    void run() throws Exception{
+        System.out.println("loadgen: " + host + ":" + portNames() + " connections=" + connections + " rooms=" + rooms
+                + " rate=" + (rate > 0 ? rate + "/s" : "closed loop") + " seconds=" + seconds + " warmup=" + warmup + " size=" + size);
+        createRooms();
+
+        // join everyone before anybody sends, a few dozen at a time so the accept backlog keeps up
+        List<User> users = new ArrayList<>(connections);
+        CountDownLatch joined = new CountDownLatch(connections);
+        Semaphore joining = new Semaphore(64);
+        CountDownLatch go = new CountDownLatch(1);
+        long setup = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            User user = new User(i);
+            users.add(user);
+            Thread.ofVirtual().name("lg-" + i).start(() -> {
+                try {
+                    joining.acquire();
+                    try {
+                        user.connect();
+                    } finally {
+                        joining.release();
+                    }
+                } catch (Exception e) {
+                    System.out.println("user " + user.id + " failed to join: " + e.getMessage());
+                    user.close();
+                    return;
+                } finally {
+                    joined.countDown();
+                }
+                Thread.ofVirtual().name("lg-send-" + user.id).start(() -> {
+                    try {
+                        go.await();
+                        user.send();
+                    } catch (InterruptedException ignored) {}
+                });
+                user.read();
+            });
+        }
+        joined.await();
+        System.out.printf("joined %d users in %.1fs%n", connections, (System.nanoTime() - setup) / 1e9);
+
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        stopAt = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        go.countDown();
+
+        Histogram total = new Histogram(3);
+        Histogram interval = null;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        for (long t = 1; t <= warmup + seconds; t++) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(t) - System.nanoTime());
+            interval = latency.getIntervalHistogram(interval);
+            if (t > warmup) total.add(interval);
+            long s = sent.sum();
+            long d = delivered.sum();
+            System.out.printf("%4ds %s sent/s=%d delivered/s=%d p50=%s p99=%s max=%s%n", t, t > warmup ? "     " : "(warm)",
+                    s - lastSent, d - lastDelivered,
+                    ms(interval.getValueAtPercentile(50)), ms(interval.getValueAtPercentile(99)), ms(interval.getMaxValue()));
+            lastSent = s;
+            lastDelivered = d;
+        }
+
+        // whatever is still in flight gets a moment to arrive
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(2));
+        total.add(latency.getIntervalHistogram(interval));
+        users.forEach(User::close);
+
+        long s = sent.sum();
+        long e = expected.sum();
+        long d = delivered.sum();
+        System.out.println();
+        System.out.printf("sent       %d (%.0f/s)%n", s, s / (double) seconds);
+        System.out.printf("delivered  %d (%.0f/s) of %d expected, %.2f%% missing%n", d, d / (double) seconds, e, e == 0 ? 0 : 100.0 * (e - d) / e);
+        if (rate <= 0) System.out.printf("timed out  %d closed loop sends got no echo within 5s%n", lost.sum());
+        System.out.printf("fan-out latency (ms) p50=%s p90=%s p99=%s p999=%s max=%s samples=%d%n",
+                ms(total.getValueAtPercentile(50)), ms(total.getValueAtPercentile(90)), ms(total.getValueAtPercentile(99)),
+                ms(total.getValueAtPercentile(99.9)), ms(total.getMaxValue()), total.getTotalCount());
+    }
+
+    private String portNames(){
+        StringBuilder names = new StringBuilder();
+        for (int p : ports) names.append(names.length() > 0 ? "," : "").append(p);
+        return names.toString();
+    }
+
+    // one extra connection per server, the rooms might already be there from an earlier run.
+    // every cluster node is asked so none of them is still waiting to hear about a room
+    private void createRooms() throws IOException{
+        for (int port : ports) createRooms(port);
+    }
+
+    private void createRooms(int port) throws IOException{
+        try (Socket admin = new Socket()) {
+            admin.connect(new InetSocketAddress(host, port), 10_000);
+            admin.setSoTimeout(30_000);
+            OutputStream out = admin.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(admin.getInputStream(), StandardCharsets.UTF_8));
+            for (int r = 0; r < rooms; r++) {
+                out.write(("{\"arg\":\"CREATEROOM\",\"room\":\"" + roomName(r) + "\",\"username\":\"lg-admin\"}\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                String reply = in.readLine();
+                if (reply == null) throw new IOException("server closed the connection");
+            }
+        }
+    }
+
+    private static String ms(long nanos){
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("usage: java -jar loadgen.jar [host=..] [port=..] [connections=..] [rooms=..] [rate=..] [seconds=..] [warmup=..] [size=..] [room=..]");
+                return;
+            }
+            opts.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+        }
+        new loadgen(opts).run();
+        System.exit(0);
+    }
+}
@@ -25,6 +25,25 @@ const CHAT_BACKENDS = parseBackendTargets(
   process.env.CHAT_BACKENDS ||
     `java:tcp:${CHAT_TCP_HOST}:${CHAT_TCP_PORT},rust:tcp:${CHAT_TCP_HOST}:8001,javarmi:tcp:${CHAT_TCP_HOST}:8201,grpc:grpc:${CHAT_TCP_HOST}:50051`
 );
+// Backends that speak the Java heartbeat: one PING on connect opts the socket in, after that the
+// backend PINGs it when quiet and closes it if nothing comes back
+const HEARTBEAT_BACKENDS = new Set(
+  (process.env.GATEWAY_HEARTBEAT_BACKENDS ?? "java,javarmi").split(",").map((id) => id.trim()).filter(Boolean)
+);
+const HEARTBEAT_PING = '{"arg":"PING"}';
+const HEARTBEAT_PONG = '{"arg":"PONG"}';
+// Backends to talk to in the Java servers' binary framing (common/ChatWire.java) instead of newline
+// JSON. The browser still gets JSON, frames are decoded here
+const BINARY_BACKENDS = new Set(
+  (process.env.GATEWAY_BINARY_BACKENDS ?? "").split(",").map((id) => id.trim()).filter(Boolean)
+);
+const WIRE = {
+  ops: { CREATEROOM: 1, LISTROOMS: 2, JOINROOM: 3, SENDMSG: 4, HISTORY: 5, PING: 6, PONG: 7 },
+  fields: { room: 1, username: 2, msg: 3, before: 4, limit: 5, since: 6 },
+  MESSAGE: 16,
+  ROOMS: 17,
+  HISTORY: 18
+};
 const POSTGRES_CONNECTION_STRING = pickPgConnectionString();
 const JWT_SECRET = process.env.JWT_SECRET || "replace-this-with-a-long-random-secret-for-production";
 const JWT_ISSUER = process.env.JWT_ISSUER || "nimbus-chat";
@@ -289,8 +308,15 @@ wss.on("connection", (ws) => {
   } else {
     const tcp = net.createConnection({ host: backend.host, port: backend.port });
     session.tcp = tcp;
+    session.binary = BINARY_BACKENDS.has(backend.id);
 
     tcp.on("connect", () => {
+      if (session.binary) {
+        tcp.write("BINARY\n");
+      }
+      if (HEARTBEAT_BACKENDS.has(backend.id)) {
+        tcp.write(session.binary ? encodeWireRequest({ arg: "PING" }) : `${HEARTBEAT_PING}\n`);
+      }
       sendWs(session.ws, {
         message: `Connected to ${backend.label} backend (${backend.host}:${backend.port})`
       });
@@ -305,14 +331,35 @@ wss.on("connection", (ws) => {
       session.ws.close();
     });
 
+    if (session.binary) {
+      tcp.on("data", createWireReader((reply) => {
+        if (reply === "PING") {
+          tcp.write(encodeWireRequest({ arg: "PONG" }));
+        } else if (reply !== "PONG" && session.ws.readyState === 1) {
+          const line = JSON.stringify(reply);
+          trace(session, "recv", backend.transport, { raw: line });
+          session.ws.send(line);
+        }
+      }, (err) => {
+        trace(session, "backend", "error", { error: err.message });
+        tcp.destroy();
+      }));
+    }
+
     let tcpBuffer = "";
     tcp.on("data", (chunk) => {
+      if (session.binary) return;
       tcpBuffer += chunk.toString("utf8");
       let idx = tcpBuffer.indexOf("\n");
       while (idx !== -1) {
         const line = tcpBuffer.slice(0, idx).trim();
         tcpBuffer = tcpBuffer.slice(idx + 1);
-        if (line && session.ws.readyState === 1) {
+        // Java backends heartbeat sockets that sent PING or PONG; answer for the browser, never show it
+        if (line === HEARTBEAT_PING) {
+          tcp.write(`${HEARTBEAT_PONG}\n`);
+        } else if (line === HEARTBEAT_PONG) {
+          // reply to a PING we sent
+        } else if (line && session.ws.readyState === 1) {
           trace(session, "recv", backend.transport, { raw: line });
           session.ws.send(line);
         }
@@ -413,8 +460,24 @@ async function handleTcpCommand(session, command, parsed) {
     outbound.msg = parsed.msg;
   }
 
-  const line = `${JSON.stringify(outbound)}\n`;
-  tcp.write(line);
+  // history paging for the java backends (JOINROOM/HISTORY "limit", HISTORY "before")
+  for (const key of ["before", "limit"]) {
+    const value = Number(parsed[key]);
+    if (Number.isInteger(value) && value > 0) {
+      outbound[key] = value;
+    }
+  }
+
+  if (session.binary) {
+    if (!WIRE.ops[command]) {
+      sendWs(session.ws, { message: "Unknown command" });
+      return;
+    }
+    tcp.write(encodeWireRequest(outbound));
+  } else {
+    const line = `${JSON.stringify(outbound)}\n`;
+    tcp.write(line);
+  }
 
   if (command === "SENDMSG" && outbound.msg && session.currentRoom) {
     await insertMessage(session.currentRoom, username, outbound.msg, backend.id);
@@ -552,6 +615,115 @@ async function insertMessage(roomName, username, body, backendId) {
   ]);
 }
 
+// One ChatWire request frame: u32 length, opcode, then tagged fields (field << 1 | 1 and a
+// varint length for strings, field << 1 for varints)
+function encodeWireRequest(request) {
+  const parts = [Buffer.from([WIRE.ops[request.arg]])];
+  for (const [key, field] of Object.entries(WIRE.fields)) {
+    const value = request[key];
+    if (typeof value === "string") {
+      const bytes = Buffer.from(value, "utf8");
+      parts.push(varint((field << 1) | 1), varint(bytes.length), bytes);
+    } else if (Number.isInteger(value) && value >= 0) {
+      parts.push(varint(field << 1), varint(value));
+    }
+  }
+  const body = Buffer.concat(parts);
+  const head = Buffer.alloc(4);
+  head.writeUInt32BE(body.length);
+  return Buffer.concat([head, body]);
+}
+
+function varint(value) {
+  const bytes = [];
+  let v = BigInt(value);
+  while (v >= 0x80n) {
+    bytes.push(Number(v & 0x7fn) | 0x80);
+    v >>= 7n;
+  }
+  bytes.push(Number(v));
+  return Buffer.from(bytes);
+}
+
+// Socket data handler for a binary backend: skips the "BINARY" handshake line, then hands each
+// frame to onReply as the JSON object the backend would have sent, or "PING"/"PONG"
+function createWireReader(onReply, onError) {
+  let buffer = Buffer.alloc(0);
+  let accepted = false;
+  return (chunk) => {
+    buffer = buffer.length ? Buffer.concat([buffer, chunk]) : chunk;
+    try {
+      if (!accepted) {
+        const nl = buffer.indexOf(10);
+        if (nl === -1) return;
+        if (buffer.subarray(0, nl).toString("ascii").trim() !== "BINARY") {
+          throw new Error("backend did not accept BINARY");
+        }
+        accepted = true;
+        buffer = buffer.subarray(nl + 1);
+      }
+      while (buffer.length >= 4) {
+        const length = buffer.readUInt32BE(0);
+        if (buffer.length < 4 + length) break;
+        const frame = buffer.subarray(4, 4 + length);
+        buffer = buffer.subarray(4 + length);
+        onReply(decodeWireReply(frame));
+      }
+    } catch (err) {
+      onError(err);
+    }
+  };
+}
+
+function decodeWireReply(frame) {
+  let at = 1;
+  const readVarint = () => {
+    let value = 0n;
+    let shift = 0n;
+    while (true) {
+      if (at >= frame.length) throw new Error("truncated frame");
+      const b = frame[at++];
+      value |= BigInt(b & 0x7f) << shift;
+      if (b < 0x80) return Number(value);
+      shift += 7n;
+    }
+  };
+  const readString = () => {
+    const n = readVarint();
+    if (at + n > frame.length) throw new Error("truncated frame");
+    const text = frame.toString("utf8", at, at + n);
+    at += n;
+    return text;
+  };
+  const readStrings = () => {
+    const out = [];
+    for (let n = readVarint(); n > 0; n--) out.push(readString());
+    return out;
+  };
+
+  switch (frame[0]) {
+    case WIRE.MESSAGE: {
+      const message = readString();
+      const seq = readVarint();
+      return seq > 0 ? { message, seq } : { message };
+    }
+    case WIRE.ROOMS:
+      return { rooms: readStrings() };
+    case WIRE.HISTORY: {
+      const first = readVarint();
+      const more = frame[at++] === 1;
+      const history = readStrings();
+      return first > 0 ? { history, first, more } : { history };
+    }
+    case WIRE.ops.PING:
+      return "PING";
+    case WIRE.ops.PONG:
+      return "PONG";
+    default:
+      throw new Error(`unknown frame opcode ${frame[0]}`);
+  }
+}
+
 function trace(session, direction, protocol, payload) {
   sendWs(session.ws, {
     __trace: {
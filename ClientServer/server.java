@@ -10,12 +10,23 @@ import java.util.HashMap;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 
 
 //note; used AI for the json parsing stuff and the hashmap 
+//json now goes through the shared codec in common/ChatJson.java
 
 class chatArgs implements Serializable{
+    private static final long serialVersionUID = 1L;
+
     public String arg;
     public String room;
     public String username;
@@ -24,229 +35,247 @@ class chatArgs implements Serializable{
 
 
 class ClientList{
-    private ArrayList<Socket> clientList = new ArrayList<Socket>();
+    // accepted sockets waiting for a worker, take() parks the worker until one arrives
+    private BlockingQueue<Socket> clientList = new LinkedBlockingQueue<>();
 
-    public synchronized void addClient(Socket NewClient){
+    public void addClient(Socket NewClient){
         clientList.add(NewClient);
-        try{
-            notify(); // wake up a thread
-        }catch (Exception e){}
     }
 
-    public synchronized Socket getClient(){
-        if (clientList.isEmpty()){
-            try{
-                System.out.println("sleeping");
-                wait();
-            }catch (Exception e){}
-            return getClient(); // loop again
-        }else{
-            return clientList.remove(0);
-        }
-
+    public Socket getClient() throws InterruptedException{
+        return clientList.take();
     }
 }
 
-class Room{
-    public ArrayList<String> messages = new ArrayList<>();
-    public Map<Socket,PrintWriter> clients = new HashMap<>();
-}
-
 
+// fixed pool mode: each worker serves one socket at a time until it disconnects
 class Worker extends Thread{
     private ClientList list;
     private int id;
+    private Coalescing writes;
 
-    // all chat rooms:
-    private static Map<String,Room> rooms = new HashMap<>();
-
-    // im making the client rememeber what room its in
-    private String currRoom = null;
-    private String username = null;
-
-    //ObjectOutputStream oos;
-    //ObjectInputStream ois;
-    Socket client;
-    private BufferedReader reader;
-    private PrintWriter writer;
-
-
-    public Worker(ClientList List, int ID){
+    public Worker(ClientList List, int ID, Coalescing Writes){
         list = List;
         id = ID;
+        writes = Writes;
         start();
     }
 
-    
-
     public void run(){
-        System.out.println("worker "+ id+" started !!!");
+        Log.debug("worker started", "id", id);
         try{
             while(true){
-                client = list.getClient();
-                reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                writer = new PrintWriter(client.getOutputStream(),true); //autof lush
-
-                handleClient();
+                new Connection(list.getClient(), writes).run();
             }
         }catch(Exception e){}
     }
+}
 
 
-    private void handleClient(){
-        try{
-            //chatArgs req;
-            String line;
-            while((line = reader.readLine()) != null){
-                System.out.println("GOT: "+line);
-
-                Map<String,String> req = parseJson(line);
-
-                username = req.get("username");
-                String command = req.get("arg").toUpperCase();
-                String roomName = req.get("room");
-                String msg = req.get("msg");
-
-                switch(command){
-                    case "CREATEROOM":
-                        rooms.putIfAbsent(roomName, new Room());
-                        sendToClient("{\"message\":\"Room " + roomName + " created!\"}");
-                        break;
-                        
-                    case "LISTROOMS":
-                        if (rooms.isEmpty()) {
-                            sendToClient("{\"message\":\"No rooms\"}");
-                        } else {
-                            StringBuilder roomJson = new StringBuilder("[");
-                            int count = 0;
-                            for (String r : rooms.keySet()) {
-                                roomJson.append("\"").append(r).append("\"");
-                                if (++count < rooms.size()) roomJson.append(",");
-                            }
-                            roomJson.append("]");
-                            sendToClient("{\"rooms\":" + roomJson.toString() + "}");
-                        }
-                        break;
-                        
-                    
-                    case "JOINROOM":
-                        if (rooms.containsKey(roomName)){
-                            if(currRoom!=null && rooms.containsKey(currRoom)){
-                                rooms.get(currRoom).clients.remove(client); // remove client from curr room if its already in one
-                            }
-                            currRoom = roomName;
-                            Room room = rooms.get(currRoom);
-                            //room.clients.add(client);
-                            room.clients.put(client,writer);
-                            sendToClient("{\"message\":\"You joined " + currRoom + "\"}");
-
-                            // send the msg history obj
-                            //oos.writeObject(new ArrayList<>(room.messages));
-                            //sendToClient("{\"history\":\"" + room.messages + "\"}");
-
-                            StringBuilder historyJson = new StringBuilder("[");
-                            for (int i = 0; i < room.messages.size(); i++) {
-                                historyJson.append("\"").append(room.messages.get(i)).append("\"");
-                                if (i < room.messages.size() - 1) historyJson.append(",");
-                            }
-                            historyJson.append("]");
-                            sendToClient("{\"history\":" + historyJson.toString() + "}");
-                            
-                        }else{
-                            sendToClient("{\"message\":\"Room does not exist!\"}");
-                        }
-                        
-                        break;
-                    
-                    case "SENDMSG":
-                        if (currRoom == null){
-                            sendToClient("{\"message\":\"Join a room first!\"}");
-
-                            break;
-                        }else{
-                            String x = username + ": " + msg;
-                            Room room = rooms.get(currRoom);
-
-                            room.messages.add(x);
+// blocking socket client, runs on a pool worker or its own virtual thread.
+// replies and broadcasts go through a bounded queue drained by a virtual writer thread,
+// so a slow reader never stalls whoever is sending to it
+class Connection extends Session implements Runnable{
 
-                            broadcast(room,x);
-                            break;
+    //ObjectOutputStream oos;
+    //ObjectInputStream ois;
+    Socket client;
+    private LineReader reader;
+    private SocketChannel out;
+    private final OutboundQueue<Frame> outbound = new OutboundQueue<>();
+    private final Coalescing writes;
+    private final Coalescing.Batch batch;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private Thread writerThread;
+
+
+    public Connection(Socket Client, Coalescing Writes){
+        client = Client;
+        writes = Writes;
+        batch = new Coalescing.Batch(Writes);
+    }
 
-                        }
-                        
+    public void run(){
+        open.add(this);
+        ChatProtocol.reaper.watch(peer);
+        try{
+            reader = new LineReader(client.getInputStream());
+            out = client.getChannel(); // frames are already encoded, and history pages need a channel for sendfile
+            writerThread = Thread.ofVirtual().name("writer-" + client.getPort()).start(this::drain);
+
+            while(reader.next()){
+                while (!received(reader.buffer(), reader.start(), reader.length())) {
+                    if (closed.get()) return;
+                    LockSupport.parkNanos(retryAt - System.nanoTime());
                 }
+                if (binary) reader.frames();
             }
         }catch(Exception e){
-            
-            if (currRoom != null && rooms.containsKey(currRoom)) {
-                rooms.get(currRoom).clients.remove(client);
-            }
+        }finally{
+            close();
         }
-}
+    }
 
+    // whatever queued up while the last write was going out, plus anything arriving within
+    // the coalescing window, leaves in one gathering write
+    private void drain(){
+        Frame carry = null; // polled but didnt fit the last batch
+        try{
+            while(true){
+                Frame frame = carry != null ? carry : outbound.take();
+                carry = null;
+                if (!batch.fits(frame)) {
+                    peer.stuckSince = System.nanoTime();
+                    frame.writeFully(out);
+                    peer.stuckSince = 0;
+                    writes.wroteAlone();
+                    continue;
+                }
 
-    private void sendToClient(String json) {
-        writer.println(json);
-        System.out.println("Sent: " + json);
+                batch.add(frame);
+                long deadline = System.nanoTime() + writes.windowNanos;
+                while (!batch.full()) {
+                    Frame next = outbound.poll(deadline - System.nanoTime());
+                    if (next == null) break;
+                    if (!batch.fits(next)) {
+                        carry = next;
+                        break;
+                    }
+                    batch.add(next);
+                }
+                // a blocking write counts as stuck until it returns, see common/Reaper.java
+                peer.stuckSince = System.nanoTime();
+                batch.writeFully(out);
+                peer.stuckSince = 0;
+            }
+        }catch(InterruptedException e){
+        }catch(IOException e){
+            // client is dead, stop broadcasting to it
+            close();
+        }
     }
 
-    private Map<String, String> parseJson(String json) {
-        Map<String, String> map = new HashMap<>();
-        json = json.trim();
-        if (json.startsWith("{") && json.endsWith("}"))
-            json = json.substring(1, json.length()-1);
-        String[] pairs = json.split(",");
-        for(String pair : pairs) {
-            String[] kv = pair.split(":", 2);
-            if(kv.length == 2)
-                map.put(kv[0].trim().replace("\"",""), kv[1].trim().replace("\"",""));
+    void send(Frame frame){
+        if (!outbound.offer(frame) && !closed.get()) {
+            // queue full and the policy is to disconnect
+            ChatProtocol.droppedClients.inc();
+            Log.info("dropping slow client", "client", this);
+            close();
         }
-        return map;
     }
 
+    OutboundQueue<Frame> outbound(){
+        return outbound;
+    }
 
-    private void broadcast(Room room , String message){
-        for (Map.Entry<Socket, PrintWriter> entry : new HashMap<>(room.clients).entrySet()) {
-
-            try {
-                entry.getValue().println("{\"message\":\"" + message + "\"}");
-                entry.getValue().flush();
-            } catch (Exception e) {
-                // if the client is dead, remove it
-                try {
-                    room.clients.remove(entry.getKey());
-                    entry.getKey().close();
-                } catch (Exception e1) {}
-            }
-        }
+    void close(){
+        if (!closed.compareAndSet(false, true)) return;
+        leaveRooms();
+        open.remove(this);
+        if (writerThread != null) writerThread.interrupt();
+        outbound.clear();
+        try{
+            client.close();
+        }catch(Exception e){}
+    }
 
+    public String toString(){
+        return (username == null ? "?" : username) + "@" + client.getRemoteSocketAddress();
     }
- 
 }
 
 public class server{
     public static void main(String[] args) {
         try {
+            OutboundQueue.startReporter(Integer.parseInt(System.getenv().getOrDefault("SERVER_STATS_SECONDS", "0")));
+            ChatProtocol.joinCluster();
+            ChatProtocol.restoreRooms();
+            ChatProtocol.publishMetrics();
+            int port = Integer.parseInt(System.getenv().getOrDefault("SERVER_PORT", "8000"));
+            Training.start("tcp", () -> train(port));
+
+            // workers = fixed pool of platform threads, virtual = one virtual thread per socket,
+            // nio = a few selector event loops multiplexing every socket
+            String engine = System.getenv().getOrDefault("SERVER_ENGINE", "workers").toLowerCase();
+
+            // write coalescing for this listener, SERVER_COALESCE_MS / SERVER_COALESCE_BYTES
+            Coalescing writes = Coalescing.fromEnv("SERVER");
+
+            if (engine.equals("nio")) {
+                int loops = Integer.parseInt(System.getenv().getOrDefault("SERVER_LOOPS",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                new NioEngine(port, loops, writes).serve();
+                return;
+            }
+
             //ServerSocket serverSocket = new ServerSocket(8000);
-            ServerSocket serverSocket = new ServerSocket(8000, 0, InetAddress.getByName("0.0.0.0"));
-            System.out.println("Server started on port 8000 !!!!!!");
+            // opened as a channel so accepted sockets have one too, FileChannel.transferTo needs it
+            ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress("0.0.0.0", port)).socket();
+            Log.info("server started", "port", port, "engine", engine);
+
+            if (engine.equals("virtual")) {
+                Thread.Builder threads = Thread.ofVirtual().name("client-", 0);
+
+                while (true) {
+                    Socket client = serverSocket.accept();
+                    Log.debug("client connected", "socket", client);
+                    threads.start(new Connection(client, writes));
+                }
+            }
 
             ClientList clientList = new ClientList();
+            int workers = Integer.parseInt(System.getenv().getOrDefault("SERVER_WORKERS", "10"));
 
             // Start worker threads
-            for (int i = 0; i < 10; i++) {
-                new Worker(clientList, i);
+            for (int i = 0; i < workers; i++) {
+                new Worker(clientList, i, writes);
             }
 
             while (true) {
                 Socket client = serverSocket.accept();
-                System.out.println("New client connected: " + client);
+                Log.debug("client connected", "socket", client);
                 clientList.addClient(client);
             }
 
         } catch (Exception e) {
-            System.out.println("Server error: " + e.getMessage());
+            Log.error("server failed", "error", e.getMessage());
         }
     }
 
+    // CDS_TRAINING: every request once through a plain socket, then again multiplexed and binary
+    private static void train(int port) throws Exception{
+        String[] plain = new String[110];
+        plain[0] = "{\"username\":\"train\",\"arg\":\"CREATEROOM\",\"room\":\"training\"}";
+        plain[1] = "{\"username\":\"train\",\"arg\":\"JOINROOM\",\"room\":\"training\"}";
+        for (int i = 2; i < 102; i++) {
+            plain[i] = "{\"username\":\"train\",\"arg\":\"SENDMSG\",\"msg\":\"m\u00e9ssage " + i + "\"}";
+        }
+        plain[102] = "{\"username\":\"train\",\"arg\":\"HISTORY\",\"room\":\"training\",\"before\":50,\"limit\":20}";
+        plain[103] = "{\"username\":\"train\",\"arg\":\"LISTROOMS\"}";
+        for (int i = 104; i < 109; i++) plain[i] = "not json";
+        plain[109] = "{\"username\":\"train\",\"arg\":\"PING\"}";
+        try (Socket socket = Training.connect(port)) {
+            Training.converse(socket, plain, "PONG");
+        }
+        String[] mux = {
+            "MUX",
+            "1 {\"username\":\"one\",\"arg\":\"JOINROOM\",\"room\":\"training\"}",
+            "2 {\"username\":\"two\",\"arg\":\"JOINROOM\",\"room\":\"training\",\"since\":90}",
+            "1 {\"username\":\"one\",\"arg\":\"SENDMSG\",\"msg\":\"hi\"}",
+            "2 CLOSE",
+            "1 {\"username\":\"one\",\"arg\":\"PING\"}",
+        };
+        try (Socket socket = Training.connect(port)) {
+            Training.converse(socket, mux, "PONG");
+        }
+        byte[][] binary = new byte[24][];
+        binary[0] = ChatWire.request("JOINROOM", "training", "three", null, -1);
+        for (int i = 1; i < 21; i++) binary[i] = ChatWire.request("SENDMSG", null, "three", "b\u00efnary " + i, -1);
+        binary[21] = ChatWire.request("HISTORY", "training", "three", null, 10);
+        binary[22] = ChatWire.request("LISTROOMS", null, "three", null, -1);
+        binary[23] = ChatWire.request("PING", null, "three", null, -1);
+        try (Socket socket = Training.connect(port)) {
+            Training.converse(socket, binary, ChatWire.PONG);
+        }
+    }
 }
\ No newline at end of file
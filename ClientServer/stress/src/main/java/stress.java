@@ -0,0 +1,405 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// concurrency stress for the room registry: many users on their own sockets fire CREATEROOM,
+// LISTROOMS, JOINROOM and SENDMSG at the same small set of rooms, all at once, and every reply is
+// checked as it arrives:
+//   every line is json the client understands and no socket is closed on it
+//   room messages come in rising seq order for each room, nothing is seen twice
+//   a user's own messages come back in the order it sent them to each room
+//   once the hammering stops every user settles in one room and sends FINAL more messages,
+//   all of which have to come back
+//   the last LISTROOMS of every user names every room that was created
+// exits 1 if anything failed.
+//   java -jar stress.jar port=8000 users=64 ops=2000
+// options (key=value):
+//   host, port     server to hit (127.0.0.1, 8000), 8201 for the rmi bridge
+//   users          concurrent users, one socket and two threads each (64)
+//   ops            commands each user sends, about 70% SENDMSG and 10% each of the others (2000)
+//   rooms          rooms they share, created before the run and again during it (16)
+//   timeout        ms to wait for the last replies once everything was sent (30000)
+// the server wants SERVER_ENGINE=virtual or nio, the default workers engine serves only
+// SERVER_WORKERS sockets at a time. SENDMSG is held back by LIMIT_USER_RATE (100/s by default),
+// run it with LIMIT_USER_RATE=0 to let the users go flat out
+public class stress{
+    private static final int FINAL = 20;
+
+    private final String host;
+    private final int port;
+    private final int users;
+    private final int ops;
+    private final List<String> rooms = new ArrayList<>();
+    private final int timeout;
+    private final String run = Long.toString(System.currentTimeMillis() % 100_000_000L, 36);
+
+    private final Set<String> created = ConcurrentHashMap.newKeySet(); // rooms the server said it created
+    private final List<String> problems = new ArrayList<>();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger echoed = new AtomicInteger();
+
+    stress(Map<String, String> opts){
+        host = opts.getOrDefault("host", "127.0.0.1");
+        port = Integer.parseInt(opts.getOrDefault("port", "8000"));
+        users = Integer.parseInt(opts.getOrDefault("users", "64"));
+        ops = Integer.parseInt(opts.getOrDefault("ops", "2000"));
+        int roomCount = Integer.parseInt(opts.getOrDefault("rooms", "16"));
+        for (int i = 0; i < roomCount; i++) rooms.add("st-" + run + "-" + i);
+        timeout = Integer.parseInt(opts.getOrDefault("timeout", "30000"));
+    }
+
+    private synchronized void problem(String what){
+        if (problems.size() < 20) System.out.println("  " + what);
+        problems.add(what);
+    }
+
+
+    // one user: the caller's thread writes the commands, a virtual thread reads and checks replies
+    private final class User{
+        final String name;
+        final Socket socket = new Socket();
+        final OutputStream out;
+        final BufferedReader in;
+
+        // writer side
+        int mine;              // SENDMSGs so far, numbered from 1
+        volatile String room;  // joined room, null until the first JOINROOM
+        volatile int lists;    // LISTROOMS sent
+        volatile int finalFrom = Integer.MAX_VALUE; // messages numbered above this are the final ones
+
+        // reader side, per room
+        final Map<String, Long> lastSeq = new HashMap<>();
+        final Map<String, Integer> lastEcho = new HashMap<>();
+        volatile int finals;
+        volatile int listed;   // rooms replies
+        volatile List<String> lastRooms = List.of();
+        volatile boolean closed;
+
+        User(String name) throws IOException{
+            this.name = name;
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            out = new BufferedOutputStream(socket.getOutputStream(), 16 << 10);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String arg, String room, String msg) throws IOException{
+            StringBuilder line = new StringBuilder(96).append("{\"arg\":\"").append(arg).append("\",\"username\":").append(quote(name));
+            if (room != null) line.append(",\"room\":").append(quote(room));
+            if (msg != null) line.append(",\"msg\":").append(quote(msg));
+            out.write(line.append("}\n").toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        void hammer() throws IOException{
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int op = 0; op < ops; op++) {
+                int roll = random.nextInt(10);
+                String pick = rooms.get(random.nextInt(rooms.size()));
+                if (roll == 0) {
+                    send("CREATEROOM", pick, null);
+                } else if (roll == 1) {
+                    lists++;
+                    send("LISTROOMS", null, null);
+                } else if (roll == 2 || room == null) {
+                    room = pick;
+                    send("JOINROOM", pick, null);
+                } else {
+                    // the room in the text, so the reader can tell which room an echo belongs to
+                    send("SENDMSG", null, room + "|" + ++mine);
+                    sent.incrementAndGet();
+                }
+                if (random.nextInt(16) == 0) out.flush();
+            }
+            // a room of its own choosing for the rest, so everything sent from here on must come back
+            room = rooms.get(random.nextInt(rooms.size()));
+            send("JOINROOM", room, null);
+            finalFrom = mine;
+            for (int i = 0; i < FINAL; i++) {
+                send("SENDMSG", null, room + "|" + ++mine);
+                sent.incrementAndGet();
+            }
+            lists++;
+            send("LISTROOMS", null, null);
+            out.flush();
+        }
+
+        void read(){
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    check(line);
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) problem(name + ": " + e.getMessage());
+            }
+            closed = true;
+        }
+
+        private void check(String line){
+            Object parsed;
+            try {
+                parsed = new Json(line).value();
+            } catch (IOException e) {
+                problem(name + ": " + e.getMessage());
+                return;
+            }
+            if (!(parsed instanceof Map<?, ?> reply)) {
+                problem(name + ": not an object: " + line);
+                return;
+            }
+            if (reply.get("rooms") instanceof List<?> names) {
+                List<String> list = new ArrayList<>();
+                for (Object n : names) list.add(String.valueOf(n));
+                lastRooms = list;
+                listed++;
+                return;
+            }
+            if (reply.containsKey("history")) return;
+            if (!(reply.get("message") instanceof String text)) {
+                problem(name + ": unexpected reply " + line);
+                return;
+            }
+            if (text.startsWith("Room ") && text.endsWith(" created!")) {
+                created.add(text.substring(5, text.length() - 9));
+                return;
+            }
+            long seq = reply.get("seq") instanceof Long s ? s : 0;
+            int colon = text.indexOf(": ");
+            int bar = text.lastIndexOf('|');
+            if (seq <= 0 || colon < 0 || bar < colon) return; // "You joined", notices, "Slow down!" and the like
+
+            String room = text.substring(colon + 2, bar);
+            Long last = lastSeq.put(room, seq);
+            if (last != null && seq <= last) problem(name + ": " + room + " seq " + seq + " after " + last);
+
+            if (!text.startsWith(name + ": ")) return;
+            int n = Integer.parseInt(text.substring(bar + 1));
+            Integer before = lastEcho.put(room, n);
+            if (before != null && n <= before) problem(name + ": own message " + n + " to " + room + " after " + before);
+            if (n > finalFrom) finals++;
+            echoed.incrementAndGet();
+        }
+
+        // the final messages and every LISTROOMS have been answered, or the socket went away
+        boolean settled(){
+            return closed || (finals >= FINAL && listed >= lists);
+        }
+
+        void close(){
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+
+    int check() throws Exception{
+        System.out.println(users + " users x " + ops + " ops over " + rooms.size() + " rooms on " + host + ":" + port);
+
+        // the rooms exist before anyone joins, CREATEROOM in the run then hits rooms that are there
+        User setup = new User("st-" + run + "-setup");
+        Thread.ofVirtual().start(setup::read);
+        for (String room : rooms) setup.send("CREATEROOM", room, null);
+        setup.out.flush();
+        long ready = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!created.containsAll(rooms) && System.nanoTime() < ready) Thread.sleep(10);
+
+        List<User> all = new ArrayList<>();
+        for (int i = 0; i < users; i++) all.add(new User("st-" + run + "-u" + i));
+        for (User u : all) Thread.ofVirtual().name("read-" + u.name).start(u::read);
+
+        long start = System.nanoTime();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(users);
+        for (User u : all) {
+            Thread.ofVirtual().name("write-" + u.name).start(() -> {
+                try {
+                    go.await();
+                    u.hammer();
+                } catch (IOException | InterruptedException e) {
+                    problem(u.name + ": " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        go.countDown();
+        done.await();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (System.nanoTime() < deadline && !all.stream().allMatch(User::settled)) Thread.sleep(50);
+        long took = System.nanoTime() - start;
+
+        for (User u : all) {
+            if (u.closed) problem(u.name + ": socket closed by the server");
+            if (u.finals < FINAL) problem(u.name + ": " + (FINAL - u.finals) + " of its " + FINAL + " final messages never came back");
+            if (u.listed < u.lists) problem(u.name + ": " + (u.lists - u.listed) + " LISTROOMS never answered");
+            List<String> listed = u.lastRooms;
+            for (String room : rooms) {
+                if (!listed.contains(room)) problem(u.name + ": last LISTROOMS is missing " + room);
+            }
+        }
+        for (String room : rooms) {
+            if (!created.contains(room)) problem(room + " was never reported created");
+        }
+        for (User u : all) u.close();
+        setup.close();
+
+        System.out.printf("%d messages sent, %d echoed back, %d ms%n", sent.get(), echoed.get(), TimeUnit.NANOSECONDS.toMillis(took));
+        System.out.println(problems.isEmpty() ? "no problems" : problems.size() + " problem(s)");
+        return problems.size();
+    }
+
+    static String quote(String s){
+        StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                default -> {
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+                }
+            }
+        }
+        return out.append('"').toString();
+    }
+
+
+    // just enough json for the replies: objects, arrays, strings, integers, booleans and null
+    private static final class Json{
+        private final String s;
+        private int i;
+
+        Json(String s){
+            this.s = s;
+        }
+
+        Object value() throws IOException{
+            ws();
+            if (i >= s.length()) throw error();
+            char c = s.charAt(i);
+            if (c == '{') {
+                Map<String, Object> obj = new LinkedHashMap<>();
+                i++;
+                ws();
+                if (peek('}')) return obj;
+                do {
+                    ws();
+                    if (!(value() instanceof String key)) throw error();
+                    ws();
+                    if (!peek(':')) throw error();
+                    obj.put(key, value());
+                    ws();
+                } while (peek(','));
+                if (!peek('}')) throw error();
+                return obj;
+            }
+            if (c == '[') {
+                List<Object> list = new ArrayList<>();
+                i++;
+                ws();
+                if (peek(']')) return list;
+                do {
+                    list.add(value());
+                    ws();
+                } while (peek(','));
+                if (!peek(']')) throw error();
+                return list;
+            }
+            if (c == '"') return string();
+            if (s.startsWith("true", i)) {
+                i += 4;
+                return Boolean.TRUE;
+            }
+            if (s.startsWith("false", i)) {
+                i += 5;
+                return Boolean.FALSE;
+            }
+            if (s.startsWith("null", i)) {
+                i += 4;
+                return null;
+            }
+            int start = i;
+            while (i < s.length() && (s.charAt(i) == '-' || Character.isDigit(s.charAt(i)))) i++;
+            if (start == i) throw error();
+            return Long.parseLong(s, start, i, 10);
+        }
+
+        private String string() throws IOException{
+            StringBuilder out = new StringBuilder();
+            i++;
+            while (i < s.length()) {
+                char c = s.charAt(i++);
+                if (c == '"') return out.toString();
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                if (i >= s.length()) break;
+                char e = s.charAt(i++);
+                switch (e) {
+                    case 'n' -> out.append('\n');
+                    case 'r' -> out.append('\r');
+                    case 't' -> out.append('\t');
+                    case 'b' -> out.append('\b');
+                    case 'f' -> out.append('\f');
+                    case 'u' -> {
+                        if (i + 4 > s.length()) throw error();
+                        out.append((char) Integer.parseInt(s, i, i + 4, 16));
+                        i += 4;
+                    }
+                    default -> out.append(e);
+                }
+            }
+            throw error();
+        }
+
+        private boolean peek(char c){
+            if (i < s.length() && s.charAt(i) == c) {
+                i++;
+                return true;
+            }
+            return false;
+        }
+
+        private void ws(){
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        }
+
+        private IOException error(){
+            return new IOException("bad json at " + i + ": " + s);
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("usage: java -jar stress.jar [host=..] [port=..] [users=..] [ops=..] [rooms=..] [timeout=..]");
+                return;
+            }
+            opts.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+        }
+        System.exit(new stress(opts).check() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,40 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+
+class ChatJsonTest{
+
+    // control chars escape to 6 bytes each, more than the 3 per char string() reserves up front
+    @Test
+    void controlEscapesBeforeMultibyteText(){
+        String text = "\u0001".repeat(20) + "中".repeat(60);
+        ChatJson.Writer out = new ChatJson.Writer().message(text);
+        assertEquals("{\"message\":\"" + "\\u0001".repeat(20) + "中".repeat(60) + "\"}", out.toString());
+    }
+
+    @Test
+    void mixedEscapesAndCjkRoundTrip(){
+        String text = "\u0001\u0002\u0003" + "中".repeat(75) + "\n\t\"\\" + "\u001f😀文";
+        String line = new ChatJson.Writer().message(text, 2).toString();
+        String escaped = "\\u0001\\u0002\\u0003" + "中".repeat(75) + "\\n\\t\\\"\\\\" + "\\u001f😀文";
+        assertEquals("{\"message\":\"" + escaped + "\",\"seq\":2}", line);
+
+        // and it reads back as the same text
+        byte[] request = ("{\"msg\":\"" + escaped + "\"}").getBytes(StandardCharsets.UTF_8);
+        ChatJson.Request req = new ChatJson.Request();
+        req.parse(request, 0, request.length);
+        assertEquals(text, req.msg);
+    }
+
+    // the same writer reused for a short line after a long one
+    @Test
+    void reusedWriterAfterEscapes(){
+        ChatJson.Writer out = new ChatJson.Writer();
+        out.message("\u0001".repeat(100) + "é".repeat(100));
+        out.message("hi");
+        assertEquals("{\"message\":\"hi\"}", out.toString());
+    }
+}
@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+
+class IntSetTest{
+
+    // random joins and leaves over several chunks, checked against a HashSet
+    @Test
+    void matchesAHashSet(){
+        IntSet set = new IntSet();
+        Set<Integer> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            int value = random.nextInt(IntSet.CHUNK * 8);
+            if (random.nextInt(3) == 0) assertEquals(expected.remove(value), set.remove(value));
+            else assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected, members(set));
+    }
+
+    // every chunk but the last is full, so a snapshot is as long as the room
+    @Test
+    void chunksStayFull(){
+        IntSet set = new IntSet();
+        for (int i = 0; i < IntSet.CHUNK * 3 + 5; i++) set.add(i);
+        for (int i = 0; i < IntSet.CHUNK; i += 2) set.remove(i);
+
+        int[][] chunks = set.snapshot();
+        for (int c = 0; c < chunks.length - 1; c++) assertEquals(IntSet.CHUNK, chunks[c].length);
+        assertEquals(IntSet.CHUNK * 2 + IntSet.CHUNK / 2 + 5, set.size());
+
+        for (int i = 0; i < IntSet.CHUNK * 3 + 5; i++) set.remove(i);
+        assertTrue(set.isEmpty());
+        assertEquals(0, set.snapshot().length);
+    }
+
+    // a snapshot taken before a leave still has every member it had
+    @Test
+    void snapshotNeverChanges(){
+        IntSet set = new IntSet();
+        for (int i = 0; i < IntSet.CHUNK + 10; i++) set.add(i);
+        int[][] before = set.snapshot();
+        Set<Integer> members = members(set);
+
+        set.remove(3);
+        set.remove(IntSet.CHUNK + 9);
+        set.add(100_000);
+
+        assertEquals(members, members(before));
+        assertFalse(members(set).contains(3));
+    }
+
+    private static Set<Integer> members(IntSet set){
+        return members(set.snapshot());
+    }
+
+    private static Set<Integer> members(int[][] chunks){
+        Set<Integer> out = new HashSet<>();
+        for (int[] chunk : chunks) {
+            for (int id : chunk) assertTrue(out.add(id), "member twice: " + id);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,35 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+class InternerTest{
+
+    @Test
+    void fullTableHandsOutNoIds(){
+        Interner names = new Interner(2);
+        assertEquals(0, names.id("alice"));
+        assertEquals(1, names.id("bob"));
+        assertEquals(-1, names.id("carol"));
+        assertEquals(0, names.id("alice"));
+        assertEquals(2, names.size());
+        assertEquals("bob", names.name(1));
+    }
+
+    // a name past LIMIT_INTERNED_USERS stays in the stored text and reads back the same. fills
+    // the shared table, the other tests still pass with their names stored as text
+    @Test
+    void historyKeepsNamesWithoutAnId(){
+        PackedHistory history = new PackedHistory(16, 1 << 20);
+        for (int i = 0; i < Interner.MAX_USERS; i++) Interner.USERS.id("filler" + i);
+        history.append("alice" + Interner.MAX_USERS + ": hello");
+        history.append("no name here");
+
+        List<String> messages = history.before(Long.MAX_VALUE, 16).messages;
+        assertEquals(List.of("alice" + Interner.MAX_USERS + ": hello", "no name here"), messages);
+        String line = history.writePage(new ChatJson.Writer(), Long.MAX_VALUE, 16).toString();
+        assertEquals("{\"history\":[\"alice" + Interner.MAX_USERS + ": hello\",\"no name here\"],\"first\":1,\"more\":false}", line);
+    }
+}
@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+class TieredHistoryTest{
+
+    // HISTORY_CAPACITY and HISTORY_HOT_MESSAGES both default to 1000, the hot tier has to give
+    // up a block's worth of that or nothing is ever sealed
+    @Test
+    void sealsBlocksWithTheDefaults(){
+        TieredHistory history = new TieredHistory();
+        for (int i = 1; i <= 5000; i++) history.append("alice: message " + i);
+
+        assertTrue(history.blocks() > 0, "no block sealed after 5000 appends");
+        assertEquals(HistoryRing.CAPACITY - TieredHistory.BLOCK, TieredHistory.hotLimit(HistoryRing.CAPACITY));
+    }
+
+    // a page reaching from a sealed block into the hot tier reads back in order
+    @Test
+    void pagesAcrossSealedBlocks(){
+        TieredHistory history = new TieredHistory();
+        for (int i = 1; i <= 5000; i++) history.append("alice: message " + i);
+
+        HistoryRing.Page page = history.before(Long.MAX_VALUE, HistoryRing.CAPACITY);
+        assertEquals(HistoryRing.CAPACITY, page.messages.size());
+        assertEquals(5001 - HistoryRing.CAPACITY, page.first);
+        for (int i = 0; i < page.messages.size(); i++) {
+            assertEquals("alice: message " + (page.first + i), page.messages.get(i));
+        }
+    }
+
+    // no room for a block next to the hot tier, everything stays hot
+    @Test
+    void capacityBelowOneBlockNeverSeals(){
+        TieredHistory history = new TieredHistory(TieredHistory.BLOCK, 0);
+        for (int i = 1; i <= 2000; i++) history.append("bob: message " + i);
+
+        assertEquals(0, history.blocks());
+        assertEquals(TieredHistory.BLOCK, history.before(Long.MAX_VALUE, Integer.MAX_VALUE).messages.size());
+    }
+}